@@ -49,6 +49,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.LinearLayout;
+import android.widget.Toast;
 
 import org.joml.Matrix3d;
 import org.joml.Matrix4d;
@@ -72,7 +73,6 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.atap.tangoservice.experimental.TangoMesh;
 import com.projecttango.rajawali.DeviceExtrinsics;
-import com.projecttango.tangosupport.TangoPointCloudManager;
 import com.projecttango.tangosupport.TangoSupport;
 import com.projecttango.tangoutils.TangoPoseUtilities;
 
@@ -127,7 +127,11 @@ public class AugmentedRealityActivity extends Activity {
     private AtomicBoolean mIsFrameAvailableTangoThread = new AtomicBoolean(false);
     private double mRgbTimestampGlThread;
 
-    private TangoPointCloudManager mPointCloudManager;
+    // Latest depth frame, handed from the Tango callback thread to the OpenGL thread.
+    private DepthFrameExchange mDepthExchange =
+            new DepthFrameExchange(AugmentedRealityRenderer.MAX_NUMBER_OF_POINTS);
+    private double mDepthTimestampGlThread;
+    private int mDepthFrameCountGlThread;
 
     private ArrayList<Vector2> mDragBuffer = new ArrayList<Vector2>();
 
@@ -144,17 +148,14 @@ public class AugmentedRealityActivity extends Activity {
 
     public void saveDragBuffer()
     {
-        int minX = 0x7fffffff, minY = 0x7fffffff;
-        int maxX = 0, maxY = 0;
-        for(Vector2 p : mDragBuffer)
+        float[] path = new float[mDragBuffer.size() * 2];
+        for(int i = 0; i < mDragBuffer.size(); i++)
         {
-            minX = (int)Math.min(minX, p.getX());
-            minY = (int)Math.min(minY, p.getY());
-            maxX = (int)Math.max(maxX, p.getX());
-            maxY = (int)Math.max(maxY, p.getY());
+            path[i * 2] = (float)mDragBuffer.get(i).getX();
+            path[i * 2 + 1] = (float)mDragBuffer.get(i).getY();
         }
-        Log.d("Bound", minX + ", " + minY + " : " + maxX + ", " + maxY);
-        mRenderer.setBound(new Vector2(minX, minY), new Vector2(maxX, maxY));
+        Log.d("Lasso", mDragBuffer.size() + " vertices");
+        mRenderer.setLasso(path, mDragBuffer.size());
         mDragBuffer.clear();
     }
 
@@ -209,7 +210,6 @@ public class AugmentedRealityActivity extends Activity {
         mSurfaceView = (RajawaliSurfaceView) findViewById(R.id.surfaceview);
         mRenderer = new AugmentedRealityRenderer(this);
         setupRenderer();
-        mPointCloudManager = new TangoPointCloudManager();
 
         Button doButton = (Button) findViewById(R.id.button2);
         doButton.setOnClickListener(new View.OnClickListener() {
@@ -218,6 +218,18 @@ public class AugmentedRealityActivity extends Activity {
                 mRenderer.setScreenShot();
             }
         });
+        // A long press toggles automatic keyframe capture.
+        doButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                boolean enabled = !mRenderer.isAutoKeyframes();
+                mRenderer.setAutoKeyframes(enabled);
+                Toast.makeText(AugmentedRealityActivity.this,
+                        enabled ? "Automatic capture on" : "Automatic capture off",
+                        Toast.LENGTH_SHORT).show();
+                return true;
+            }
+        });
 
         Button toggleButton = (Button) findViewById(R.id.savePointCloudButton);
         toggleButton.setOnClickListener(new View.OnClickListener() {
@@ -282,6 +294,7 @@ public class AugmentedRealityActivity extends Activity {
                         break;
                     case DragEvent.ACTION_DRAG_LOCATION:
                         //Log.d("DRAG_LOC", x + ", " + y);
+                        putDragPos(x, y);
 
                         break;
                     default:
@@ -373,6 +386,13 @@ public class AugmentedRealityActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The renderer outlives pause and resume; its background work only stops here.
+        mRenderer.shutdown();
+    }
+
     /**
      * Sets up the tango configuration object. Make sure mTango object is initialized before
      * making this call.
@@ -407,10 +427,7 @@ public class AugmentedRealityActivity extends Activity {
 
             @Override
             public void onXyzIjAvailable(TangoXyzIjData xyzIj) {
-                // We are not using onXyzIjAvailable for this app.
-                synchronized (AugmentedRealityRenderer.lock) {
-                    mPointCloudManager.updateXyzIj(xyzIj);
-                }
+                mDepthExchange.publish(xyzIj.xyz, xyzIj.xyzCount, xyzIj.timestamp);
                 //Log.d("XYZIJ", "Update");
             }
 
@@ -484,10 +501,19 @@ public class AugmentedRealityActivity extends Activity {
                         return;
                     }
 
-                    TangoXyzIjData pointCloud = mPointCloudManager.getLatestXyzIj();
+                    DepthFrameExchange.Frame pointCloud = mDepthExchange.acquire();
                     if (pointCloud != null) {
+                        if (pointCloud.getTimestamp() != mDepthTimestampGlThread) {
+                            mDepthTimestampGlThread = pointCloud.getTimestamp();
+                            if (++mDepthFrameCountGlThread % 100 == 0) {
+                                Log.d("DepthExchange", "latency "
+                                        + mDepthExchange.getLatencyNanos() / 1000 + " us, "
+                                        + mDepthExchange.getDroppedCount() + " of "
+                                        + mDepthExchange.getPublishedCount() + " frames dropped");
+                            }
+                        }
                         TangoPoseData pointCloudPose =
-                                mTango.getPoseAtTime(pointCloud.timestamp, FRAME_PAIRS.get(0));
+                                mTango.getPoseAtTime(pointCloud.getTimestamp(), FRAME_PAIRS.get(0));
                         mRenderer.updatePointCloud(pointCloud, pointCloudPose, mExtrinsics, mIntrinsics);
                     }
 
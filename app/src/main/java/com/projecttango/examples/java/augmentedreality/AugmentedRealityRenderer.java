@@ -30,9 +30,12 @@ import android.view.MotionEvent;
 import android.view.animation.LinearInterpolator;
 import android.widget.Toast;
 
+import org.joml.FrustumIntersection;
 import org.joml.Matrix3d;
 import org.joml.Matrix4d;
+import org.joml.Matrix4f;
 import org.joml.Vector3d;
+import org.joml.Vector3f;
 import org.rajawali3d.Object3D;
 import org.rajawali3d.animation.Animation;
 import org.rajawali3d.animation.Animation3D;
@@ -48,13 +51,13 @@ import org.rajawali3d.materials.textures.StreamingTexture;
 import org.rajawali3d.materials.textures.Texture;
 import org.rajawali3d.math.Matrix4;
 import org.rajawali3d.math.Quaternion;
-import org.rajawali3d.math.vector.Vector2;
 import org.rajawali3d.math.vector.Vector3;
 import org.rajawali3d.primitives.Cube;
 import org.rajawali3d.primitives.Plane;
 import org.rajawali3d.primitives.ScreenQuad;
 import org.rajawali3d.primitives.Sphere;
 import org.rajawali3d.renderer.RajawaliRenderer;
+import org.rajawali3d.scene.ASceneFrameCallback;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -89,36 +92,49 @@ import java.util.Arrays;
 public class AugmentedRealityRenderer extends RajawaliRenderer {
     private static final String TAG = AugmentedRealityRenderer.class.getSimpleName();
     private int savecnt = 0;
-    public static Object lock = new Object();
-
-    static class Bound
-    {
-        Vector2 min, max;
-
-        public static Bound copyOf(Bound bound)
-        {
-            Bound tmp = new Bound();
-            tmp.min = new Vector2(bound.min.getX(), bound.min.getY());
-            tmp.max = new Vector2(bound.max.getX(), bound.max.getY());
-            return tmp;
-        }
-    }
 
+    /**
+     * Keyframe renderable with the world-space box around its points, for frustum culling.
+     */
     static class KeyFrame
     {
         PointCloud pointCloud;
-        ArrayList<Vector3> vertices = new ArrayList<Vector3>();
-
-        public KeyFrame(PointCloud pointCloud, ArrayList<Vector3> vertices)
+        // Box around the points in the renderable's own frame, and in the world.
+        float[] bounds;
+        Vector3f worldMin = new Vector3f();
+        Vector3f worldMax = new Vector3f();
+        // Frustum plane that culled the keyframe last, tested first next time.
+        int cullPlane = FrustumIntersection.PLANE_NX;
+
+        public KeyFrame(PointCloud pointCloud, float[] bounds)
         {
             this.pointCloud = pointCloud;
-            this.vertices = vertices;
+            this.bounds = bounds;
         }
-    };
+
+        public void setPose(Matrix4f pose)
+        {
+            pose.transformAab(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5],
+                    worldMin, worldMax);
+        }
+    }
 
     private static final float CAMERA_NEAR = 0.01f;
     private static final float CAMERA_FAR = 200f;
-    private static final int MAX_NUMBER_OF_POINTS = 60000;
+    static final int MAX_NUMBER_OF_POINTS = 60000;
+    private static final int CULL_PLANES = FrustumIntersection.PLANE_MASK_NX
+            | FrustumIntersection.PLANE_MASK_PX | FrustumIntersection.PLANE_MASK_NY
+            | FrustumIntersection.PLANE_MASK_PY | FrustumIntersection.PLANE_MASK_NZ
+            | FrustumIntersection.PLANE_MASK_PZ;
+    // Vertex (xyz), color (rgba) and index buffers a PointCloud renderable allocates per point
+    // of capacity. Keyframe renderables are sized to their points.
+    private static final int KEYFRAME_RENDERABLE_BYTES_PER_POINT = (3 + 4) * 4 + 4;
+    // Captures read the color image back at this fraction of its size, each side. Depth points
+    // are far sparser than color pixels, and a smaller readback stalls the frame for less time.
+    private static final int CAPTURE_IMAGE_DOWNSCALE = 2;
+    // The color image is read back over this many frames, one band of rows per frame, so no
+    // frame is held up by the whole glReadPixels.
+    private static final int CAPTURE_IMAGE_BANDS = 4;
 
     // Rajawali texture used to render the Tango color camera.
     private ATexture mTangoCameraTexture;
@@ -126,41 +142,71 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
     // Keeps track of whether the scene camera has been configured.
     private boolean mSceneCameraConfigured;
 
-    private boolean screenshot;
-    private boolean merge;
-    private static int framebufferWidth = 1920;
-    private static int framebufferHeight = 942;
+    // Set from the UI thread, handled on the render thread.
+    private volatile boolean screenshot;
+    private volatile boolean merge;
 
-    private Bound mSelectBound = new Bound();
+    // Region drawn by the user in image pixels, or null to select the whole frame. Replaced
+    // whole by the UI thread, never modified.
+    private volatile LassoSelection mLasso;
     private PointCloud mPointCloud;
-    private TangoXyzIjData mXYZij;
     private TangoPoseData mPose;
-    private TangoCameraIntrinsics mIntrinsics;
-    private Vector3[][] mPositionBuffer = new Vector3[ framebufferHeight ][ framebufferWidth ];
-    private ArrayList<KeyFrame> keyFrames = new ArrayList<KeyFrame>();
+    // Color camera intrinsics; also read by the UI thread to map touches to image pixels.
+    private volatile TangoCameraIntrinsics mIntrinsics;
+    // Captures run on the worker; their keyframe renderables are added here as they finish.
+    private ReconstructionWorker mReconstruction =
+            new ReconstructionWorker(MAX_NUMBER_OF_POINTS);
+    private ArrayList<KeyFrame> mKeyFrames = new ArrayList<KeyFrame>();
+    private int mCapturesPending;
+    // Display data of the merged model as of the last finished capture.
+    private ReconstructionWorker.ModelView mModelView;
+    // Proxy of the merged model, created on the first merge and then updated in place.
+    private Cube mModelBox;
+    private Object3D mHullMesh;
+    private int mModelVersion = -1;
+    private float[] mMatrixValues = new float[16];
+    private double[] mModelValues = new double[16];
+    // Spatial index over the points of all keyframes, for region and view queries.
+    private PointOctree mPointIndex = new PointOctree();
+    private Matrix4f mViewProjection = new Matrix4f();
+    private Matrix4f mViewMatrix = new Matrix4f();
+    private FrustumIntersection mFrustum = new FrustumIntersection();
+    private int mVisibleKeyframes;
+    // Automatic keyframe capture from the incoming depth frames.
+    private KeyframeSelector mKeyframeSelector = new KeyframeSelector();
+    private boolean mAutoKeyframes;
+    private Matrix4f mFramePose = new Matrix4f();
+    private long mKeyframeBytes;
+    // Color camera image and extrinsics for coloring captured points.
+    private ColorImageReader mColorImageReader = new ColorImageReader();
+    // Capture whose color image mColorImageReader is reading back, or null.
+    private ReconstructionWorker.CaptureRequest mImageRequest;
+    private DeviceExtrinsics mExtrinsics;
+    private Matrix4f mDeviceToColor = new Matrix4f();
+    private Matrix4f mDeviceToDepth = new Matrix4f();
 
     public AugmentedRealityRenderer(Context context) {
         super(context);
+        // The OpenGL world frame is y-up; only strip roughly horizontal support planes.
+        mReconstruction.getSolver().setGravityPrior(0, 1, 0, 15);
     }
 
-    public Vector2 relocate(Vector2 p, int ow, int oh, int nw, int nh)
-    {
-        int x = (int)((p.getX() / (float)ow) * nw);
-        int y = (int)((p.getY() / (float)oh) * nh);
-
-        return new Vector2(x, y);
-    }
-
-    public void setBound(Vector2 min, Vector2 max)
+    /**
+     * Sets the selection to the polygon drawn on screen through {@code count} vertices (x, y
+     * pairs). With fewer than 3 vertices, or before the first frame, the whole frame is selected.
+     */
+    public void setLasso(float[] screenXY, int count)
     {
-        Log.d("SetBound before", min.getX() + ", " + min.getY() + " : " +
-                max.getX() + ", " + max.getY());
-
-        mSelectBound.min = relocate(min, 1920, 942, 1280, 720);
-        mSelectBound.max = relocate(max, 1920, 942, 1280, 720);
+        float[] image = Arrays.copyOf(screenXY, count * 2);
+        if(count < 3 || !viewToImage(image, count)) {
+            mLasso = null;
+            return;
+        }
+        LassoSelection lasso = new LassoSelection(image, count);
+        mLasso = lasso;
 
-        Log.d("SetBound after", mSelectBound.min.getX() + ", " + mSelectBound.min.getY() + " : " +
-                mSelectBound.max.getX() + ", " + mSelectBound.max.getY());
+        Log.d("SetLasso", count + " vertices, " + lasso.getMinX() + ", " + lasso.getMinY()
+                + " : " + lasso.getMaxX() + ", " + lasso.getMaxY());
     }
 
     public void setScreenShot()
@@ -173,17 +219,27 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
         merge = true;
     }
 
-    private Vector2 viewPointToScreen(TangoCameraIntrinsics intrinsics, float x, float y, float z)
+    /**
+     * Enables capturing keyframes automatically as the device moves, in addition to
+     * {@link #setScreenShot()}.
+     */
+    public void setAutoKeyframes(boolean enabled)
     {
-        float fx = (float) intrinsics.fx;
-        float fy = (float) intrinsics.fy;
-        float cx = (float) intrinsics.cx;
-        float cy = (float) intrinsics.cy;
+        mAutoKeyframes = enabled;
+    }
 
-        int pixelX = (int)(fx * (x / z) + cx);
-        int pixelY = (int)(fy * (y / z) + cy);
+    public boolean isAutoKeyframes()
+    {
+        return mAutoKeyframes;
+    }
 
-        return new Vector2(pixelX, pixelY);
+    /**
+     * Stops the reconstruction worker. Queued captures are dropped and no new ones are started;
+     * call once the renderer is no longer used.
+     */
+    public void shutdown()
+    {
+        mReconstruction.shutdown();
     }
 
     private Vector3d pointWorldToView(Vector3d worldPos, Matrix4 worldToView)
@@ -196,132 +252,266 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
         return viewPos;
     }
 
-    private boolean isInRegion(float px, float py, int x1, int y1, int x2, int y2)
+    public void togglePointcloud()
     {
-        return (px >= x1 && px <= x2 && py >= y1 && py <= y2);
+        mPointCloud.setVisible(!mPointCloud.isVisible());
     }
 
-    public void togglePointcloud()
+    /**
+     * Looks up the point of the last capture nearest to a screen position, within
+     * {@code radius} depth image pixels, and writes it to {@code dest} in world coordinates.
+     * Returns false if no selected point is close enough. The capture is only replaced once the
+     * next one has filtered its frame.
+     */
+    public boolean getCapturedPoint(float screenX, float screenY, int radius, Vector3f dest)
     {
-        mPointCloud.setVisible(!mPointCloud.isVisible());
+        float[] pixel = {screenX, screenY};
+        if(!viewToImage(pixel, 1))
+            return false;
+        return mReconstruction.findCapturedPoint((int) pixel[0], (int) pixel[1], radius, dest);
     }
 
-    private void savePointPositionToBuffer(int px, int py, Vector3 pos)
+    /**
+     * Converts {@code count} view positions (x, y pairs) in place to color image pixels; the
+     * camera image is shown stretched over the whole viewport. Returns false while the image or
+     * viewport size is not known yet.
+     */
+    private boolean viewToImage(float[] xy, int count)
     {
-        if(px < 0 || px >= framebufferWidth || py < 0 || py >= framebufferHeight)
-            return;
-        mPositionBuffer[py][px] = pos;
+        TangoCameraIntrinsics intrinsics = mIntrinsics;
+        int viewWidth = getViewportWidth(), viewHeight = getViewportHeight();
+        if(intrinsics == null || viewWidth <= 0 || viewHeight <= 0)
+            return false;
+        float scaleX = (float) intrinsics.width / viewWidth;
+        float scaleY = (float) intrinsics.height / viewHeight;
+        for(int i = 0; i < count * 2; i += 2) {
+            xy[i] *= scaleX;
+            xy[i + 1] *= scaleY;
+        }
+        return true;
     }
 
-    private void clearPositionBuffer()
+    private void updateModelBox(Matrix4f pose, Vector3f halfExtents)
     {
-        final Vector3 defaultPos = new Vector3(0, 0, 0);
-        for(Vector3[] row : mPositionBuffer)
-        {
-            Arrays.fill(row, defaultPos);
+        if(mModelBox == null) {
+            // Set-up a material: green with application of the light and
+            // instructions.
+            Material material = new Material();
+            material.setColor(0xff009900);
+            //material.enableLighting(true);
+            //material.setDiffuseMethod(new DiffuseMethod.Lambert());
+
+            mModelBox = new Cube(2.0f);
+            mModelBox.setMaterial(material);
+            getCurrentScene().addChild(mModelBox);
         }
+        setModelMatrix(mModelBox, pose);
+        mModelBox.setScale(halfExtents.x, halfExtents.y, halfExtents.z);
     }
 
-    private void addCube(Vector3 pos, Vector3 size)
+    /**
+     * Shows the hull as a flat shaded, translucent mesh, replacing the previous one.
+     */
+    private void updateHullMesh(ReconstructionWorker.ModelView model)
     {
-        // Set-up a material: green with application of the light and
-        // instructions.
-        Material material = new Material();
-        material.setColor(0xff009900);
-        //material.enableLighting(true);
-        //material.setDiffuseMethod(new DiffuseMethod.Lambert());
+        if(mHullMesh != null) {
+            getCurrentScene().removeChild(mHullMesh);
+            mHullMesh.destroy();
+            mHullMesh = null;
+        }
+        if(model.triangleCount == 0)
+            return;
 
-        Cube mObject = new Cube(2.0f);
-        mObject.setMaterial(material);
-        mObject.setPosition(pos);
-        mObject.setScale(size);
-        mObject.setRotation(Vector3.Axis.Z, 180);
-        getCurrentScene().addChild(mObject);
+        Material material = new Material();
+        material.setColor(0x80009900);
+        mHullMesh = new Object3D();
+        mHullMesh.setData(model.hullPositions, model.hullNormals, null, null, model.hullIndices,
+                true);
+        mHullMesh.setMaterial(material);
+        mHullMesh.setTransparent(true);
+        getCurrentScene().addChild(mHullMesh);
     }
 
+    /**
+     * Shows the merged model. Keyframes are merged into it as they are captured, so this only
+     * refreshes the proxy objects from the last finished capture, and only if the model changed
+     * since the last merge.
+     */
     private void mergeKeyframe()
     {
-        int count = 0;
-        Vector3 max = new Vector3(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
-        Vector3 mass = new Vector3(0, 0, 0);
-        for(KeyFrame keyFrame : keyFrames) {
-            count += keyFrame.vertices.size();
-            for(Vector3 vertex : keyFrame.vertices) {
-                mass.add(vertex);
-                max.x = Math.max(vertex.x, max.x);
-                max.y = Math.max(vertex.y, max.y);
-                max.z = Math.max(vertex.z, max.z);
-            }
+        ReconstructionWorker.ModelView model = mModelView;
+        if(model == null || model.keyframeCount == 0) {
+            Log.d("Merge", "No keyframes");
+            return;
         }
-
-        mass.divide((float)count);
-        max.x = Math.abs(max.x - mass.x);
-        max.y = Math.abs(max.y - mass.y);
-        max.z = Math.abs(max.z - mass.z);
-        addCube(mass, max);
-        Log.d("Merge-Mass", mass.x + ", " + mass.y + ", " + mass.z);
-        Log.d("Merge-Max", max.x + ", " + max.y + ", " + max.z);
+        if(model.version == mModelVersion) {
+            Log.d("Merge", "Model unchanged");
+            return;
+        }
+        mModelVersion = model.version;
+
+        Log.d("Merge-AABB", model.center.x + ", " + model.center.y + ", " + model.center.z
+                + " : " + model.extents.x + ", " + model.extents.y + ", " + model.extents.z);
+        updateModelBox(model.boxPose, model.boxExtents);
+        Log.d("Merge-OBB", model.boxPose.m30 + ", " + model.boxPose.m31 + ", "
+                + model.boxPose.m32 + " : " + model.boxExtents.x + ", " + model.boxExtents.y
+                + ", " + model.boxExtents.z);
+
+        updateHullMesh(model);
+        Log.d("Merge-Hull", model.triangleCount + " triangles, volume " + model.hullVolume
+                + ", " + model.pointCount + " merged points from " + model.keyframeCount
+                + " keyframes");
     }
 
-    private Vector3 toWorld(Matrix4 transformMat4, float x, float y, float z)
+    private void setModelMatrix(Object3D object, Matrix4f matrix)
     {
-        //Matrix4 transformMat4 = mPointCloud.getModelMatrix();
-        Matrix4 modelMat4 = new Matrix4();
-        modelMat4.setAll(
-                new Vector3(x, y, z),
-                new Vector3(1.0, 1.0, 1.0),
-                new Quaternion(new Vector3(0, 1, 0), 0));
-        modelMat4.leftMultiply(transformMat4);
-        return modelMat4.getTranslation();
+        matrix.get(mMatrixValues);
+        for(int i = 0; i < 16; i++) {
+            mModelValues[i] = mMatrixValues[i];
+        }
+        Pose pose = ScenePoseCalculator.matrixToPose(new Matrix4(mModelValues));
+        object.setPosition(pose.getPosition());
+        object.setOrientation(pose.getOrientation());
     }
 
-    private void savePointCloud(PointCloud pointCloud, TangoXyzIjData xyzIj, TangoPoseData pose)
+    private void toJoml(Matrix4 matrix, Matrix4f dest)
     {
-        Log.d("PointCloud", xyzIj.xyzCount + "");
-        Log.d("Intrinsic", mIntrinsics.width + ", " + mIntrinsics.height);
-
-        FloatBuffer newXyz = FloatBuffer.allocate(xyzIj.xyzCount * 3);
-        PointCloud newPointCloud = new PointCloud(MAX_NUMBER_OF_POINTS);
-        ArrayList<Vector3> vertices = new ArrayList<Vector3>();
-
-        clearPositionBuffer();
-
-        int maxX = 0, maxY = 0;
-        for (int k = 0; k < xyzIj.xyzCount * 3; k += 3) {
-            float x = (float) xyzIj.xyz.get(k);
-            float y = (float) xyzIj.xyz.get(k + 1);
-            float z = (float) xyzIj.xyz.get(k + 2);
-
-            Vector3 pos = new Vector3(x, y, z);
-            Vector2 screenPos = viewPointToScreen(mIntrinsics, x, y, z);
-            int pixelX = (int) screenPos.getX();
-            int pixelY = (int) screenPos.getY();
-            maxX = Math.max(pixelX, maxX);
-            maxY = Math.max(pixelY, maxY);
-
-            if(!isInRegion(pixelX, pixelY,
-                    (int)mSelectBound.min.getX(), (int)mSelectBound.min.getY(),
-                    (int)mSelectBound.max.getX(), (int)mSelectBound.max.getY()))
-                continue;
+        matrix.toFloatArray(mMatrixValues);
+        dest.set(mMatrixValues);
+    }
 
-            savePointPositionToBuffer(pixelX, pixelY, pos);
+    /**
+     * Appends the captured keyframe points inside the current camera frustum to {@code out} and
+     * returns how many were added.
+     * NOTE: This must be called from the OpenGL render thread - it is not thread safe.
+     */
+    public int queryPointsInView(PointBuffer out)
+    {
+        toJoml(getCurrentCamera().getProjectionMatrix(), mViewProjection);
+        toJoml(getCurrentCamera().getViewMatrix(), mViewMatrix);
+        mViewProjection.mul(mViewMatrix);
+        mFrustum.set(mViewProjection);
+        return mPointIndex.queryFrustum(mFrustum, out);
+    }
 
-            newXyz.put(x);
-            newXyz.put(y);
-            newXyz.put(z);
+    /**
+     * Hides the keyframes whose box is outside the camera frustum, so they are not drawn. Each
+     * keyframe first tests the plane that culled it last, which usually culls it again.
+     * NOTE: This must be called from the OpenGL render thread, once the camera is set for the
+     * frame.
+     */
+    private void cullKeyframes()
+    {
+        if(mKeyFrames.isEmpty())
+            return;
+        toJoml(getCurrentCamera().getProjectionMatrix(), mViewProjection);
+        toJoml(getCurrentCamera().getViewMatrix(), mViewMatrix);
+        mViewProjection.mul(mViewMatrix);
+        mFrustum.set(mViewProjection);
+        int visible = 0;
+        for(KeyFrame keyFrame : mKeyFrames) {
+            int result = mFrustum.intersectAab(keyFrame.worldMin.x, keyFrame.worldMin.y,
+                    keyFrame.worldMin.z, keyFrame.worldMax.x, keyFrame.worldMax.y,
+                    keyFrame.worldMax.z, CULL_PLANES, keyFrame.cullPlane);
+            boolean inView = result == FrustumIntersection.INSIDE
+                    || result == FrustumIntersection.INTERSECT;
+            if(inView) {
+                visible++;
+            } else {
+                keyFrame.cullPlane = result;
+            }
+            keyFrame.pointCloud.setVisible(inView);
+        }
+        if(visible != mVisibleKeyframes) {
+            mVisibleKeyframes = visible;
+            Log.d("Culling", visible + " of " + mKeyFrames.size() + " keyframes in view");
+        }
+    }
 
-            vertices.add(toWorld(mPointCloud.getModelMatrix(), x, y, z));
+    /**
+     * Hands a capture of the newest depth frame to the reconstruction worker, with the
+     * selection, color image and extrinsics as they are now. The color image is drawn aside
+     * now and read back by {@link #readCaptureImage()} over the next frames; the worker waits
+     * for it only once it gets to coloring the points.
+     */
+    private void requestCapture()
+    {
+        int width = mIntrinsics.width, height = mIntrinsics.height;
+        int imageWidth = width / CAPTURE_IMAGE_DOWNSCALE;
+        int imageHeight = height / CAPTURE_IMAGE_DOWNSCALE;
+        ByteBuffer image = mReconstruction.obtainImageBuffer(imageWidth * imageHeight * 4);
+        mColorImageReader.begin(mTangoCameraTexture.getTextureId(), imageWidth, imageHeight,
+                (imageHeight + CAPTURE_IMAGE_BANDS - 1) / CAPTURE_IMAGE_BANDS, image);
+
+        // Isolate the object at the center of the lasso, or under the optical axis without one.
+        LassoSelection lasso = mLasso;
+        float u = (float) mIntrinsics.cx, v = (float) mIntrinsics.cy;
+        if(lasso != null) {
+            u = (clamp(lasso.getMinX(), width) + clamp(lasso.getMaxX(), width)) / 2;
+            v = (clamp(lasso.getMinY(), height) + clamp(lasso.getMaxY(), height)) / 2;
         }
-        Log.d("MAX", maxX + ", " + maxY);
-        newPointCloud.updateCloud(xyzIj.xyzCount, newXyz);
-        newPointCloud.setPosition(pointCloud.getPosition());
-        newPointCloud.setOrientation(pointCloud.getOrientation());
+        mImageRequest = new ReconstructionWorker.CaptureRequest(mIntrinsics, lasso, u, v, image,
+                imageWidth, imageHeight, mDeviceToColor, mDeviceToDepth);
+        mReconstruction.capture(mImageRequest);
+        mCapturesPending++;
+    }
 
-        keyFrames.add(new KeyFrame(newPointCloud, vertices));
+    /**
+     * Reads the next band of the color image of the last capture, handing the image to the
+     * worker once it is complete.
+     */
+    private void readCaptureImage()
+    {
+        if(mImageRequest == null || !mColorImageReader.readRows())
+            return;
+        mImageRequest.imageRead();
+        mImageRequest = null;
+        Log.d("Keyframe", "Color image read back, longest band "
+                + mColorImageReader.getLongestBandNanos() / 1000 + " us");
+    }
 
-        getCurrentScene().addChild(newPointCloud);
+    private static float clamp(float value, int size)
+    {
+        return Math.max(0, Math.min(value, size));
+    }
 
-        Log.d("PointCloud", "OK");
+    /**
+     * Adds a keyframe built by the worker to the scene. After a loop closure the earlier
+     * keyframes are moved to their corrected poses and the point index is replaced.
+     */
+    private void addKeyframe(ReconstructionWorker.Result result)
+    {
+        mCapturesPending--;
+        if(result.xyz == null) {
+            mReconstruction.recycle(result);
+            return;
+        }
+        // Keyframes never change their points, so the renderable needs no spare capacity.
+        PointCloud pointCloud = new PointCloud(Math.max(result.count, 1));
+        pointCloud.updateCloud(result.count, result.xyz);
+        // The renderable keeps its own copy of the points.
+        mReconstruction.recycle(result);
+        setModelMatrix(pointCloud, result.pose);
+        KeyFrame keyFrame = new KeyFrame(pointCloud, result.bounds);
+        keyFrame.setPose(result.pose);
+        mKeyFrames.add(keyFrame);
+        getCurrentScene().addChild(pointCloud);
+
+        if(result.poses != null) {
+            for(int i = 0; i < mKeyFrames.size(); i++) {
+                setModelMatrix(mKeyFrames.get(i).pointCloud, result.poses[i]);
+                mKeyFrames.get(i).setPose(result.poses[i]);
+            }
+            mPointIndex = result.index;
+        } else {
+            mPointIndex.insert(result.vertices);
+        }
+        mModelView = result.model;
+        mKeyframeSelector.accept(result.odometry);
+        mKeyframeBytes += result.keyframeBytes
+                + (long) Math.max(result.count, 1) * KEYFRAME_RENDERABLE_BYTES_PER_POINT;
+        Log.d("Keyframe", "Added keyframe " + mKeyFrames.size() + ", "
+                + result.count + " points");
     }
 
     @Override
@@ -357,8 +547,27 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
         getCurrentCamera().setFarPlane(CAMERA_FAR);
         getCurrentCamera().setFieldOfView(37.5);
 
-        mSelectBound.min = new Vector2(0, 0);
-        mSelectBound.max = new Vector2(0x7fffffff, 0x7fffffff);
+
+        // Cull keyframes once the scene has set up the camera matrices for the frame.
+        getCurrentScene().registerFrameCallback(new ASceneFrameCallback() {
+            @Override
+            public void onPreFrame(long sceneTime, double deltaTime) {
+            }
+
+            @Override
+            public void onPreDraw(long sceneTime, double deltaTime) {
+                cullKeyframes();
+            }
+
+            @Override
+            public void onPostFrame(long sceneTime, double deltaTime) {
+            }
+
+            @Override
+            public boolean callPreDraw() {
+                return true;
+            }
+        });
 
         //addCube(new Vector3(0, 0, -3));
     }
@@ -385,35 +594,59 @@ public class AugmentedRealityRenderer extends RajawaliRenderer {
      * at the time the cloud data was acquired.
      * NOTE: This needs to be called from the OpenGL rendering thread.
      */
-    public void updatePointCloud(TangoXyzIjData xyzIjData, TangoPoseData devicePose,
+    public void updatePointCloud(DepthFrameExchange.Frame frame, TangoPoseData devicePose,
                                  DeviceExtrinsics extrinsics, TangoCameraIntrinsics intrinsics) {
         Pose pointCloudPose =
                 ScenePoseCalculator.toDepthCameraOpenGlPose(devicePose, extrinsics);
-        mPointCloud.updateCloud(xyzIjData.xyzCount, xyzIjData.xyz);
+        mPointCloud.updateCloud(frame.getCount(), frame.getBuffer());
         mPointCloud.setPosition(pointCloudPose.getPosition());
         mPointCloud.setOrientation(pointCloudPose.getOrientation());
         mIntrinsics = intrinsics;
+        if(extrinsics != mExtrinsics) {
+            mExtrinsics = extrinsics;
+            toJoml(extrinsics.getDeviceTColorCamera(), mDeviceToColor);
+            toJoml(extrinsics.getDeviceTDepthCamera(), mDeviceToDepth);
+        }
 
-        mXYZij = xyzIjData;
         mPose = devicePose;
 
+        PointTransform.toModelMatrix(pointCloudPose.getPosition(),
+                pointCloudPose.getOrientation(), mFramePose);
+        mReconstruction.pushDepthFrame(frame.getBuffer(), frame.getCount(), mFramePose,
+                frame.getTimestamp());
+
+        // One automatic capture in flight at a time, so the worker cannot fall behind.
+        if(mAutoKeyframes && !screenshot && mCapturesPending == 0) {
+            if(mKeyframeSelector.shouldCapture(frame.getBuffer(), frame.getCount(), mFramePose,
+                    intrinsics, mKeyframeBytes)) {
+                Log.d("Keyframe", "Auto capture: moved " + mKeyframeSelector.getTranslation()
+                        + " m, turned " + Math.toDegrees(mKeyframeSelector.getRotation())
+                        + " deg, overlap " + mKeyframeSelector.getOverlap());
+                screenshot = true;
+            }
+        }
+
     }
 
     @Override
     public void onRenderFrame(GL10 gl) {
-        synchronized (lock)
-        {
-            if(screenshot){
-                savePointCloud(mPointCloud, mXYZij, mPose);
-                screenshot = false;
-                Log.d("Keyframe", "Done");
-            }
+        readCaptureImage();
+        // A capture waits for the color image of the previous one to be read back.
+        if(screenshot && mImageRequest == null){
+            requestCapture();
+            screenshot = false;
+            Log.d("Keyframe", "Requested");
+        }
 
-            if(merge){
-                mergeKeyframe();
-                Log.d("Merge", "Done");
-                merge = false;
-            }
+        ReconstructionWorker.Result result;
+        while((result = mReconstruction.poll()) != null) {
+            addKeyframe(result);
+        }
+
+        if(merge){
+            mergeKeyframe();
+            Log.d("Merge", "Done");
+            merge = false;
         }
         super.onRenderFrame(gl);
     }
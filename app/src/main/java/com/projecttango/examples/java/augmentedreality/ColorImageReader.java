@@ -0,0 +1,199 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Copies the color camera image out of its external OpenGL texture into a CPU buffer. The texture
+ * is drawn into an offscreen framebuffer of the image size and read back as RGBA bytes. The
+ * framebuffer, shader and pixel buffer are kept until the size changes. The Tango color texture
+ * has v = 0 on the top row of the image, so reading the framebuffer from its bottom row yields the
+ * rows top first.
+ * <p/>
+ * {@code glReadPixels} blocks the thread until the GPU is done and the pixels are copied, so a
+ * whole image at once costs one long frame. {@link #begin} instead draws the image into the
+ * framebuffer and {@link #readRows()} reads it back one band of rows per call, spreading the
+ * copy over several frames while the framebuffer keeps the image as it was drawn.
+ * <p/>
+ * NOTE: This must be used from the OpenGL render thread.
+ */
+public class ColorImageReader
+{
+    private static final int GL_TEXTURE_EXTERNAL_OES = 0x8D65;
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+                    "precision mediump float;\n" +
+                    "varying highp vec2 vTextureCoord;\n" +
+                    "uniform samplerExternalOES sTexture;\n" +
+                    "void main() {\n" +
+                    "gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+                    "}\n";
+
+    private final GLES20FramebufferObject framebuffer = new GLES20FramebufferObject();
+    private final ExternalTextureShader shader = new ExternalTextureShader();
+    private final int[] viewport = new int[4];
+    private ByteBuffer pixels;
+    private int width, height;
+    // Image being read back by readRows(), or null.
+    private ByteBuffer dest;
+    private int nextRow, bandRows;
+    private long longestBandNanos;
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Reads the image of the external texture {@code textureId} at {@code width} x
+     * {@code height}. Returns the reused buffer of packed RGBA rows, top row first.
+     */
+    public ByteBuffer read(int textureId, int width, int height)
+    {
+        if(pixels == null || pixels.capacity() != width * height * 4) {
+            pixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+        }
+        return read(textureId, width, height, pixels);
+    }
+
+    /**
+     * Reads the image as {@link #read(int, int, int)} does, into {@code dest}, which must be a
+     * direct buffer of at least {@code width * height * 4} bytes. The caller keeps {@code dest},
+     * so the image can be handed to another thread.
+     */
+    public ByteBuffer read(int textureId, int width, int height, ByteBuffer dest)
+    {
+        begin(textureId, width, height, height, dest);
+        readRows();
+        return dest;
+    }
+
+    /**
+     * Draws the image of the external texture {@code textureId} at {@code width} x
+     * {@code height} into the framebuffer, to be read into {@code dest} by {@link #readRows()}
+     * {@code bandRows} rows at a time. {@code dest} must be a direct buffer of at least
+     * {@code width * height * 4} bytes. A read still in progress is abandoned.
+     */
+    public void begin(int textureId, int width, int height, int bandRows, ByteBuffer dest)
+    {
+        if(width != this.width || height != this.height) {
+            this.width = width;
+            this.height = height;
+            framebuffer.setup(width, height);
+            shader.setup();
+        }
+
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, viewport, 0);
+        framebuffer.enable();
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        GLES20.glDisable(GLES20.GL_CULL_FACE);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        shader.draw(textureId);
+
+        // Hand the default framebuffer back to the renderer; objects set their own state.
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+
+        this.dest = dest;
+        this.bandRows = Math.max(bandRows, 1);
+        nextRow = 0;
+        longestBandNanos = 0;
+    }
+
+    /**
+     * True between {@link #begin} and the {@link #readRows()} call that completes the image.
+     */
+    public boolean isReading()
+    {
+        return dest != null;
+    }
+
+    /**
+     * Reads the next band of rows of the image started by {@link #begin}. Returns true once the
+     * whole image is in its buffer, after which the buffer is left to the caller.
+     */
+    public boolean readRows()
+    {
+        if(dest == null)
+            return false;
+        int rows = Math.min(bandRows, height - nextRow);
+        long start = System.nanoTime();
+        framebuffer.enable();
+        dest.clear();
+        dest.position(nextRow * width * 4);
+        GLES20.glReadPixels(0, nextRow, width, rows, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                dest);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        longestBandNanos = Math.max(longestBandNanos, System.nanoTime() - start);
+        nextRow += rows;
+        if(nextRow < height)
+            return false;
+        dest.clear();
+        dest = null;
+        return true;
+    }
+
+    /**
+     * Longest time a single {@link #readRows()} call of the current or last image took, i.e.
+     * the longest the render thread was held up by it.
+     */
+    public long getLongestBandNanos()
+    {
+        return longestBandNanos;
+    }
+
+    public void release()
+    {
+        framebuffer.release();
+        shader.release();
+        pixels = null;
+        dest = null;
+        width = 0;
+        height = 0;
+    }
+
+    /**
+     * Full-screen quad sampling an external (camera) texture.
+     */
+    private static class ExternalTextureShader extends GLES20Shader
+    {
+        public ExternalTextureShader()
+        {
+            super(DEFAULT_VERTEX_SHADER, FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void draw(int texName)
+        {
+            useProgram();
+
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, getVertexBufferName());
+            GLES20.glEnableVertexAttribArray(getHandle("aPosition"));
+            GLES20.glVertexAttribPointer(getHandle("aPosition"), VERTICES_DATA_POS_SIZE,
+                    GLES20.GL_FLOAT, false, VERTICES_DATA_STRIDE_BYTES, VERTICES_DATA_POS_OFFSET);
+            GLES20.glEnableVertexAttribArray(getHandle("aTextureCoord"));
+            GLES20.glVertexAttribPointer(getHandle("aTextureCoord"), VERTICES_DATA_UV_SIZE,
+                    GLES20.GL_FLOAT, false, VERTICES_DATA_STRIDE_BYTES, VERTICES_DATA_UV_OFFSET);
+
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GL_TEXTURE_EXTERNAL_OES, texName);
+            GLES20.glUniform1i(getHandle("sTexture"), 0);
+
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+            GLES20.glDisableVertexAttribArray(getHandle("aPosition"));
+            GLES20.glDisableVertexAttribArray(getHandle("aTextureCoord"));
+            GLES20.glBindTexture(GL_TEXTURE_EXTERNAL_OES, 0);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+    }
+}
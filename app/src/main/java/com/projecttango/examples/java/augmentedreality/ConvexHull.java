@@ -0,0 +1,520 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.Arrays;
+
+/**
+ * 3D convex hull by quickhull, computed over packed float coordinates.
+ * Faces are triangles kept in flat arrays (vertices, neighbours across each edge and plane), and
+ * the points still outside a face are threaded through an index array as a linked list, so the
+ * whole construction runs on a handful of reusable arrays. Each step takes the furthest point of a
+ * face, walks the faces it can see to find the horizon and replaces them with a cone of new faces
+ * from the horizon to that point. Only the points of the replaced faces are reassigned.
+ * <p/>
+ * Points closer than the tolerance to a face are treated as lying on it, which keeps noisy,
+ * nearly flat regions of a scan from producing thousands of sliver faces. The result is a closed
+ * triangle mesh with counter-clockwise, outward facing triangles.
+ */
+public class ConvexHull
+{
+    private static final int NONE = -1;
+
+    private float tolerance = 0.001f;
+    // Numerical precision of plane tests, and the distance below which points are dropped.
+    private double epsilon;
+    private double threshold;
+
+    private float[] xyz;
+    private int size;
+
+    // Per face: three vertices, the faces across edges v0-v1, v1-v2 and v2-v0, and the plane
+    // (nx, ny, nz, d) with a unit normal pointing out of the hull.
+    private int[] faceVertices = new int[0];
+    private int[] faceNeighbors = new int[0];
+    private double[] facePlanes = new double[0];
+    private boolean[] faceAlive = new boolean[0];
+    private int[] outsideHead = new int[0];
+    private int[] furthest = new int[0];
+    private double[] furthestDistance = new double[0];
+    private int[] faceMark = new int[0];
+    private int faceCount;
+    private int[] freeFaces = new int[0];
+    private int freeCount;
+    private int mark;
+
+    // Per point: next point in the same outside list, and the new face starting at a horizon
+    // vertex while a cone is being built.
+    private int[] nextOutside = new int[0];
+    private int[] coneFace = new int[0];
+
+    private int[] pending = new int[16];
+    private int[] visible = new int[16];
+    private int[] stackFace = new int[16];
+    private int[] stackStep = new int[16];
+    private int[] stackStart = new int[16];
+    private int[] horizonFace = new int[16];
+    private int[] horizonEdge = new int[16];
+    private int[] newFaces = new int[16];
+    private final int[] extremes = new int[6];
+
+    // Result mesh.
+    private final PointBuffer vertices = new PointBuffer();
+    private int[] triangles = new int[0];
+    private int triangleCount;
+    private int[] remap = new int[0];
+
+    /**
+     * Points within this distance of a face count as inside the hull. It must be positive: with
+     * zero tolerance, dense nearly co-spherical input leaves numerically inverted slivers.
+     */
+    public void setTolerance(float tolerance)
+    {
+        if(!(tolerance > 0))
+            throw new IllegalArgumentException("Tolerance must be positive: " + tolerance);
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Hull vertices, indexed by {@link #getTriangles()}.
+     */
+    public PointBuffer getVertices()
+    {
+        return vertices;
+    }
+
+    /**
+     * Triangle vertex indices, three per triangle; only the first {@code 3 * getTriangleCount()}
+     * entries are meaningful.
+     */
+    public int[] getTriangles()
+    {
+        return triangles;
+    }
+
+    public int getTriangleCount()
+    {
+        return triangleCount;
+    }
+
+    public boolean isEmpty()
+    {
+        return triangleCount == 0;
+    }
+
+    public boolean compute(PointBuffer points)
+    {
+        return compute(points.getXyzArray(), points.size());
+    }
+
+    /**
+     * Computes the hull of the first {@code count} points of {@code xyz}. Returns false, leaving
+     * an empty mesh, if the points do not span a volume.
+     */
+    public boolean compute(float[] xyz, int count)
+    {
+        this.xyz = xyz;
+        this.size = count;
+        vertices.clear();
+        triangleCount = 0;
+        faceCount = 0;
+        freeCount = 0;
+        if(count < 4)
+            return false;
+        if(nextOutside.length < count) {
+            nextOutside = new int[count];
+            coneFace = new int[count];
+            remap = new int[count];
+        }
+
+        // Rounding error of a plane distance grows with the magnitude of the coordinates.
+        float extentX = 0, extentY = 0, extentZ = 0;
+        for(int k = 0; k < count * 3; k += 3) {
+            extentX = Math.max(extentX, Math.abs(xyz[k]));
+            extentY = Math.max(extentY, Math.abs(xyz[k + 1]));
+            extentZ = Math.max(extentZ, Math.abs(xyz[k + 2]));
+        }
+        epsilon = 3 * (extentX + extentY + extentZ) * Math.ulp(1.0f);
+        threshold = Math.max(tolerance, epsilon);
+
+        if(!createSimplex())
+            return false;
+
+        int pendingCount = 0;
+        for(int f = 0; f < faceCount; f++) {
+            if(outsideHead[f] != NONE) {
+                pending = push(pending, pendingCount++, f);
+            }
+        }
+        while(pendingCount > 0) {
+            int face = pending[--pendingCount];
+            if(!faceAlive[face] || outsideHead[face] == NONE)
+                continue;
+            int created = addPoint(face);
+            for(int i = 0; i < created; i++) {
+                if(outsideHead[newFaces[i]] != NONE) {
+                    pending = push(pending, pendingCount++, newFaces[i]);
+                }
+            }
+        }
+
+        buildMesh();
+        return true;
+    }
+
+    /**
+     * Volume enclosed by the hull.
+     */
+    public double getVolume()
+    {
+        if(triangleCount == 0)
+            return 0;
+        float[] v = vertices.getXyzArray();
+        double ox = v[0], oy = v[1], oz = v[2];
+        double volume = 0;
+        for(int t = 0; t < triangleCount * 3; t += 3) {
+            int a = triangles[t] * 3, b = triangles[t + 1] * 3, c = triangles[t + 2] * 3;
+            double ax = v[a] - ox, ay = v[a + 1] - oy, az = v[a + 2] - oz;
+            double bx = v[b] - ox, by = v[b + 1] - oy, bz = v[b + 2] - oz;
+            double cx = v[c] - ox, cy = v[c + 1] - oy, cz = v[c + 2] - oz;
+            volume += ax * (by * cz - bz * cy) + ay * (bz * cx - bx * cz) + az * (bx * cy - by * cx);
+        }
+        return volume / 6;
+    }
+
+    /**
+     * Surface area of the hull.
+     */
+    public double getArea()
+    {
+        float[] v = vertices.getXyzArray();
+        double area = 0;
+        for(int t = 0; t < triangleCount * 3; t += 3) {
+            int a = triangles[t] * 3, b = triangles[t + 1] * 3, c = triangles[t + 2] * 3;
+            double ux = v[b] - v[a], uy = v[b + 1] - v[a + 1], uz = v[b + 2] - v[a + 2];
+            double wx = v[c] - v[a], wy = v[c + 1] - v[a + 1], wz = v[c + 2] - v[a + 2];
+            double nx = uy * wz - uz * wy, ny = uz * wx - ux * wz, nz = ux * wy - uy * wx;
+            area += Math.sqrt(nx * nx + ny * ny + nz * nz);
+        }
+        return area / 2;
+    }
+
+    /**
+     * Builds the initial tetrahedron from extreme points and distributes all points over its
+     * outside sets.
+     */
+    private boolean createSimplex()
+    {
+        // The most distant pair among the axis extremes.
+        Arrays.fill(extremes, 0);
+        for(int i = 0, k = 0; i < size; i++, k += 3) {
+            for(int axis = 0; axis < 3; axis++) {
+                if(xyz[k + axis] < xyz[extremes[axis * 2] * 3 + axis]) {
+                    extremes[axis * 2] = i;
+                }
+                if(xyz[k + axis] > xyz[extremes[axis * 2 + 1] * 3 + axis]) {
+                    extremes[axis * 2 + 1] = i;
+                }
+            }
+        }
+        int p0 = 0, p1 = 0;
+        double best = -1;
+        for(int i = 0; i < 6; i++) {
+            for(int j = i + 1; j < 6; j++) {
+                double d = distanceSquared(extremes[i], extremes[j]);
+                if(d > best) {
+                    best = d;
+                    p0 = extremes[i];
+                    p1 = extremes[j];
+                }
+            }
+        }
+        if(best <= epsilon * epsilon)
+            return false;
+
+        // Furthest from the line p0-p1.
+        int p2 = NONE;
+        best = epsilon * epsilon;
+        double lx = xyz[p1 * 3] - xyz[p0 * 3], ly = xyz[p1 * 3 + 1] - xyz[p0 * 3 + 1];
+        double lz = xyz[p1 * 3 + 2] - xyz[p0 * 3 + 2];
+        double lengthSquared = lx * lx + ly * ly + lz * lz;
+        for(int i = 0, k = 0; i < size; i++, k += 3) {
+            double dx = xyz[k] - xyz[p0 * 3], dy = xyz[k + 1] - xyz[p0 * 3 + 1];
+            double dz = xyz[k + 2] - xyz[p0 * 3 + 2];
+            double cx = dy * lz - dz * ly, cy = dz * lx - dx * lz, cz = dx * ly - dy * lx;
+            double d = (cx * cx + cy * cy + cz * cz) / lengthSquared;
+            if(d > best) {
+                best = d;
+                p2 = i;
+            }
+        }
+        if(p2 == NONE)
+            return false;
+
+        // Furthest from the plane p0-p1-p2.
+        ensureFaces(4);
+        int base = newFace(p0, p1, p2);
+        int p3 = NONE;
+        best = epsilon;
+        for(int i = 0; i < size; i++) {
+            double d = Math.abs(distance(base, i));
+            if(d > best) {
+                best = d;
+                p3 = i;
+            }
+        }
+        if(p3 == NONE)
+            return false;
+
+        // Orient the base away from the apex, then close the tetrahedron.
+        if(distance(base, p3) > 0) {
+            faceCount = 0;
+            base = newFace(p0, p2, p1);
+        }
+        int a = faceVertices[base * 3], b = faceVertices[base * 3 + 1], c = faceVertices[base * 3 + 2];
+        int f0 = newFace(b, a, p3);
+        int f1 = newFace(c, b, p3);
+        int f2 = newFace(a, c, p3);
+        link(base, 0, f0, 0);
+        link(base, 1, f1, 0);
+        link(base, 2, f2, 0);
+        link(f0, 1, f2, 2);
+        link(f1, 1, f0, 2);
+        link(f2, 1, f1, 2);
+
+        for(int i = 0; i < size; i++) {
+            if(i == p0 || i == p1 || i == p2 || i == p3)
+                continue;
+            for(int f = 0; f < 4; f++) {
+                if(assign(f, i))
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the furthest outside point of {@code face} to the hull and returns the number of new
+     * faces, which are left in {@code newFaces}.
+     */
+    private int addPoint(int face)
+    {
+        int eye = furthest[face];
+        mark++;
+
+        // Depth-first search over the faces the eye can see. Each face continues after the edge
+        // it was entered through, which lists the horizon edges in order around the eye.
+        int visibleCount = 0, horizonCount = 0, depth = 0;
+        faceMark[face] = mark;
+        visible = push(visible, visibleCount++, face);
+        pushStack(depth++, face, 0);
+        while(depth > 0) {
+            int top = depth - 1;
+            int current = stackFace[top];
+            int step = stackStep[top]++;
+            if(step == 3) {
+                depth--;
+                continue;
+            }
+            int edge = (stackStart[top] + step) % 3;
+            int neighbor = faceNeighbors[current * 3 + edge];
+            if(faceMark[neighbor] == mark)
+                continue;
+            if(distance(neighbor, eye) > epsilon) {
+                faceMark[neighbor] = mark;
+                visible = push(visible, visibleCount++, neighbor);
+                pushStack(depth++, neighbor, (edgeTo(neighbor, current) + 1) % 3);
+            } else {
+                horizonFace = push(horizonFace, horizonCount, current);
+                horizonEdge = push(horizonEdge, horizonCount++, edge);
+            }
+        }
+
+        // Cone of new faces from the horizon to the eye.
+        ensureFaces(horizonCount);
+        if(newFaces.length < horizonCount) {
+            newFaces = new int[horizonCount * 2];
+        }
+        for(int i = 0; i < horizonCount; i++) {
+            int visibleFace = horizonFace[i], edge = horizonEdge[i];
+            int a = faceVertices[visibleFace * 3 + edge];
+            int b = faceVertices[visibleFace * 3 + (edge + 1) % 3];
+            int outer = faceNeighbors[visibleFace * 3 + edge];
+            int created = newFace(a, b, eye);
+            link(created, 0, outer, edgeTo(outer, visibleFace));
+            coneFace[a] = created;
+            newFaces[i] = created;
+        }
+        for(int i = 0; i < horizonCount; i++) {
+            int created = newFaces[i];
+            int b = faceVertices[created * 3 + 1];
+            link(created, 1, coneFace[b], 2);
+        }
+
+        // Hand the outside points of the replaced faces to the new ones, then recycle them.
+        for(int v = 0; v < visibleCount; v++) {
+            int dead = visible[v];
+            faceAlive[dead] = false;
+            for(int i = outsideHead[dead]; i != NONE; ) {
+                int next = nextOutside[i];
+                if(i != eye) {
+                    for(int n = 0; n < horizonCount; n++) {
+                        if(assign(newFaces[n], i))
+                            break;
+                    }
+                }
+                i = next;
+            }
+            outsideHead[dead] = NONE;
+            freeFaces = push(freeFaces, freeCount++, dead);
+        }
+        return horizonCount;
+    }
+
+    /**
+     * Adds point {@code i} to the outside set of {@code face} if it lies above it.
+     */
+    private boolean assign(int face, int i)
+    {
+        double d = distance(face, i);
+        if(d <= threshold)
+            return false;
+        nextOutside[i] = outsideHead[face];
+        outsideHead[face] = i;
+        if(d > furthestDistance[face]) {
+            furthestDistance[face] = d;
+            furthest[face] = i;
+        }
+        return true;
+    }
+
+    private int newFace(int a, int b, int c)
+    {
+        int f = freeCount > 0 ? freeFaces[--freeCount] : faceCount++;
+        faceVertices[f * 3] = a;
+        faceVertices[f * 3 + 1] = b;
+        faceVertices[f * 3 + 2] = c;
+        faceAlive[f] = true;
+        outsideHead[f] = NONE;
+        furthest[f] = NONE;
+        furthestDistance[f] = 0;
+
+        int ka = a * 3, kb = b * 3, kc = c * 3;
+        double ux = xyz[kb] - xyz[ka], uy = xyz[kb + 1] - xyz[ka + 1], uz = xyz[kb + 2] - xyz[ka + 2];
+        double vx = xyz[kc] - xyz[ka], vy = xyz[kc + 1] - xyz[ka + 1], vz = xyz[kc + 2] - xyz[ka + 2];
+        double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if(length > 0) {
+            nx /= length;
+            ny /= length;
+            nz /= length;
+        }
+        facePlanes[f * 4] = nx;
+        facePlanes[f * 4 + 1] = ny;
+        facePlanes[f * 4 + 2] = nz;
+        facePlanes[f * 4 + 3] = -(nx * xyz[ka] + ny * xyz[ka + 1] + nz * xyz[ka + 2]);
+        return f;
+    }
+
+    private void link(int f, int edge, int g, int otherEdge)
+    {
+        faceNeighbors[f * 3 + edge] = g;
+        faceNeighbors[g * 3 + otherEdge] = f;
+    }
+
+    /**
+     * The edge of {@code face} shared with {@code neighbor}.
+     */
+    private int edgeTo(int face, int neighbor)
+    {
+        int k = face * 3;
+        return faceNeighbors[k] == neighbor ? 0 : faceNeighbors[k + 1] == neighbor ? 1 : 2;
+    }
+
+    private double distance(int face, int i)
+    {
+        int p = face * 4, k = i * 3;
+        return facePlanes[p] * xyz[k] + facePlanes[p + 1] * xyz[k + 1]
+                + facePlanes[p + 2] * xyz[k + 2] + facePlanes[p + 3];
+    }
+
+    private double distanceSquared(int i, int j)
+    {
+        double dx = xyz[i * 3] - xyz[j * 3], dy = xyz[i * 3 + 1] - xyz[j * 3 + 1];
+        double dz = xyz[i * 3 + 2] - xyz[j * 3 + 2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private void pushStack(int depth, int face, int start)
+    {
+        if(depth == stackFace.length) {
+            stackFace = Arrays.copyOf(stackFace, depth * 2);
+            stackStep = Arrays.copyOf(stackStep, depth * 2);
+            stackStart = Arrays.copyOf(stackStart, depth * 2);
+        }
+        stackFace[depth] = face;
+        stackStep[depth] = 0;
+        stackStart[depth] = start;
+    }
+
+    private static int[] push(int[] array, int index, int value)
+    {
+        if(index == array.length) {
+            array = Arrays.copyOf(array, Math.max(index * 2, 16));
+        }
+        array[index] = value;
+        return array;
+    }
+
+    /**
+     * Makes room for {@code extra} more faces beyond the current high-water mark.
+     */
+    private void ensureFaces(int extra)
+    {
+        int needed = faceCount + extra;
+        if(needed <= faceAlive.length)
+            return;
+        int capacity = Math.max(needed, faceAlive.length + (faceAlive.length >> 1) + 16);
+        faceVertices = Arrays.copyOf(faceVertices, capacity * 3);
+        faceNeighbors = Arrays.copyOf(faceNeighbors, capacity * 3);
+        facePlanes = Arrays.copyOf(facePlanes, capacity * 4);
+        faceAlive = Arrays.copyOf(faceAlive, capacity);
+        outsideHead = Arrays.copyOf(outsideHead, capacity);
+        furthest = Arrays.copyOf(furthest, capacity);
+        furthestDistance = Arrays.copyOf(furthestDistance, capacity);
+        faceMark = Arrays.copyOf(faceMark, capacity);
+    }
+
+    /**
+     * Collects the live faces into the result mesh, numbering the hull vertices compactly.
+     */
+    private void buildMesh()
+    {
+        int live = 0;
+        for(int f = 0; f < faceCount; f++) {
+            if(faceAlive[f]) {
+                live++;
+            }
+        }
+        if(triangles.length < live * 3) {
+            triangles = new int[live * 3];
+        }
+        for(int f = 0; f < faceCount; f++) {
+            if(!faceAlive[f])
+                continue;
+            for(int j = 0; j < 3; j++) {
+                remap[faceVertices[f * 3 + j]] = NONE;
+            }
+        }
+        for(int f = 0; f < faceCount; f++) {
+            if(!faceAlive[f])
+                continue;
+            for(int j = 0; j < 3; j++) {
+                int v = faceVertices[f * 3 + j];
+                if(remap[v] == NONE) {
+                    remap[v] = vertices.add(xyz[v * 3], xyz[v * 3 + 1], xyz[v * 3 + 2]);
+                }
+                triangles[triangleCount * 3 + j] = remap[v];
+            }
+            triangleCount++;
+        }
+    }
+}
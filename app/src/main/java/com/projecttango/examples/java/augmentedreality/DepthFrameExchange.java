@@ -0,0 +1,140 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free handoff of the latest depth frame from one producer thread (the Tango callback) to
+ * one consumer thread (the renderer), by triple buffering. The producer fills its own slot and
+ * publishes it by swapping it with the shared middle slot; the consumer takes the middle slot in
+ * exchange for the one it had read. The two threads never touch the same slot, neither ever
+ * waits, and the consumer always gets the newest complete frame. Frames the consumer never
+ * picked up are overwritten, and counted as dropped.
+ */
+public class DepthFrameExchange
+{
+    // The shared state is the index of the middle slot, plus this bit when it holds a frame the
+    // consumer has not taken yet.
+    private static final int FRESH = 4;
+    private static final int INDEX_MASK = 3;
+
+    /**
+     * Depth frame in the depth camera frame. A frame returned by {@link #acquire()} stays valid
+     * and unchanged until the next call to it.
+     */
+    public static class Frame
+    {
+        final float[] xyz;
+        final FloatBuffer buffer;
+        int count;
+        double timestamp;
+        long publishTime;
+
+        Frame(int maxPoints)
+        {
+            xyz = new float[maxPoints * 3];
+            buffer = FloatBuffer.wrap(xyz);
+        }
+
+        /**
+         * Points as x, y, z triplets, from index 0.
+         */
+        public FloatBuffer getBuffer()
+        {
+            return buffer;
+        }
+
+        public int getCount()
+        {
+            return count;
+        }
+
+        public double getTimestamp()
+        {
+            return timestamp;
+        }
+    }
+
+    private final int maxPoints;
+    private final Frame[] slots = new Frame[3];
+    private final AtomicInteger middle = new AtomicInteger(1);
+    // Producer side.
+    private int writeIndex = 0;
+    private volatile long publishedCount;
+    private volatile long droppedCount;
+    // Consumer side.
+    private int readIndex = 2;
+    private boolean hasFrame;
+    private volatile long latency;
+
+    public DepthFrameExchange(int maxPoints)
+    {
+        this.maxPoints = maxPoints;
+        for(int i = 0; i < slots.length; i++) {
+            slots[i] = new Frame(maxPoints);
+        }
+    }
+
+    /**
+     * Copies {@code count} points of {@code xyz}, read from index 0, and publishes them as the
+     * latest frame. Points past the capacity are ignored.
+     * <p/>
+     * NOTE: This must only be called from the producer thread.
+     */
+    public void publish(FloatBuffer xyz, int count, double timestamp)
+    {
+        Frame frame = slots[writeIndex];
+        frame.count = Math.min(count, maxPoints);
+        int position = xyz.position();
+        xyz.position(0);
+        xyz.get(frame.xyz, 0, frame.count * 3);
+        xyz.position(position);
+        frame.timestamp = timestamp;
+        frame.publishTime = System.nanoTime();
+
+        int previous = middle.getAndSet(writeIndex | FRESH);
+        writeIndex = previous & INDEX_MASK;
+        if((previous & FRESH) != 0) {
+            droppedCount++;
+        }
+        publishedCount++;
+    }
+
+    /**
+     * Returns the newest published frame, or null if nothing was published yet. A frame that was
+     * already returned is returned again until a newer one arrives; compare timestamps to tell.
+     * <p/>
+     * NOTE: This must only be called from the consumer thread.
+     */
+    public Frame acquire()
+    {
+        if((middle.get() & FRESH) != 0) {
+            int previous = middle.getAndSet(readIndex);
+            readIndex = previous & INDEX_MASK;
+            hasFrame = true;
+            latency = System.nanoTime() - slots[readIndex].publishTime;
+        }
+        return hasFrame ? slots[readIndex] : null;
+    }
+
+    public long getPublishedCount()
+    {
+        return publishedCount;
+    }
+
+    /**
+     * Number of frames overwritten by a newer one before the consumer took them.
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * Time from publishing to taking the last frame the consumer took, in nanoseconds.
+     */
+    public long getLatencyNanos()
+    {
+        return latency;
+    }
+}
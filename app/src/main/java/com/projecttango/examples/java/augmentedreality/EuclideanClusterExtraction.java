@@ -0,0 +1,149 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Splits a point cloud into connected components, where two points are connected if they are
+ * closer than a tolerance. Components are flood filled over a {@link SpatialHashGrid} with the
+ * tolerance as cell size, so every point is queued once and only its 27 surrounding cells are
+ * searched, which keeps extraction linear in the number of points.
+ */
+public class EuclideanClusterExtraction
+{
+    private float tolerance = 0.02f;
+    private int minClusterSize = 50;
+
+    private final SpatialHashGrid grid = new SpatialHashGrid();
+    private float[] xyz;
+    private int size;
+    private int[] labels = new int[0];
+    private int[] queue = new int[0];
+    private int[] clusterSizes = new int[16];
+    private int clusterCount;
+
+    /**
+     * Largest gap allowed between neighbouring points of one cluster.
+     */
+    public void setTolerance(float tolerance)
+    {
+        this.tolerance = tolerance;
+    }
+
+    public float getTolerance()
+    {
+        return tolerance;
+    }
+
+    /**
+     * Clusters with fewer points are treated as noise by {@link #nearestToRay}.
+     */
+    public void setMinClusterSize(int minClusterSize)
+    {
+        this.minClusterSize = minClusterSize;
+    }
+
+    /**
+     * Labels every point of {@code points} with its cluster and returns the number of clusters.
+     * The labels stay valid until the next call and refer to the points by index, so the buffer
+     * must not change in between.
+     */
+    public int extract(PointBuffer points)
+    {
+        xyz = points.getXyzArray();
+        size = points.size();
+        if(labels.length < size) {
+            labels = new int[size];
+            queue = new int[size];
+        }
+        Arrays.fill(labels, 0, size, -1);
+        grid.build(xyz, size, tolerance);
+
+        clusterCount = 0;
+        for(int seed = 0; seed < size; seed++) {
+            if(labels[seed] != -1)
+                continue;
+            int label = clusterCount++;
+            labels[seed] = label;
+            queue[0] = seed;
+            int head = 0, tail = 1;
+            while(head < tail) {
+                int k = queue[head++] * 3;
+                tail = grid.grow(xyz[k], xyz[k + 1], xyz[k + 2], tolerance, labels, label, queue,
+                        tail);
+            }
+            if(label == clusterSizes.length) {
+                clusterSizes = Arrays.copyOf(clusterSizes, label * 2);
+            }
+            clusterSizes[label] = tail;
+        }
+        return clusterCount;
+    }
+
+    public int getClusterCount()
+    {
+        return clusterCount;
+    }
+
+    public int getClusterSize(int cluster)
+    {
+        return clusterSizes[cluster];
+    }
+
+    public int getLabel(int index)
+    {
+        return labels[index];
+    }
+
+    /**
+     * Picks the cluster a viewing ray points at: the one with the closest point to the origin
+     * among those passing within the tolerance of the ray or, if the ray misses every cluster,
+     * the one passing nearest to it. Clusters below the minimum size are ignored.
+     *
+     * @return the cluster, or -1 if every cluster is too small
+     */
+    public int nearestToRay(float ox, float oy, float oz, float dx, float dy, float dz)
+    {
+        float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        dx /= length;
+        dy /= length;
+        dz /= length;
+        float toleranceSquared = tolerance * tolerance;
+
+        int hit = -1, closest = -1;
+        float hitDepth = Float.MAX_VALUE, closestDistance = Float.MAX_VALUE;
+        for(int i = 0, k = 0; i < size; i++, k += 3) {
+            int label = labels[i];
+            if(clusterSizes[label] < minClusterSize)
+                continue;
+            float px = xyz[k] - ox, py = xyz[k + 1] - oy, pz = xyz[k + 2] - oz;
+            float depth = px * dx + py * dy + pz * dz;
+            if(depth < 0)
+                continue;
+            float distance = px * px + py * py + pz * pz - depth * depth;
+            if(distance <= toleranceSquared) {
+                if(depth < hitDepth) {
+                    hitDepth = depth;
+                    hit = label;
+                }
+            } else if(distance < closestDistance) {
+                closestDistance = distance;
+                closest = label;
+            }
+        }
+        return hit != -1 ? hit : closest;
+    }
+
+    /**
+     * Sets the bits of the points in {@code cluster}.
+     */
+    public void select(int cluster, BitSet out)
+    {
+        out.clear();
+        for(int i = 0; i < size; i++) {
+            if(labels[i] == cluster) {
+                out.set(i);
+            }
+        }
+    }
+}
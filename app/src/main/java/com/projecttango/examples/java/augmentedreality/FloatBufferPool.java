@@ -0,0 +1,89 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct float buffers of one fixed capacity, so buffers handed between threads on every
+ * capture are recycled instead of allocated. A buffer is acquired on one thread and may be
+ * released on another. When the pool is empty a new buffer is allocated and counted as a miss;
+ * buffers released while the pool is full are left to the garbage collector.
+ */
+public class FloatBufferPool
+{
+    private final int capacity;
+    private final ArrayBlockingQueue<FloatBuffer> free;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity floats per buffer
+     * @param maxPooled most buffers kept for reuse
+     */
+    public FloatBufferPool(int capacity, int maxPooled)
+    {
+        if(capacity <= 0 || maxPooled <= 0)
+            throw new IllegalArgumentException("Invalid pool: " + maxPooled + " x " + capacity);
+        this.capacity = capacity;
+        this.free = new ArrayBlockingQueue<FloatBuffer>(maxPooled);
+    }
+
+    public int getBufferCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns a cleared buffer of {@link #getBufferCapacity()} floats, reused if one is free.
+     */
+    public FloatBuffer acquire()
+    {
+        FloatBuffer buffer = free.poll();
+        if(buffer == null) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+        }
+        hits.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns {@code buffer} to the pool. The caller must not use it afterwards, and must release
+     * each acquired buffer at most once: the pool does not track which buffers it handed out, so
+     * any direct buffer of the right capacity is taken, and a buffer released again after being
+     * acquired by someone else ends up with two owners. Null, heap and wrongly sized buffers are
+     * ignored, and so is a second release of a buffer that is still waiting in the pool.
+     */
+    public void release(FloatBuffer buffer)
+    {
+        if(buffer == null || !buffer.isDirect() || buffer.capacity() != capacity)
+            return;
+        // FloatBuffer.equals compares contents, so look for the same instance by hand; the pool
+        // holds a handful of buffers at most.
+        for(FloatBuffer pooled : free) {
+            if(pooled == buffer)
+                return;
+        }
+        free.offer(buffer);
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public int getFreeCount()
+    {
+        return free.size();
+    }
+}
@@ -0,0 +1,256 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.joml.Matrix4f;
+
+/**
+ * Point-to-plane ICP.
+ * Aligns a source cloud to a target cloud with normals by repeatedly pairing each source point
+ * with its nearest target point and solving the linearised point-to-plane least squares problem
+ * for a small rigid motion. The 6x6 normal equations are accumulated and solved by Cholesky
+ * decomposition in preallocated arrays, so an alignment allocates nothing once the target index
+ * has been built.
+ * <p/>
+ * Iteration stops when the update falls below the convergence thresholds, when the iteration
+ * budget is spent or when too few correspondences remain.
+ */
+public class IcpRegistration
+{
+    private static final int MIN_CORRESPONDENCES = 32;
+
+    private int maxIterations = 15;
+    private float maxCorrespondenceDistance = 0.05f;
+    private float convergenceRotation = 1e-4f;
+    private float convergenceTranslation = 1e-4f;
+    private int maxSourcePoints = 8000;
+
+    private PointBuffer target;
+    private final KdTree targetIndex = new KdTree();
+
+    private final Matrix4f transform = new Matrix4f();
+    private final Matrix4f increment = new Matrix4f();
+    private final Matrix4f scratch = new Matrix4f();
+    private final double[] ata = new double[36];
+    private final double[] atb = new double[6];
+    private final double[] solution = new double[6];
+    private final double[] jacobian = new double[6];
+
+    private int iterations;
+    private int correspondences;
+    private float rmsError;
+    private boolean converged;
+
+    public void setMaxIterations(int maxIterations)
+    {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Pairs further apart than this are ignored.
+     */
+    public void setMaxCorrespondenceDistance(float distance)
+    {
+        this.maxCorrespondenceDistance = distance;
+    }
+
+    public void setConvergence(float rotation, float translation)
+    {
+        this.convergenceRotation = rotation;
+        this.convergenceTranslation = translation;
+    }
+
+    /**
+     * Larger sources are sampled with a fixed stride down to about this many points.
+     */
+    public void setMaxSourcePoints(int maxSourcePoints)
+    {
+        this.maxSourcePoints = maxSourcePoints;
+    }
+
+    /**
+     * Sets the cloud to align against. It must carry normals and must not change until the next
+     * call.
+     */
+    public void setTarget(PointBuffer target)
+    {
+        if(!target.hasNormals())
+            throw new IllegalArgumentException("Point-to-plane ICP needs target normals");
+        this.target = target;
+        targetIndex.build(target);
+    }
+
+    public boolean hasTarget()
+    {
+        return target != null && target.size() >= MIN_CORRESPONDENCES;
+    }
+
+    /**
+     * Estimates the rigid transform that moves {@code source} onto the target.
+     *
+     * @param result receives the estimated transform, or identity if alignment failed
+     * @return true if the estimate converged within the iteration budget
+     */
+    public boolean align(PointBuffer source, Matrix4f result)
+    {
+        transform.identity();
+        iterations = 0;
+        correspondences = 0;
+        rmsError = 0;
+        converged = false;
+
+        if(!hasTarget() || source.size() < MIN_CORRESPONDENCES) {
+            result.identity();
+            return false;
+        }
+
+        int stride = Math.max(1, source.size() / maxSourcePoints);
+        while(iterations < maxIterations && !converged) {
+            iterations++;
+            if(!accumulate(source.getXyzArray(), source.size(), stride) || !solve()) {
+                transform.identity();
+                break;
+            }
+
+            double wx = solution[0], wy = solution[1], wz = solution[2];
+            double angle = Math.sqrt(wx * wx + wy * wy + wz * wz);
+            double shift = Math.sqrt(solution[3] * solution[3] + solution[4] * solution[4]
+                    + solution[5] * solution[5]);
+            increment.translation((float) solution[3], (float) solution[4], (float) solution[5]);
+            if(angle > 0) {
+                increment.rotate((float) angle, (float) (wx / angle), (float) (wy / angle),
+                        (float) (wz / angle));
+            }
+            increment.mul(transform, scratch);
+            transform.set(scratch);
+
+            converged = angle < convergenceRotation && shift < convergenceTranslation;
+        }
+
+        result.set(transform);
+        return converged;
+    }
+
+    public int getIterations()
+    {
+        return iterations;
+    }
+
+    public int getCorrespondences()
+    {
+        return correspondences;
+    }
+
+    /**
+     * Root mean square point-to-plane distance of the last iteration.
+     */
+    public float getRmsError()
+    {
+        return rmsError;
+    }
+
+    /**
+     * Builds the normal equations for the current transform. Returns false if there were too
+     * few correspondences.
+     */
+    private boolean accumulate(float[] xyz, int count, int stride)
+    {
+        float[] targetXyz = target.getXyzArray();
+        float[] targetNormals = target.getNormalArray();
+        final Matrix4f m = transform;
+        for(int i = 0; i < 36; i++) {
+            ata[i] = 0;
+        }
+        for(int i = 0; i < 6; i++) {
+            atb[i] = 0;
+        }
+        double error = 0;
+        int pairs = 0;
+
+        for(int k = 0; k < count * 3; k += 3 * stride) {
+            float sx = xyz[k], sy = xyz[k + 1], sz = xyz[k + 2];
+            float px = m.m00 * sx + m.m10 * sy + m.m20 * sz + m.m30;
+            float py = m.m01 * sx + m.m11 * sy + m.m21 * sz + m.m31;
+            float pz = m.m02 * sx + m.m12 * sy + m.m22 * sz + m.m32;
+
+            int match = targetIndex.nearest(px, py, pz, maxCorrespondenceDistance);
+            if(match < 0)
+                continue;
+            int t = match * 3;
+            float nx = targetNormals[t], ny = targetNormals[t + 1], nz = targetNormals[t + 2];
+            if(nx == 0 && ny == 0 && nz == 0)
+                continue;
+
+            double r = (px - targetXyz[t]) * nx + (py - targetXyz[t + 1]) * ny
+                    + (pz - targetXyz[t + 2]) * nz;
+            // Jacobian of the residual with respect to (rotation vector, translation).
+            double j0 = py * nz - pz * ny;
+            double j1 = pz * nx - px * nz;
+            double j2 = px * ny - py * nx;
+            accumulateRow(j0, j1, j2, nx, ny, nz, r);
+            error += r * r;
+            pairs++;
+        }
+
+        correspondences = pairs;
+        rmsError = pairs > 0 ? (float) Math.sqrt(error / pairs) : 0;
+        return pairs >= MIN_CORRESPONDENCES;
+    }
+
+    private void accumulateRow(double j0, double j1, double j2, double j3, double j4, double j5,
+                               double r)
+    {
+        double[] j = jacobian;
+        j[0] = j0; j[1] = j1; j[2] = j2; j[3] = j3; j[4] = j4; j[5] = j5;
+        for(int row = 0; row < 6; row++) {
+            double jr = j[row];
+            for(int col = 0; col <= row; col++) {
+                ata[row * 6 + col] += jr * j[col];
+            }
+            atb[row] -= jr * r;
+        }
+    }
+
+    /**
+     * Solves ata * solution = atb by Cholesky decomposition of the lower triangle, in place.
+     * Returns false if the system is not positive definite.
+     */
+    private boolean solve()
+    {
+        double[] a = ata;
+        // Light damping keeps directions a planar target leaves unconstrained from blowing up.
+        double damping = 1e-6 * (a[0] + a[7] + a[14] + a[21] + a[28] + a[35]) / 6 + 1e-12;
+        for(int i = 0; i < 6; i++) {
+            a[i * 6 + i] += damping;
+        }
+        for(int row = 0; row < 6; row++) {
+            for(int col = 0; col <= row; col++) {
+                double sum = a[row * 6 + col];
+                for(int k = 0; k < col; k++) {
+                    sum -= a[row * 6 + k] * a[col * 6 + k];
+                }
+                if(row == col) {
+                    if(sum <= 0)
+                        return false;
+                    a[row * 6 + row] = Math.sqrt(sum);
+                } else {
+                    a[row * 6 + col] = sum / a[col * 6 + col];
+                }
+            }
+        }
+        // Forward substitution L y = b, then back substitution L^T x = y.
+        for(int row = 0; row < 6; row++) {
+            double sum = atb[row];
+            for(int k = 0; k < row; k++) {
+                sum -= a[row * 6 + k] * solution[k];
+            }
+            solution[row] = sum / a[row * 6 + row];
+        }
+        for(int row = 5; row >= 0; row--) {
+            double sum = solution[row];
+            for(int k = row + 1; k < 6; k++) {
+                sum -= a[k * 6 + row] * solution[k];
+            }
+            solution[row] = sum / a[row * 6 + row];
+        }
+        return true;
+    }
+}
@@ -0,0 +1,427 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.Arrays;
+
+/**
+ * Static 3D k-d tree over packed float coordinates.
+ * The tree has no node objects: points are copied into tree order, and the subtree over the index
+ * range {@code [lo, hi)} is split at its median {@code (lo + hi) / 2} along the axis stored for
+ * that position. Medians are found by quickselect, so building is O(n log n) on average. Ranges of
+ * at most {@code LEAF_SIZE} points are scanned linearly.
+ * <p/>
+ * Once built, the tree is read-only and queries keep their state on the stack or in the
+ * {@link Neighbors} buffer passed by the caller, so several threads may query one tree as long as
+ * each uses its own buffer.
+ */
+public class KdTree
+{
+    private static final int LEAF_SIZE = 8;
+
+    /**
+     * Reusable result buffer for k-nearest and radius queries. Holds point indices and squared
+     * distances, sorted by increasing distance after each query.
+     */
+    public static class Neighbors
+    {
+        private int[] indices;
+        private float[] distances;
+        private int size;
+        // Heap capacity of the running k-nearest query.
+        private int limit;
+
+        public Neighbors()
+        {
+            this(16);
+        }
+
+        public Neighbors(int capacity)
+        {
+            indices = new int[Math.max(capacity, 1)];
+            distances = new float[Math.max(capacity, 1)];
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * Index of the {@code i}-th neighbour in the array the tree was built from.
+         */
+        public int index(int i)
+        {
+            return indices[i];
+        }
+
+        /**
+         * Squared distance to the {@code i}-th neighbour.
+         */
+        public float distanceSquared(int i)
+        {
+            return distances[i];
+        }
+
+        /**
+         * Squared distance to the farthest neighbour found, or infinity if there is none.
+         */
+        public float maxDistanceSquared()
+        {
+            return size == 0 ? Float.POSITIVE_INFINITY : distances[0];
+        }
+
+        private void reset(int limit)
+        {
+            size = 0;
+            this.limit = limit;
+            if(limit != Integer.MAX_VALUE && indices.length < limit) {
+                indices = new int[limit];
+                distances = new float[limit];
+            }
+        }
+
+        private void append(int index, float distance)
+        {
+            if(size == indices.length) {
+                indices = Arrays.copyOf(indices, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            indices[size] = index;
+            distances[size] = distance;
+            size++;
+        }
+
+        /**
+         * Offers a candidate to the max-heap of the k best, rooted at position 0.
+         */
+        private void offer(int index, float distance)
+        {
+            if(size < limit) {
+                int i = size++;
+                while(i > 0) {
+                    int parent = (i - 1) >> 1;
+                    if(distances[parent] >= distance)
+                        break;
+                    indices[i] = indices[parent];
+                    distances[i] = distances[parent];
+                    i = parent;
+                }
+                indices[i] = index;
+                distances[i] = distance;
+            } else if(distance < distances[0]) {
+                siftDown(0, size, index, distance);
+            }
+        }
+
+        private void siftDown(int i, int end, int index, float distance)
+        {
+            while(true) {
+                int child = 2 * i + 1;
+                if(child >= end)
+                    break;
+                if(child + 1 < end && distances[child + 1] > distances[child]) {
+                    child++;
+                }
+                if(distances[child] <= distance)
+                    break;
+                indices[i] = indices[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            indices[i] = index;
+            distances[i] = distance;
+        }
+
+        /**
+         * Heap sort in place; turns the max-heap into ascending order.
+         */
+        private void sortHeap()
+        {
+            for(int end = size - 1; end > 0; end--) {
+                int index = indices[end];
+                float distance = distances[end];
+                indices[end] = indices[0];
+                distances[end] = distances[0];
+                siftDown(0, end, index, distance);
+            }
+        }
+
+        /**
+         * Heapifies and sorts unordered radius results into ascending order.
+         */
+        private void sortAll()
+        {
+            limit = size;
+            for(int i = (size >> 1) - 1; i >= 0; i--) {
+                siftDown(i, size, indices[i], distances[i]);
+            }
+            sortHeap();
+        }
+    }
+
+    private float[] points = new float[0];
+    private int[] index = new int[0];
+    private byte[] splitAxis = new byte[0];
+    private int size;
+
+    /**
+     * Builds the tree over the first {@code count} interleaved points of {@code xyz}. The
+     * coordinates are copied, so the source may change afterwards.
+     */
+    public void build(float[] xyz, int count)
+    {
+        size = count;
+        if(index.length < count) {
+            points = new float[count * 3];
+            index = new int[count];
+            splitAxis = new byte[count];
+        }
+        System.arraycopy(xyz, 0, points, 0, count * 3);
+        for(int i = 0; i < count; i++) {
+            index[i] = i;
+        }
+        build(0, count);
+    }
+
+    public void build(PointBuffer points)
+    {
+        build(points.getXyzArray(), points.size());
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the index of the closest point within {@code maxDistance}, or -1.
+     */
+    public int nearest(float x, float y, float z, float maxDistance)
+    {
+        float limit = maxDistance * maxDistance;
+        // Squared distances are non-negative, so their float bits order like the floats and can
+        // be packed with the index into one long that the recursion carries instead of an object.
+        long best = (long) Float.floatToIntBits(Float.isInfinite(limit) ? Float.MAX_VALUE : limit)
+                << 32 | 0xffffffffL;
+        best = nearest(0, size, x, y, z, best);
+        int position = (int) best;
+        return position < 0 ? -1 : index[position];
+    }
+
+    /**
+     * Finds up to {@code k} nearest points within {@code maxDistance}, in increasing distance.
+     * Returns the number found.
+     */
+    public int nearestK(float x, float y, float z, int k, float maxDistance, Neighbors result)
+    {
+        result.reset(k);
+        if(k > 0) {
+            nearestK(0, size, x, y, z, maxDistance * maxDistance, result);
+            result.sortHeap();
+        }
+        return result.size;
+    }
+
+    /**
+     * Finds all points within {@code radius}, in increasing distance. Returns the number found.
+     */
+    public int radius(float x, float y, float z, float radius, Neighbors result)
+    {
+        result.reset(Integer.MAX_VALUE);
+        radius(0, size, x, y, z, radius * radius, result);
+        result.sortAll();
+        return result.size;
+    }
+
+    /**
+     * Like {@link #radius} but leaves the results unsorted, which is all a count or a flood fill
+     * needs.
+     */
+    public int radiusUnsorted(float x, float y, float z, float radius, Neighbors result)
+    {
+        result.reset(Integer.MAX_VALUE);
+        radius(0, size, x, y, z, radius * radius, result);
+        return result.size;
+    }
+
+    private void build(int lo, int hi)
+    {
+        if(hi - lo <= LEAF_SIZE)
+            return;
+
+        // Split along the axis of largest spread. Variance rather than extent keeps a few stray
+        // points, such as depth outliers, from forcing splits across a flat surface.
+        double sumX = 0, sumY = 0, sumZ = 0, squaresX = 0, squaresY = 0, squaresZ = 0;
+        for(int k = lo * 3; k < hi * 3; k += 3) {
+            double x = points[k], y = points[k + 1], z = points[k + 2];
+            sumX += x;
+            sumY += y;
+            sumZ += z;
+            squaresX += x * x;
+            squaresY += y * y;
+            squaresZ += z * z;
+        }
+        int n = hi - lo;
+        double spreadX = squaresX - sumX * sumX / n;
+        double spreadY = squaresY - sumY * sumY / n;
+        double spreadZ = squaresZ - sumZ * sumZ / n;
+        int axis = spreadX >= spreadY ? (spreadX >= spreadZ ? 0 : 2) : (spreadY >= spreadZ ? 1 : 2);
+
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, axis);
+        splitAxis[mid] = (byte) axis;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    /**
+     * Quickselect: reorders [left, right] so that position {@code n} holds the element that
+     * would be there if the range were sorted along {@code axis}. The partition is Hoare's, with
+     * both scans stopping at keys equal to the pivot, so runs of equal coordinates, common with
+     * quantised depth and flat surfaces, are split evenly instead of degrading to quadratic time.
+     */
+    private void select(int left, int right, int n, int axis)
+    {
+        while(right > left) {
+            // Median of three pivot.
+            int middle = (left + right) >>> 1;
+            if(coordinate(middle, axis) < coordinate(left, axis)) swap(middle, left);
+            if(coordinate(right, axis) < coordinate(left, axis)) swap(right, left);
+            if(coordinate(middle, axis) < coordinate(right, axis)) swap(middle, right);
+            float pivot = coordinate(right, axis);
+
+            // Afterwards [left, j] is not above the pivot, [i, right] not below it, and anything
+            // in between equals it.
+            int i = left, j = right;
+            while(i <= j) {
+                while(coordinate(i, axis) < pivot) i++;
+                while(coordinate(j, axis) > pivot) j--;
+                if(i <= j) {
+                    swap(i++, j--);
+                }
+            }
+
+            if(n <= j) {
+                right = j;
+            } else if(n >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private float coordinate(int position, int axis)
+    {
+        return points[position * 3 + axis];
+    }
+
+    private void swap(int a, int b)
+    {
+        int ka = a * 3, kb = b * 3;
+        for(int i = 0; i < 3; i++) {
+            float t = points[ka + i];
+            points[ka + i] = points[kb + i];
+            points[kb + i] = t;
+        }
+        int t = index[a];
+        index[a] = index[b];
+        index[b] = t;
+    }
+
+    private float distanceSquared(int position, float x, float y, float z)
+    {
+        int k = position * 3;
+        float dx = points[k] - x, dy = points[k + 1] - y, dz = points[k + 2] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private long nearest(int lo, int hi, float x, float y, float z, long best)
+    {
+        if(hi - lo <= LEAF_SIZE) {
+            for(int i = lo; i < hi; i++) {
+                float d = distanceSquared(i, x, y, z);
+                if(d <= Float.intBitsToFloat((int) (best >>> 32))) {
+                    best = (long) Float.floatToIntBits(d) << 32 | (i & 0xffffffffL);
+                }
+            }
+            return best;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        float d = distanceSquared(mid, x, y, z);
+        if(d <= Float.intBitsToFloat((int) (best >>> 32))) {
+            best = (long) Float.floatToIntBits(d) << 32 | (mid & 0xffffffffL);
+        }
+        int axis = splitAxis[mid];
+        float diff = (axis == 0 ? x : axis == 1 ? y : z) - coordinate(mid, axis);
+        if(diff < 0) {
+            best = nearest(lo, mid, x, y, z, best);
+            if(diff * diff <= Float.intBitsToFloat((int) (best >>> 32))) {
+                best = nearest(mid + 1, hi, x, y, z, best);
+            }
+        } else {
+            best = nearest(mid + 1, hi, x, y, z, best);
+            if(diff * diff <= Float.intBitsToFloat((int) (best >>> 32))) {
+                best = nearest(lo, mid, x, y, z, best);
+            }
+        }
+        return best;
+    }
+
+    private void nearestK(int lo, int hi, float x, float y, float z, float limit,
+                          Neighbors result)
+    {
+        if(hi - lo <= LEAF_SIZE) {
+            for(int i = lo; i < hi; i++) {
+                float d = distanceSquared(i, x, y, z);
+                if(d <= limit) {
+                    result.offer(index[i], d);
+                }
+            }
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        float d = distanceSquared(mid, x, y, z);
+        if(d <= limit) {
+            result.offer(index[mid], d);
+        }
+        int axis = splitAxis[mid];
+        float diff = (axis == 0 ? x : axis == 1 ? y : z) - coordinate(mid, axis);
+        int nearLo = diff < 0 ? lo : mid + 1, nearHi = diff < 0 ? mid : hi;
+        int farLo = diff < 0 ? mid + 1 : lo, farHi = diff < 0 ? hi : mid;
+        nearestK(nearLo, nearHi, x, y, z, limit, result);
+        float bound = result.size < result.limit ? limit : Math.min(limit, result.distances[0]);
+        if(diff * diff <= bound) {
+            nearestK(farLo, farHi, x, y, z, limit, result);
+        }
+    }
+
+    private void radius(int lo, int hi, float x, float y, float z, float limit,
+                        Neighbors result)
+    {
+        if(hi - lo <= LEAF_SIZE) {
+            for(int i = lo; i < hi; i++) {
+                float d = distanceSquared(i, x, y, z);
+                if(d <= limit) {
+                    result.append(index[i], d);
+                }
+            }
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        float d = distanceSquared(mid, x, y, z);
+        if(d <= limit) {
+            result.append(index[mid], d);
+        }
+        int axis = splitAxis[mid];
+        float diff = (axis == 0 ? x : axis == 1 ? y : z) - coordinate(mid, axis);
+        if(diff < 0 || diff * diff <= limit) {
+            radius(lo, mid, x, y, z, limit, result);
+        }
+        if(diff >= 0 || diff * diff <= limit) {
+            radius(mid + 1, hi, x, y, z, limit, result);
+        }
+    }
+}
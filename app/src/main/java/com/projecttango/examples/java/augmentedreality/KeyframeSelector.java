@@ -0,0 +1,163 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+
+import org.joml.Matrix4f;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Decides when a depth frame is worth keeping as a keyframe. A frame qualifies once the depth
+ * camera has moved or turned far enough from the last keyframe, or when too little of what it
+ * sees was in view of the last keyframe. View overlap is estimated from a fixed sample of the
+ * frame's points: the fraction that projects inside the image of the last keyframe's camera.
+ * No frame qualifies while the keyframes already stored exceed the memory budget.
+ */
+public class KeyframeSelector
+{
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    // Points sampled from a frame to estimate the overlap.
+    private static final int OVERLAP_SAMPLES = 256;
+
+    private float translationThreshold = 0.15f;
+    private float rotationThreshold = (float) Math.toRadians(20);
+    private float overlapThreshold = 0.6f;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    private final Matrix4f lastPose = new Matrix4f();
+    private final Matrix4f lastInverse = new Matrix4f();
+    private final Matrix4f relative = new Matrix4f();
+    private boolean hasKeyframe;
+
+    // Measurements of the last evaluated frame, for logging.
+    private float translation;
+    private float rotation;
+    private float overlap;
+
+    /**
+     * Distance in meters the camera must travel before a new keyframe is taken.
+     */
+    public void setTranslationThreshold(float meters)
+    {
+        this.translationThreshold = meters;
+    }
+
+    /**
+     * Angle the camera must turn before a new keyframe is taken.
+     */
+    public void setRotationThreshold(float degrees)
+    {
+        this.rotationThreshold = (float) Math.toRadians(degrees);
+    }
+
+    /**
+     * A new keyframe is taken once less than this fraction of the view was seen by the last one.
+     */
+    public void setOverlapThreshold(float overlapThreshold)
+    {
+        this.overlapThreshold = overlapThreshold;
+    }
+
+    /**
+     * Bytes the stored keyframes may take before automatic capture stops.
+     */
+    public void setMemoryBudget(long bytes)
+    {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    public float getTranslation()
+    {
+        return translation;
+    }
+
+    public float getRotation()
+    {
+        return rotation;
+    }
+
+    public float getOverlap()
+    {
+        return overlap;
+    }
+
+    /**
+     * Forgets the last keyframe, so the next frame qualifies.
+     */
+    public void reset()
+    {
+        hasKeyframe = false;
+    }
+
+    /**
+     * Records the depth camera pose of a keyframe that was just stored.
+     */
+    public void accept(Matrix4f cameraToWorld)
+    {
+        lastPose.set(cameraToWorld);
+        lastPose.invertAffine(lastInverse);
+        hasKeyframe = true;
+    }
+
+    /**
+     * Returns true if the frame of {@code count} points in {@code xyz}, given in the depth camera
+     * frame with pose {@code cameraToWorld}, should become a keyframe.
+     *
+     * @param usedBytes memory already taken by the stored keyframes
+     */
+    public boolean shouldCapture(FloatBuffer xyz, int count, Matrix4f cameraToWorld,
+                                 TangoCameraIntrinsics intrinsics, long usedBytes)
+    {
+        if(usedBytes >= memoryBudget || count == 0)
+            return false;
+        if(!hasKeyframe) {
+            translation = rotation = 0;
+            overlap = 0;
+            return true;
+        }
+
+        // Current camera frame expressed in the last keyframe's camera frame.
+        lastInverse.mul(cameraToWorld, relative);
+        translation = (float) Math.sqrt(relative.m30 * relative.m30
+                + relative.m31 * relative.m31 + relative.m32 * relative.m32);
+        float cosine = (relative.m00 + relative.m11 + relative.m22 - 1) / 2;
+        rotation = (float) Math.acos(Math.max(-1, Math.min(1, cosine)));
+        if(translation > translationThreshold || rotation > rotationThreshold) {
+            overlap = Float.NaN;
+            return true;
+        }
+
+        overlap = estimateOverlap(xyz, count, intrinsics);
+        return overlap < overlapThreshold;
+    }
+
+    private float estimateOverlap(FloatBuffer xyz, int count, TangoCameraIntrinsics intrinsics)
+    {
+        Matrix4f m = relative;
+        float fx = (float) intrinsics.fx, fy = (float) intrinsics.fy;
+        float cx = (float) intrinsics.cx, cy = (float) intrinsics.cy;
+        int stride = Math.max(1, count / OVERLAP_SAMPLES);
+        int samples = 0, inside = 0;
+        for(int i = 0; i < count; i += stride) {
+            int k = i * 3;
+            float x = xyz.get(k), y = xyz.get(k + 1), z = xyz.get(k + 2);
+            float px = m.m00 * x + m.m10 * y + m.m20 * z + m.m30;
+            float py = m.m01 * x + m.m11 * y + m.m21 * z + m.m31;
+            float pz = m.m02 * x + m.m12 * y + m.m22 * z + m.m32;
+            samples++;
+            if(pz <= 0)
+                continue;
+            float u = fx * (px / pz) + cx;
+            float v = fy * (py / pz) + cy;
+            if(u >= 0 && u < intrinsics.width && v >= 0 && v < intrinsics.height) {
+                inside++;
+            }
+        }
+        return (float) inside / samples;
+    }
+}
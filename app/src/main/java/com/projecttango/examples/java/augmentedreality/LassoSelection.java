@@ -0,0 +1,96 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.joml.PolygonsIntersection;
+
+import java.util.BitSet;
+
+/**
+ * Free-form image region drawn by the user, closed into a polygon. Point tests go through JOML's
+ * {@link PolygonsIntersection}, which indexes the edges in an interval tree so each test only
+ * visits the edges spanning the point's row, after a bounding box check. A selection is immutable
+ * once built, so the UI thread can hand a new one to the render thread by swapping a reference.
+ */
+public class LassoSelection
+{
+    private final float[] verticesXY;
+    private final int count;
+    private final float minX, minY, maxX, maxY;
+    private final PolygonsIntersection polygon;
+
+    /**
+     * Builds a lasso from the first {@code count} vertices of {@code verticesXY} (x, y pairs), in
+     * drawing order. The array is copied.
+     */
+    public LassoSelection(float[] verticesXY, int count)
+    {
+        if(count < 3)
+            throw new IllegalArgumentException("A lasso needs at least 3 vertices: " + count);
+        this.verticesXY = new float[count * 2];
+        System.arraycopy(verticesXY, 0, this.verticesXY, 0, count * 2);
+        this.count = count;
+        float loX = Float.MAX_VALUE, loY = Float.MAX_VALUE;
+        float hiX = -Float.MAX_VALUE, hiY = -Float.MAX_VALUE;
+        for(int i = 0; i < count * 2; i += 2) {
+            loX = Math.min(loX, verticesXY[i]);
+            loY = Math.min(loY, verticesXY[i + 1]);
+            hiX = Math.max(hiX, verticesXY[i]);
+            hiY = Math.max(hiY, verticesXY[i + 1]);
+        }
+        minX = loX;
+        minY = loY;
+        maxX = hiX;
+        maxY = hiY;
+        polygon = new PolygonsIntersection(this.verticesXY, new int[0], count);
+    }
+
+    public int getVertexCount()
+    {
+        return count;
+    }
+
+    public float getMinX()
+    {
+        return minX;
+    }
+
+    public float getMinY()
+    {
+        return minY;
+    }
+
+    public float getMaxX()
+    {
+        return maxX;
+    }
+
+    public float getMaxY()
+    {
+        return maxY;
+    }
+
+    public boolean contains(float x, float y)
+    {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && polygon.testPoint(x, y);
+    }
+
+    /**
+     * Tests the first {@code count} points of {@code pointsXY} (x, y pairs) and sets the bits of
+     * those inside the lasso in {@code inside}, which is cleared first. Returns how many are
+     * inside.
+     */
+    public int select(float[] pointsXY, int count, BitSet inside)
+    {
+        inside.clear();
+        int selected = 0;
+        for(int i = 0, k = 0; i < count; i++, k += 2) {
+            float x = pointsXY[k], y = pointsXY[k + 1];
+            if(x < minX || x > maxX || y < minY || y > maxY)
+                continue;
+            if(polygon.testPoint(x, y)) {
+                inside.set(i);
+                selected++;
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,194 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from non-negative {@code long} keys to {@code int} values.
+ * Uses linear probing over power-of-two tables, so lookups and inserts never allocate unless the
+ * table has to grow. Negative keys are reserved: {@link #EMPTY_KEY} marks a free slot.
+ */
+public class LongIntHashMap
+{
+    public static final int NO_VALUE = -1;
+    private static final long EMPTY_KEY = -1L;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    public LongIntHashMap()
+    {
+        this(1024);
+    }
+
+    public LongIntHashMap(int expectedSize)
+    {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Removes all entries. Keeps the table, so refilling to a similar size does not allocate.
+     */
+    public void clear()
+    {
+        Arrays.fill(keys, EMPTY_KEY);
+        size = 0;
+    }
+
+    /**
+     * Grows the table ahead of time so that {@code expectedSize} entries fit without rehashing.
+     */
+    public void ensureCapacity(int expectedSize)
+    {
+        if(expectedSize > resizeThreshold) {
+            rehash(tableSizeFor(expectedSize));
+        }
+    }
+
+    public int get(long key)
+    {
+        int slot = slot(key);
+        while(keys[slot] != EMPTY_KEY) {
+            if(keys[slot] == key)
+                return values[slot];
+            slot = (slot + 1) & mask;
+        }
+        return NO_VALUE;
+    }
+
+    public boolean containsKey(long key)
+    {
+        return get(key) != NO_VALUE;
+    }
+
+    /**
+     * Associates {@code value} with {@code key} and returns the previous value, or
+     * {@link #NO_VALUE} if there was none.
+     */
+    public int put(long key, int value)
+    {
+        int slot = findSlot(key);
+        if(keys[slot] == key) {
+            int previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+        insert(slot, key, value);
+        return NO_VALUE;
+    }
+
+    /**
+     * Associates {@code value} with {@code key} only if the key is absent. Returns the value
+     * already stored, or {@link #NO_VALUE} if {@code value} was inserted.
+     */
+    public int putIfAbsent(long key, int value)
+    {
+        int slot = findSlot(key);
+        if(keys[slot] == key)
+            return values[slot];
+        insert(slot, key, value);
+        return NO_VALUE;
+    }
+
+    /**
+     * Removes {@code key} and returns its value, or {@link #NO_VALUE} if it was absent. The
+     * entries after it in its probe run are shifted back, so no tombstones are left behind.
+     */
+    public int remove(long key)
+    {
+        if(key < 0)
+            return NO_VALUE;
+        int hole = slot(key);
+        while(keys[hole] != key) {
+            if(keys[hole] == EMPTY_KEY)
+                return NO_VALUE;
+            hole = (hole + 1) & mask;
+        }
+        int previous = values[hole];
+        for(int next = (hole + 1) & mask; keys[next] != EMPTY_KEY; next = (next + 1) & mask) {
+            // An entry may fill the hole unless its home slot lies between the hole and it.
+            int home = slot(keys[next]);
+            if(((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = EMPTY_KEY;
+        size--;
+        return previous;
+    }
+
+    private int findSlot(long key)
+    {
+        if(key < 0)
+            throw new IllegalArgumentException("Negative keys are reserved: " + key);
+        int slot = slot(key);
+        while(keys[slot] != EMPTY_KEY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int slot, long key, int value)
+    {
+        keys[slot] = key;
+        values[slot] = value;
+        if(++size > resizeThreshold) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    private int slot(long key)
+    {
+        // Murmur3 finalizer, spreads the packed coordinate bits over the whole table.
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    private void rehash(int newLength)
+    {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(newLength);
+        for(int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if(key == EMPTY_KEY)
+                continue;
+            int slot = slot(key);
+            while(keys[slot] != EMPTY_KEY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private void allocate(int length)
+    {
+        keys = new long[length];
+        values = new int[length];
+        Arrays.fill(keys, EMPTY_KEY);
+        mask = length - 1;
+        resizeThreshold = (int) (length * LOAD_FACTOR);
+    }
+
+    private static int tableSizeFor(int expectedSize)
+    {
+        int length = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 16) - 1) << 1;
+        return Math.max(length, 16);
+    }
+}
@@ -0,0 +1,131 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Model merged from all keyframes, updated as each keyframe arrives: the moments of every point,
+ * a downsampled point set holding the first point seen in each voxel, and the convex hull.
+ * Adding a keyframe costs time in its own points (plus the hull size), never in the points merged
+ * before, so the model is always ready to display.
+ */
+public class MergedModel
+{
+    private final float leafSize;
+    private final PointMoments moments = new PointMoments();
+    private final PointBuffer points = new PointBuffer();
+    private final LongIntHashMap voxels = new LongIntHashMap();
+    private final ConvexHull hull = new ConvexHull();
+    // Previous hull vertices plus the new points of a hull update.
+    private final PointBuffer hullInput = new PointBuffer();
+    private int keyframeCount;
+    private int version;
+
+    public MergedModel(float leafSize)
+    {
+        if(!(leafSize > 0))
+            throw new IllegalArgumentException("Leaf size must be positive: " + leafSize);
+        this.leafSize = leafSize;
+    }
+
+    public void clear()
+    {
+        moments.clear();
+        points.clear();
+        voxels.clear();
+        hullInput.clear();
+        hull.compute(hullInput);
+        keyframeCount = 0;
+        version++;
+    }
+
+    public float getLeafSize()
+    {
+        return leafSize;
+    }
+
+    public PointMoments getMoments()
+    {
+        return moments;
+    }
+
+    /**
+     * Merged points, at most one per voxel, with normals and colors if the keyframes had them.
+     */
+    public PointBuffer getPoints()
+    {
+        return points;
+    }
+
+    public ConvexHull getHull()
+    {
+        return hull;
+    }
+
+    public int getKeyframeCount()
+    {
+        return keyframeCount;
+    }
+
+    /**
+     * Changes whenever the model does, so views of it know when to refresh.
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Merges the world-space points of a keyframe, whose moments were already computed.
+     *
+     * @return false if the points merged so far do not span a volume yet
+     */
+    public boolean add(PointBuffer keyframe, PointMoments keyframeMoments)
+    {
+        moments.merge(keyframeMoments);
+        keyframeCount++;
+        version++;
+
+        int n = keyframe.size();
+        float[] xyz = keyframe.getXyzArray();
+        float[] normals = keyframe.getNormalArray();
+        int[] colors = keyframe.getColorArray();
+        if(normals != null) {
+            points.enableNormals();
+        }
+        if(colors != null) {
+            points.enableColors();
+        }
+        voxels.ensureCapacity(points.size() + n);
+        float inverseLeaf = 1.0f / leafSize;
+        for(int i = 0, k = 0; i < n; i++, k += 3) {
+            long key = VoxelGridFilter.key((int) Math.floor(xyz[k] * inverseLeaf),
+                    (int) Math.floor(xyz[k + 1] * inverseLeaf),
+                    (int) Math.floor(xyz[k + 2] * inverseLeaf));
+            if(voxels.putIfAbsent(key, points.size()) != LongIntHashMap.NO_VALUE)
+                continue;
+            int index = points.add(xyz[k], xyz[k + 1], xyz[k + 2]);
+            if(normals != null) {
+                points.setNormal(index, normals[k], normals[k + 1], normals[k + 2]);
+            }
+            if(colors != null) {
+                points.setColor(index, colors[i]);
+            }
+        }
+
+        // The hull of a union is the hull of the previous hull's vertices and the new points.
+        hullInput.clear();
+        hullInput.addAll(hull.getVertices());
+        hullInput.addAll(keyframe);
+        return hull.compute(hullInput);
+    }
+
+    /**
+     * Box aligned with the principal axes of the merged points; see
+     * {@link PointMoments#getOrientedBox(Matrix4f, Vector3f)}.
+     */
+    public void getOrientedBox(Matrix4f pose, Vector3f halfExtents)
+    {
+        moments.getOrientedBox(pose, halfExtents);
+    }
+}
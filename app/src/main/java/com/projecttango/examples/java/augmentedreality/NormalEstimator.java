@@ -0,0 +1,119 @@
+package com.projecttango.examples.java.augmentedreality;
+
+/**
+ * Estimates per-point normals by principal component analysis of each point's k nearest
+ * neighbours. The normal is the eigenvector of the smallest eigenvalue of the neighbourhood
+ * covariance, solved in closed form, and is flipped to face the viewpoint the cloud was captured
+ * from. Points are processed in parallel over a {@link ParallelLoop}; the k-d tree is shared
+ * read-only and each worker has its own neighbour buffer.
+ */
+public class NormalEstimator
+{
+    private static final int MIN_NEIGHBORS = 3;
+
+    private int neighbors = 12;
+    private float maxRadius = 0.05f;
+
+    private final ParallelLoop loop;
+    private final KdTree tree = new KdTree();
+    private final KdTree.Neighbors[] scratch;
+    private final double[][] eigen;
+
+    public NormalEstimator(ParallelLoop loop)
+    {
+        this.loop = loop;
+        scratch = new KdTree.Neighbors[loop.getWorkers()];
+        eigen = new double[loop.getWorkers()][6];
+        for(int i = 0; i < scratch.length; i++) {
+            scratch[i] = new KdTree.Neighbors(neighbors);
+        }
+    }
+
+    /**
+     * Number of neighbours used for each covariance.
+     */
+    public void setNeighbors(int neighbors)
+    {
+        this.neighbors = Math.max(neighbors, MIN_NEIGHBORS);
+    }
+
+    /**
+     * Neighbours further than this are ignored; points with fewer than three neighbours in
+     * range get a zero normal.
+     */
+    public void setMaxRadius(float maxRadius)
+    {
+        this.maxRadius = maxRadius;
+    }
+
+    /**
+     * Computes normals for every point of {@code points} and stores them in its normal array.
+     * ({@code vx}, {@code vy}, {@code vz}) is the capture viewpoint in the same frame as the
+     * points.
+     */
+    public void estimate(final PointBuffer points, final float vx, final float vy, final float vz)
+    {
+        points.enableNormals();
+        tree.build(points);
+        final float[] xyz = points.getXyzArray();
+        final float[] normals = points.getNormalArray();
+        final int k = neighbors;
+        final float radius = maxRadius;
+
+        loop.run(points.size(), new ParallelLoop.Body() {
+            @Override
+            public void run(int start, int end, int worker) {
+                KdTree.Neighbors found = scratch[worker];
+                double[] values = eigen[worker];
+                for(int i = start; i < end; i++) {
+                    estimate(i, xyz, normals, k, radius, found, values, vx, vy, vz);
+                }
+            }
+        });
+    }
+
+    private void estimate(int i, float[] xyz, float[] normals, int k, float radius,
+                          KdTree.Neighbors found, double[] values, float vx, float vy, float vz)
+    {
+        int p = i * 3;
+        int count = tree.nearestK(xyz[p], xyz[p + 1], xyz[p + 2], k, radius, found);
+        if(count < MIN_NEIGHBORS) {
+            normals[p] = normals[p + 1] = normals[p + 2] = 0;
+            return;
+        }
+
+        double mx = 0, my = 0, mz = 0;
+        for(int j = 0; j < count; j++) {
+            int q = found.index(j) * 3;
+            mx += xyz[q];
+            my += xyz[q + 1];
+            mz += xyz[q + 2];
+        }
+        mx /= count;
+        my /= count;
+        mz /= count;
+        double c00 = 0, c01 = 0, c02 = 0, c11 = 0, c12 = 0, c22 = 0;
+        for(int j = 0; j < count; j++) {
+            int q = found.index(j) * 3;
+            double dx = xyz[q] - mx, dy = xyz[q + 1] - my, dz = xyz[q + 2] - mz;
+            c00 += dx * dx;
+            c01 += dx * dy;
+            c02 += dx * dz;
+            c11 += dy * dy;
+            c12 += dy * dz;
+            c22 += dz * dz;
+        }
+
+        SymmetricEigen3.eigenvalues(c00, c01, c02, c11, c12, c22, values);
+        SymmetricEigen3.eigenvector(c00, c01, c02, c11, c12, c22, values[0], values, 3);
+        float nx = (float) values[3], ny = (float) values[4], nz = (float) values[5];
+        if(nx * (vx - xyz[p]) + ny * (vy - xyz[p + 1]) + nz * (vz - xyz[p + 2]) < 0) {
+            nx = -nx;
+            ny = -ny;
+            nz = -nz;
+        }
+        normals[p] = nx;
+        normals[p + 1] = ny;
+        normals[p + 2] = nz;
+    }
+}
@@ -0,0 +1,127 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits an index range over a fixed set of worker threads and waits for all of them.
+ * The calling thread takes part as worker 0, so tasks can keep per-worker scratch buffers indexed
+ * by the worker number. Chunks are handed out dynamically to even out uneven per-index cost.
+ * <p/>
+ * ForkJoinPool only exists from API 21, so this covers the data-parallel loops that would use it.
+ */
+public class ParallelLoop
+{
+    private static final String TAG = ParallelLoop.class.getSimpleName();
+    // Number of chunks per worker, for load balancing.
+    private static final int CHUNKS_PER_WORKER = 4;
+    private static final int MIN_CHUNK = 256;
+
+    private static ParallelLoop sDefault;
+
+    /**
+     * Body of a parallel loop, called with disjoint sub-ranges of [0, count).
+     */
+    public interface Body
+    {
+        void run(int start, int end, int worker);
+    }
+
+    private final int workers;
+    private final ExecutorService executor;
+
+    public ParallelLoop(int workers)
+    {
+        this.workers = Math.max(workers, 1);
+        if(this.workers > 1) {
+            executor = Executors.newFixedThreadPool(this.workers - 1, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Shared loop with one worker per available core.
+     */
+    public static synchronized ParallelLoop getDefault()
+    {
+        if(sDefault == null) {
+            sDefault = new ParallelLoop(Runtime.getRuntime().availableProcessors());
+        }
+        return sDefault;
+    }
+
+    public int getWorkers()
+    {
+        return workers;
+    }
+
+    /**
+     * Runs {@code body} over [0, count) and returns once every index has been processed.
+     * An exception thrown by any worker is rethrown here.
+     */
+    public void run(final int count, final Body body)
+    {
+        final int chunk = Math.max(MIN_CHUNK, count / (workers * CHUNKS_PER_WORKER) + 1);
+        int helpers = Math.min(workers - 1, (count - 1) / chunk);
+        if(helpers <= 0) {
+            body.run(0, count, 0);
+            return;
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(helpers);
+        final RuntimeException[] failure = new RuntimeException[1];
+        for(int i = 1; i <= helpers; i++) {
+            final int worker = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drain(next, chunk, count, body, worker);
+                    } catch (RuntimeException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        drain(next, chunk, count, body, 0);
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for workers", e);
+        }
+        synchronized (failure) {
+            if(failure[0] != null)
+                throw failure[0];
+        }
+    }
+
+    private static void drain(AtomicInteger next, int chunk, int count, Body body, int worker)
+    {
+        while(true) {
+            int start = next.getAndAdd(chunk);
+            if(start >= count)
+                return;
+            body.run(start, Math.min(start + chunk, count), worker);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.Arrays;
+
+/**
+ * Image-sized map from pixels to the index of the point projected there, as two flat int arrays.
+ * Each entry carries the generation it was written in, so clearing the map only bumps the
+ * generation instead of touching every pixel; a capture costs time in the points it writes, not in
+ * the image size.
+ */
+public class PixelIndexMap
+{
+    public static final int NO_POINT = -1;
+
+    private int width, height;
+    private int[] indices = new int[0];
+    private int[] stamps = new int[0];
+    private int generation = 1;
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Sizes the map for an image of {@code width} x {@code height} pixels and clears it. Storage
+     * is only reallocated when it grows.
+     */
+    public void resize(int width, int height)
+    {
+        if(width < 0 || height < 0)
+            throw new IllegalArgumentException("Invalid size: " + width + " x " + height);
+        if(width * height > indices.length) {
+            indices = new int[width * height];
+            stamps = new int[width * height];
+            generation = 0;
+        }
+        this.width = width;
+        this.height = height;
+        clear();
+    }
+
+    public void clear()
+    {
+        generation++;
+        if(generation == 0) {
+            // Wrapped around: old stamps could match again.
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Maps pixel ({@code x}, {@code y}) to point {@code index}, replacing any earlier point.
+     * Pixels outside the image are ignored.
+     */
+    public void put(int x, int y, int index)
+    {
+        if(x < 0 || x >= width || y < 0 || y >= height)
+            return;
+        int pixel = y * width + x;
+        indices[pixel] = index;
+        stamps[pixel] = generation;
+    }
+
+    /**
+     * Returns the index of the point at pixel ({@code x}, {@code y}), or {@link #NO_POINT}.
+     */
+    public int get(int x, int y)
+    {
+        if(x < 0 || x >= width || y < 0 || y >= height)
+            return NO_POINT;
+        int pixel = y * width + x;
+        return stamps[pixel] == generation ? indices[pixel] : NO_POINT;
+    }
+
+    /**
+     * Returns the index of the point nearest to pixel ({@code x}, {@code y}) within
+     * {@code radius} pixels, or {@link #NO_POINT}. Depth points only cover a fraction of the
+     * pixels, so lookups usually need a small radius.
+     */
+    public int find(int x, int y, int radius)
+    {
+        int best = NO_POINT;
+        int bestDistance = radius * radius + 1;
+        int x0 = Math.max(x - radius, 0), x1 = Math.min(x + radius, width - 1);
+        int y0 = Math.max(y - radius, 0), y1 = Math.min(y + radius, height - 1);
+        for(int row = y0; row <= y1; row++) {
+            int dy = row - y;
+            for(int column = x0, pixel = row * width + x0; column <= x1; column++, pixel++) {
+                if(stamps[pixel] != generation)
+                    continue;
+                int dx = column - x;
+                int distance = dx * dx + dy * dy;
+                if(distance < bestDistance) {
+                    bestDistance = distance;
+                    best = indices[pixel];
+                }
+            }
+        }
+        return best;
+    }
+}
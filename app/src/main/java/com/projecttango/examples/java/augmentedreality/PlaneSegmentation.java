@@ -0,0 +1,237 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.BitSet;
+
+/**
+ * RANSAC detection of the dominant plane in a point cloud, e.g. the table an object stands on.
+ * Candidate planes through three random points are scored by their inlier count. Counting stops
+ * early once a candidate can no longer beat the best one, and the number of iterations adapts to
+ * the best inlier ratio seen so far. An optional gravity prior rejects candidates whose normal is
+ * too far from the up direction before they are scored. The winning plane is refitted to all of
+ * its inliers by least squares.
+ */
+public class PlaneSegmentation
+{
+    private float distanceThreshold = 0.01f;
+    private int maxIterations = 500;
+    private float confidence = 0.99f;
+    private float minInlierRatio = 0.1f;
+
+    private boolean useGravity;
+    private float upX, upY, upZ;
+    private float minCosine;
+
+    // Plane as nx * x + ny * y + nz * z + d = 0 with a unit normal.
+    private float nx, ny, nz, d;
+    private int inliers;
+    private int iterations;
+    private long seed = 0x2545F4914F6CDD1DL;
+    private final double[] eigen = new double[6];
+
+    /**
+     * Points closer than this to the plane count as inliers.
+     */
+    public void setDistanceThreshold(float distanceThreshold)
+    {
+        this.distanceThreshold = distanceThreshold;
+    }
+
+    public void setMaxIterations(int maxIterations)
+    {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Probability of having drawn at least one all-inlier sample, used to stop early.
+     */
+    public void setConfidence(float confidence)
+    {
+        this.confidence = confidence;
+    }
+
+    /**
+     * Planes supported by fewer than this fraction of the points are not reported.
+     */
+    public void setMinInlierRatio(float minInlierRatio)
+    {
+        this.minInlierRatio = minInlierRatio;
+    }
+
+    /**
+     * Only accepts planes whose normal is within {@code maxAngleDegrees} of the given up
+     * direction.
+     */
+    public void setGravityPrior(float upX, float upY, float upZ, float maxAngleDegrees)
+    {
+        float length = (float) Math.sqrt(upX * upX + upY * upY + upZ * upZ);
+        this.upX = upX / length;
+        this.upY = upY / length;
+        this.upZ = upZ / length;
+        this.minCosine = (float) Math.cos(Math.toRadians(maxAngleDegrees));
+        this.useGravity = true;
+    }
+
+    public void clearGravityPrior()
+    {
+        useGravity = false;
+    }
+
+    public int getInliers()
+    {
+        return inliers;
+    }
+
+    public int getIterations()
+    {
+        return iterations;
+    }
+
+    /**
+     * Writes the last plane found to {@code out[0..3]} as (nx, ny, nz, d).
+     */
+    public float[] getPlane(float[] out)
+    {
+        out[0] = nx;
+        out[1] = ny;
+        out[2] = nz;
+        out[3] = d;
+        return out;
+    }
+
+    /**
+     * Searches {@code points} for the dominant plane. Returns true if one with enough support was
+     * found; {@code outliers} then has a bit set for every point off the plane.
+     */
+    public boolean segment(PointBuffer points, BitSet outliers)
+    {
+        int n = points.size();
+        float[] xyz = points.getXyzArray();
+        inliers = 0;
+        iterations = 0;
+        outliers.clear();
+        if(n < 3)
+            return false;
+
+        int best = 0;
+        float bx = 0, by = 0, bz = 0, bd = 0;
+        double logFailure = Math.log(1 - confidence);
+        int budget = maxIterations;
+        while(iterations < budget) {
+            iterations++;
+            int a = random(n) * 3, b = random(n) * 3, c = random(n) * 3;
+            float ux = xyz[b] - xyz[a], uy = xyz[b + 1] - xyz[a + 1], uz = xyz[b + 2] - xyz[a + 2];
+            float vx = xyz[c] - xyz[a], vy = xyz[c + 1] - xyz[a + 1], vz = xyz[c + 2] - xyz[a + 2];
+            float cx = uy * vz - uz * vy, cy = uz * vx - ux * vz, cz = ux * vy - uy * vx;
+            float length = (float) Math.sqrt(cx * cx + cy * cy + cz * cz);
+            if(length < 1e-9f)
+                continue;
+            cx /= length;
+            cy /= length;
+            cz /= length;
+            if(useGravity && Math.abs(cx * upX + cy * upY + cz * upZ) < minCosine)
+                continue;
+            float cd = -(cx * xyz[a] + cy * xyz[a + 1] + cz * xyz[a + 2]);
+
+            int count = countInliers(xyz, n, cx, cy, cz, cd, best);
+            if(count <= best)
+                continue;
+            best = count;
+            bx = cx; by = cy; bz = cz; bd = cd;
+
+            double ratio = (double) best / n;
+            double allInliers = ratio * ratio * ratio;
+            if(allInliers >= 1) {
+                break;
+            }
+            double needed = logFailure / Math.log(1 - allInliers);
+            budget = (int) Math.min(maxIterations, Math.ceil(needed));
+        }
+
+        if(best < Math.max(3, minInlierRatio * n))
+            return false;
+
+        refit(xyz, n, bx, by, bz, bd);
+        for(int i = 0, k = 0; i < n; i++, k += 3) {
+            float distance = nx * xyz[k] + ny * xyz[k + 1] + nz * xyz[k + 2] + d;
+            if(Math.abs(distance) > distanceThreshold) {
+                outliers.set(i);
+            } else {
+                inliers++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts inliers, giving up as soon as the remaining points cannot lift the count above
+     * {@code best}.
+     */
+    private int countInliers(float[] xyz, int n, float px, float py, float pz, float pd, int best)
+    {
+        int count = 0;
+        for(int i = 0, k = 0; i < n; i++, k += 3) {
+            float distance = px * xyz[k] + py * xyz[k + 1] + pz * xyz[k + 2] + pd;
+            if(Math.abs(distance) <= distanceThreshold) {
+                count++;
+            } else if(count + (n - i - 1) <= best) {
+                return count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Least squares plane through the inliers of the given plane.
+     */
+    private void refit(float[] xyz, int n, float px, float py, float pz, float pd)
+    {
+        double mx = 0, my = 0, mz = 0;
+        int count = 0;
+        for(int k = 0; k < n * 3; k += 3) {
+            if(Math.abs(px * xyz[k] + py * xyz[k + 1] + pz * xyz[k + 2] + pd) > distanceThreshold)
+                continue;
+            mx += xyz[k];
+            my += xyz[k + 1];
+            mz += xyz[k + 2];
+            count++;
+        }
+        mx /= count;
+        my /= count;
+        mz /= count;
+        double c00 = 0, c01 = 0, c02 = 0, c11 = 0, c12 = 0, c22 = 0;
+        for(int k = 0; k < n * 3; k += 3) {
+            if(Math.abs(px * xyz[k] + py * xyz[k + 1] + pz * xyz[k + 2] + pd) > distanceThreshold)
+                continue;
+            double dx = xyz[k] - mx, dy = xyz[k + 1] - my, dz = xyz[k + 2] - mz;
+            c00 += dx * dx;
+            c01 += dx * dy;
+            c02 += dx * dz;
+            c11 += dy * dy;
+            c12 += dy * dz;
+            c22 += dz * dz;
+        }
+        SymmetricEigen3.eigenvalues(c00, c01, c02, c11, c12, c22, eigen);
+        SymmetricEigen3.eigenvector(c00, c01, c02, c11, c12, c22, eigen[0], eigen, 3);
+        nx = (float) eigen[3];
+        ny = (float) eigen[4];
+        nz = (float) eigen[5];
+        // Keep the orientation of the sampled plane.
+        if(nx * px + ny * py + nz * pz < 0) {
+            nx = -nx;
+            ny = -ny;
+            nz = -nz;
+        }
+        d = (float) -(nx * mx + ny * my + nz * mz);
+    }
+
+    /**
+     * Xorshift generator; avoids java.util.Random's synchronisation in the sampling loop.
+     */
+    private int random(int bound)
+    {
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        return (int) ((seed >>> 33) % bound);
+    }
+}
@@ -0,0 +1,347 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Growable, packed storage for 3D points.
+ * Coordinates are kept interleaved as x, y, z in a single float array, with optional per-point
+ * normals (interleaved nx, ny, nz) and colors (packed ARGB ints) stored alongside. Nothing in this
+ * class allocates per point, so a keyframe of tens of thousands of points costs a handful of
+ * arrays instead of one object per point.
+ */
+public class PointBuffer
+{
+    /**
+     * Callback used by {@link #forEach(PointVisitor)} to walk the points without allocation.
+     */
+    public interface PointVisitor
+    {
+        void visit(int index, float x, float y, float z);
+    }
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private float[] xyz;
+    private float[] normals;
+    private int[] colors;
+    private int size;
+
+    public PointBuffer()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PointBuffer(int capacity)
+    {
+        xyz = new float[Math.max(capacity, 1) * 3];
+    }
+
+    /**
+     * Deep copy of {@code other}, trimmed to its size.
+     */
+    public static PointBuffer copyOf(PointBuffer other)
+    {
+        PointBuffer tmp = new PointBuffer(other.size);
+        tmp.addAll(other);
+        return tmp;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public int capacity()
+    {
+        return xyz.length / 3;
+    }
+
+    public boolean hasNormals()
+    {
+        return normals != null;
+    }
+
+    public boolean hasColors()
+    {
+        return colors != null;
+    }
+
+    /**
+     * Starts tracking normals. Existing points get a zero normal.
+     */
+    public void enableNormals()
+    {
+        if(normals == null) {
+            normals = new float[xyz.length];
+        }
+    }
+
+    /**
+     * Starts tracking colors. Existing points get transparent black.
+     */
+    public void enableColors()
+    {
+        if(colors == null) {
+            colors = new int[xyz.length / 3];
+        }
+    }
+
+    public void ensureCapacity(int minCapacity)
+    {
+        if(minCapacity * 3 <= xyz.length)
+            return;
+        int newCapacity = Math.max(minCapacity, capacity() + (capacity() >> 1));
+        xyz = Arrays.copyOf(xyz, newCapacity * 3);
+        if(normals != null) {
+            normals = Arrays.copyOf(normals, newCapacity * 3);
+        }
+        if(colors != null) {
+            colors = Arrays.copyOf(colors, newCapacity);
+        }
+    }
+
+    /**
+     * Shrinks the backing arrays to the current size.
+     */
+    public void trimToSize()
+    {
+        int capacity = Math.max(size, 1);
+        if(capacity == capacity())
+            return;
+        xyz = Arrays.copyOf(xyz, capacity * 3);
+        if(normals != null) {
+            normals = Arrays.copyOf(normals, capacity * 3);
+        }
+        if(colors != null) {
+            colors = Arrays.copyOf(colors, capacity);
+        }
+    }
+
+    /**
+     * Bytes taken by the backing arrays.
+     */
+    public long getMemoryUsage()
+    {
+        long bytes = xyz.length * 4L;
+        if(normals != null) {
+            bytes += normals.length * 4L;
+        }
+        if(colors != null) {
+            bytes += colors.length * 4L;
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops all points but keeps the backing arrays for reuse.
+     */
+    public void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * Appends a point and returns its index.
+     */
+    public int add(float x, float y, float z)
+    {
+        ensureCapacity(size + 1);
+        int k = size * 3;
+        xyz[k] = x;
+        xyz[k + 1] = y;
+        xyz[k + 2] = z;
+        if(normals != null) {
+            normals[k] = 0;
+            normals[k + 1] = 0;
+            normals[k + 2] = 0;
+        }
+        if(colors != null) {
+            colors[size] = 0;
+        }
+        return size++;
+    }
+
+    public void set(int index, float x, float y, float z)
+    {
+        int k = index * 3;
+        xyz[k] = x;
+        xyz[k + 1] = y;
+        xyz[k + 2] = z;
+    }
+
+    public float getX(int index)
+    {
+        return xyz[index * 3];
+    }
+
+    public float getY(int index)
+    {
+        return xyz[index * 3 + 1];
+    }
+
+    public float getZ(int index)
+    {
+        return xyz[index * 3 + 2];
+    }
+
+    /**
+     * Writes the coordinates of point {@code index} to {@code out[0..2]}.
+     */
+    public float[] get(int index, float[] out)
+    {
+        System.arraycopy(xyz, index * 3, out, 0, 3);
+        return out;
+    }
+
+    public void setNormal(int index, float nx, float ny, float nz)
+    {
+        enableNormals();
+        int k = index * 3;
+        normals[k] = nx;
+        normals[k + 1] = ny;
+        normals[k + 2] = nz;
+    }
+
+    public float[] getNormal(int index, float[] out)
+    {
+        System.arraycopy(normals, index * 3, out, 0, 3);
+        return out;
+    }
+
+    public void setColor(int index, int argb)
+    {
+        enableColors();
+        colors[index] = argb;
+    }
+
+    public int getColor(int index)
+    {
+        return colors[index];
+    }
+
+    /**
+     * Direct access to the interleaved coordinates. Only the first {@code size() * 3} entries
+     * are meaningful, and the array is replaced whenever the buffer grows.
+     */
+    public float[] getXyzArray()
+    {
+        return xyz;
+    }
+
+    /**
+     * Direct access to the interleaved normals, or null if normals are not tracked.
+     */
+    public float[] getNormalArray()
+    {
+        return normals;
+    }
+
+    /**
+     * Direct access to the packed colors, or null if colors are not tracked.
+     */
+    public int[] getColorArray()
+    {
+        return colors;
+    }
+
+    /**
+     * Keeps only the points whose bit is set in {@code keep}, preserving their order and
+     * attributes, and returns the new size.
+     */
+    public int retain(BitSet keep)
+    {
+        int n = 0;
+        for(int i = keep.nextSetBit(0); i >= 0 && i < size; i = keep.nextSetBit(i + 1), n++) {
+            if(i == n)
+                continue;
+            System.arraycopy(xyz, i * 3, xyz, n * 3, 3);
+            if(normals != null) {
+                System.arraycopy(normals, i * 3, normals, n * 3, 3);
+            }
+            if(colors != null) {
+                colors[n] = colors[i];
+            }
+        }
+        size = n;
+        return n;
+    }
+
+    /**
+     * Appends every point (and the attributes both buffers track) of {@code other}.
+     */
+    public void addAll(PointBuffer other)
+    {
+        if(other.normals != null) {
+            enableNormals();
+        }
+        if(other.colors != null) {
+            enableColors();
+        }
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.xyz, 0, xyz, size * 3, other.size * 3);
+        if(normals != null) {
+            if(other.normals != null) {
+                System.arraycopy(other.normals, 0, normals, size * 3, other.size * 3);
+            } else {
+                Arrays.fill(normals, size * 3, (size + other.size) * 3, 0);
+            }
+        }
+        if(colors != null) {
+            if(other.colors != null) {
+                System.arraycopy(other.colors, 0, colors, size, other.size);
+            } else {
+                Arrays.fill(colors, size, size + other.size, 0);
+            }
+        }
+        size += other.size;
+    }
+
+    /**
+     * Appends {@code count} interleaved points read from {@code src}, starting at its current
+     * position. The position of {@code src} is advanced past the read values.
+     */
+    public void addAll(FloatBuffer src, int count)
+    {
+        ensureCapacity(size + count);
+        src.get(xyz, size * 3, count * 3);
+        if(normals != null) {
+            Arrays.fill(normals, size * 3, (size + count) * 3, 0);
+        }
+        if(colors != null) {
+            Arrays.fill(colors, size, size + count, 0);
+        }
+        size += count;
+    }
+
+    /**
+     * Writes all coordinates to {@code dst} at its current position.
+     */
+    public FloatBuffer copyTo(FloatBuffer dst)
+    {
+        dst.put(xyz, 0, size * 3);
+        return dst;
+    }
+
+    /**
+     * Writes all coordinates to {@code dst} starting at {@code offset}.
+     */
+    public float[] copyTo(float[] dst, int offset)
+    {
+        System.arraycopy(xyz, 0, dst, offset, size * 3);
+        return dst;
+    }
+
+    public void forEach(PointVisitor visitor)
+    {
+        for(int i = 0, k = 0; i < size; i++, k += 3) {
+            visitor.visit(i, xyz[k], xyz[k + 1], xyz[k + 2]);
+        }
+    }
+}
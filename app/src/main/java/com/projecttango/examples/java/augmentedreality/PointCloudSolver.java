@@ -1,8 +1,378 @@
 package com.projecttango.examples.java.augmentedreality;
 
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+
+import org.joml.Matrix4f;
+
+import java.nio.FloatBuffer;
+import java.util.BitSet;
+
 /**
- * Created by CGV02 on 2016/8/12.
+ * Processing stages applied to captured point clouds before they are stored as keyframes.
+ * Each stage keeps its scratch buffers between calls, so a solver should be used from one thread
+ * at a time.
  */
-public class PointCloudSolver {
+public class PointCloudSolver
+{
+    public static final float DEFAULT_VOXEL_SIZE = 0.005f;
+    public static final float DEFAULT_TSDF_VOXEL_SIZE = 0.01f;
+    public static final float DEFAULT_TSDF_TRUNCATION = 0.04f;
+    // 4096 blocks of 8^3 voxels is 16 MB of fused data.
+    public static final int DEFAULT_TSDF_MAX_BLOCKS = 4096;
+    private static final float SURFACE_MIN_WEIGHT = 2.0f;
+    public static final float DEFAULT_PLANE_DISTANCE = 0.01f;
+    public static final float DEFAULT_CLUSTER_TOLERANCE = 0.02f;
+    // Inverse variances of keyframe pose edges: motion tracking drifts between keyframes, loop
+    // closures registered on geometry are tighter.
+    private static final float ODOMETRY_ROTATION_WEIGHT = 2500f;
+    private static final float ODOMETRY_TRANSLATION_WEIGHT = 2500f;
+    private static final float LOOP_ROTATION_WEIGHT = 10000f;
+    private static final float LOOP_TRANSLATION_WEIGHT = 10000f;
+    private static final float LOOP_MAX_DISTANCE = 0.5f;
+    private static final float LOOP_MAX_ANGLE = (float) Math.toRadians(45);
+    private static final float LOOP_MAX_RMS = 0.01f;
+    private static final int LOOP_MIN_CORRESPONDENCES = 100;
+    private static final int POSE_GRAPH_ITERATIONS = 20;
+
+    private final VoxelGridFilter voxelGrid = new VoxelGridFilter(DEFAULT_VOXEL_SIZE);
+    private TsdfVolume volume = new TsdfVolume(DEFAULT_TSDF_VOXEL_SIZE, DEFAULT_TSDF_TRUNCATION,
+            DEFAULT_TSDF_MAX_BLOCKS);
+    private final IcpRegistration registration = new IcpRegistration();
+    private final ParallelLoop loop = ParallelLoop.getDefault();
+    private final NormalEstimator normalEstimator = new NormalEstimator(loop);
+    private final StatisticalOutlierFilter outlierFilter = new StatisticalOutlierFilter(loop);
+    // Fused surface with normals, rebuilt as the registration target.
+    private final PointBuffer model = new PointBuffer();
+    private final PlaneSegmentation planeSegmentation = new PlaneSegmentation();
+    private final EuclideanClusterExtraction clustering = new EuclideanClusterExtraction();
+    // Everything captured so far, merged keyframe by keyframe.
+    private final MergedModel mergedModel = new MergedModel(DEFAULT_TSDF_VOXEL_SIZE);
+    // Keyframe poses, and a registration of its own so loop closures keep the model target.
+    private final PoseGraph poseGraph = new PoseGraph();
+    private final IcpRegistration loopRegistration = new IcpRegistration();
+    private final Matrix4f targetPose = new Matrix4f();
+    private final Matrix4f sourcePose = new Matrix4f();
+    private final Matrix4f loopCorrection = new Matrix4f();
+    private final Matrix4f loopMeasurement = new Matrix4f();
+
+    public PointCloudSolver()
+    {
+        planeSegmentation.setDistanceThreshold(DEFAULT_PLANE_DISTANCE);
+        clustering.setTolerance(DEFAULT_CLUSTER_TOLERANCE);
+    }
+
+    public float getVoxelSize()
+    {
+        return voxelGrid.getLeafSize();
+    }
+
+    public void setVoxelSize(float voxelSize)
+    {
+        voxelGrid.setLeafSize(voxelSize);
+    }
+
+    /**
+     * Chooses between the centroid (true) or the first point (false) as each voxel's
+     * representative.
+     */
+    public void setVoxelAveraging(boolean averaging)
+    {
+        voxelGrid.setAveraging(averaging);
+    }
+
+    /**
+     * Voxel-grid downsamples {@code points} into a new, exactly sized buffer.
+     */
+    public PointBuffer downsample(PointBuffer points)
+    {
+        PointBuffer out = new PointBuffer(1);
+        voxelGrid.filter(points, out);
+        out.trimToSize();
+        return out;
+    }
+
+    /**
+     * Voxel-grid downsamples {@code in} into {@code out}, reusing its storage.
+     */
+    public void downsample(PointBuffer in, PointBuffer out)
+    {
+        voxelGrid.filter(in, out);
+    }
+
+    /**
+     * Replaces the fused volume with an empty one using the given parameters.
+     */
+    public void resetVolume(float voxelSize, float truncation, int maxBlocks)
+    {
+        volume = new TsdfVolume(voxelSize, truncation, maxBlocks);
+    }
+
+    public TsdfVolume getVolume()
+    {
+        return volume;
+    }
+
+    /**
+     * Fuses a depth frame, given in the depth camera frame, into the TSDF volume.
+     */
+    public void integrate(FloatBuffer xyz, int count, Matrix4f cameraToWorld,
+                          TangoCameraIntrinsics intrinsics)
+    {
+        volume.integrate(xyz, count, cameraToWorld, intrinsics);
+    }
+
+    /**
+     * Appends the points on the fused surface to {@code out}.
+     */
+    public void extractSurface(PointBuffer out)
+    {
+        volume.extractSurface(out, SURFACE_MIN_WEIGHT);
+    }
+
+    public IcpRegistration getRegistration()
+    {
+        return registration;
+    }
+
+    /**
+     * Sets how many ICP iterations a single registration may run.
+     */
+    public void setRegistrationIterations(int iterations)
+    {
+        registration.setMaxIterations(iterations);
+    }
+
+    /**
+     * Aligns {@code points}, in world coordinates, to the surface fused so far.
+     *
+     * @param correction receives the world-space transform to apply to the points and their
+     *                   capture pose, or identity if there is nothing to align to yet
+     * @return true if ICP converged
+     */
+    public boolean register(PointBuffer points, Matrix4f correction)
+    {
+        model.clear();
+        volume.extractSurface(model, SURFACE_MIN_WEIGHT, true);
+        registration.setTarget(model);
+        return registration.align(points, correction);
+    }
+
+    /**
+     * Sets the neighbourhood size and radius used for normal estimation.
+     */
+    public void setNormalNeighbors(int neighbors, float maxRadius)
+    {
+        normalEstimator.setNeighbors(neighbors);
+        normalEstimator.setMaxRadius(maxRadius);
+    }
+
+    /**
+     * Computes PCA normals for {@code points}, oriented towards the capture viewpoint
+     * ({@code vx}, {@code vy}, {@code vz}).
+     */
+    public void estimateNormals(PointBuffer points, float vx, float vy, float vz)
+    {
+        normalEstimator.estimate(points, vx, vy, vz);
+    }
+
+    public PlaneSegmentation getPlaneSegmentation()
+    {
+        return planeSegmentation;
+    }
+
+    /**
+     * Restricts plane removal to planes whose normal is within {@code maxAngleDegrees} of the up
+     * direction, so walls and the object's own faces are not taken for the support plane.
+     */
+    public void setGravityPrior(float upX, float upY, float upZ, float maxAngleDegrees)
+    {
+        planeSegmentation.setGravityPrior(upX, upY, upZ, maxAngleDegrees);
+    }
+
+    /**
+     * Removes the points of the dominant plane, such as the table under the object, from
+     * {@code points}.
+     *
+     * @param kept receives the original indices of the remaining points
+     * @return the number of points removed
+     */
+    public int removeDominantPlane(PointBuffer points, BitSet kept)
+    {
+        int count = points.size();
+        if(!planeSegmentation.segment(points, kept)) {
+            kept.set(0, count);
+            return 0;
+        }
+        return count - points.retain(kept);
+    }
+
+    /**
+     * Sets the neighbourhood size and the standard deviation multiplier of outlier removal.
+     */
+    public void setOutlierFilter(int meanK, float stddevMultiplier)
+    {
+        outlierFilter.setMeanK(meanK);
+        outlierFilter.setStddevMultiplier(stddevMultiplier);
+    }
+
+    /**
+     * Removes statistical outliers, such as flying pixels at depth edges, from {@code points}.
+     *
+     * @param kept receives the original indices of the remaining points
+     * @return the number of points removed
+     */
+    public int removeOutliers(PointBuffer points, BitSet kept)
+    {
+        int count = points.size();
+        outlierFilter.filter(points, kept);
+        return count - points.retain(kept);
+    }
+
+    /**
+     * Sets the largest gap between neighbouring points of one object, and the size below which a
+     * cluster is considered noise.
+     */
+    public void setClusterTolerance(float tolerance, int minClusterSize)
+    {
+        clustering.setTolerance(tolerance);
+        clustering.setMinClusterSize(minClusterSize);
+    }
+
+    /**
+     * Keeps only the connected cluster of {@code points} hit by the viewing ray from
+     * ({@code ox}, {@code oy}, {@code oz}) along ({@code dx}, {@code dy}, {@code dz}), dropping
+     * the background picked up around the object.
+     *
+     * @param kept receives the original indices of the remaining points
+     * @return the number of points removed
+     */
+    public int isolateObject(PointBuffer points, float ox, float oy, float oz,
+                             float dx, float dy, float dz, BitSet kept)
+    {
+        int count = points.size();
+        clustering.extract(points);
+        int cluster = clustering.nearestToRay(ox, oy, oz, dx, dy, dz);
+        if(cluster == -1) {
+            kept.clear();
+            kept.set(0, count);
+            return 0;
+        }
+        clustering.select(cluster, kept);
+        return count - points.retain(kept);
+    }
+
+    public MergedModel getMergedModel()
+    {
+        return mergedModel;
+    }
+
+    /**
+     * Merges a keyframe's world-space points and their moments into the merged model, growing its
+     * convex hull. Costs time in the new points and the hull size only.
+     *
+     * @return false if the points seen so far do not span a volume yet
+     */
+    public boolean mergeKeyframe(PointBuffer points, PointMoments moments)
+    {
+        return mergedModel.add(points, moments);
+    }
+
+    /**
+     * Empties the merged model, so it can be rebuilt from corrected keyframes with
+     * {@link #mergeKeyframe(PointBuffer, PointMoments)}.
+     */
+    public void resetMergedModel()
+    {
+        mergedModel.clear();
+    }
+
+    public PoseGraph getPoseGraph()
+    {
+        return poseGraph;
+    }
+
+    /**
+     * Adds a keyframe to the pose graph and returns its node.
+     *
+     * @param cameraToWorld the keyframe's corrected depth camera pose
+     * @param odometry      its pose relative to the previous keyframe as measured by motion
+     *                      tracking, or null for the first keyframe
+     */
+    public int addKeyframePose(Matrix4f cameraToWorld, Matrix4f odometry)
+    {
+        int node = poseGraph.addNode(cameraToWorld);
+        if(odometry != null && node > 0) {
+            poseGraph.addEdge(node - 1, node, odometry, ODOMETRY_ROTATION_WEIGHT,
+                    ODOMETRY_TRANSLATION_WEIGHT);
+        }
+        return node;
+    }
+
+    /**
+     * Removes the newest keyframe from the pose graph, with its odometry and loop closure edges.
+     */
+    public void removeLastKeyframePose()
+    {
+        poseGraph.removeLastNode();
+    }
+
+    /**
+     * Finds an older keyframe, not adjacent to {@code node}, whose camera was close enough and
+     * looked in a similar enough direction to see the same surface. Returns the nearest one, or
+     * -1 if there is none.
+     */
+    public int findLoopCandidate(int node)
+    {
+        poseGraph.getPose(node, sourcePose);
+        float cosine = (float) Math.cos(LOOP_MAX_ANGLE);
+        float best = LOOP_MAX_DISTANCE * LOOP_MAX_DISTANCE;
+        int candidate = -1;
+        for(int i = 0; i < node - 1; i++) {
+            poseGraph.getPose(i, targetPose);
+            float dx = targetPose.m30 - sourcePose.m30, dy = targetPose.m31 - sourcePose.m31;
+            float dz = targetPose.m32 - sourcePose.m32;
+            float distance = dx * dx + dy * dy + dz * dz;
+            float facing = targetPose.m20 * sourcePose.m20 + targetPose.m21 * sourcePose.m21
+                    + targetPose.m22 * sourcePose.m22;
+            if(distance < best && facing > cosine) {
+                best = distance;
+                candidate = i;
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * Registers the points of keyframe {@code sourceNode} against those of {@code targetNode},
+     * both in world coordinates under their current graph poses, and adds the result as a loop
+     * closure edge if the registration is good enough.
+     *
+     * @param target points of the target keyframe, with normals
+     * @return true if an edge was added
+     */
+    public boolean closeLoop(int targetNode, PointBuffer target, int sourceNode, PointBuffer source)
+    {
+        loopRegistration.setTarget(target);
+        if(!loopRegistration.align(source, loopCorrection)
+                || loopRegistration.getCorrespondences() < LOOP_MIN_CORRESPONDENCES
+                || loopRegistration.getRmsError() > LOOP_MAX_RMS)
+            return false;
+        // The corrected source pose is loopCorrection * sourcePose; express it in the target frame.
+        poseGraph.getPose(targetNode, targetPose).invertAffine();
+        poseGraph.getPose(sourceNode, sourcePose);
+        targetPose.mul(loopCorrection, loopMeasurement).mul(sourcePose);
+        poseGraph.addEdge(targetNode, sourceNode, loopMeasurement, LOOP_ROTATION_WEIGHT,
+                LOOP_TRANSLATION_WEIGHT);
+        return true;
+    }
 
+    /**
+     * Re-optimises all keyframe poses; read them back with {@link PoseGraph#getPose}.
+     *
+     * @return the remaining cost of the graph
+     */
+    public double optimizePoses()
+    {
+        return poseGraph.optimize(POSE_GRAPH_ITERATIONS);
+    }
 }
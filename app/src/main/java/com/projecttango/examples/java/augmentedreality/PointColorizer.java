@@ -0,0 +1,108 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+
+import org.joml.Matrix4f;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Colors depth points from the color camera image. The depth-to-color extrinsics and the color
+ * intrinsics are folded once per frame into a single 3x4 projection from the depth camera frame
+ * to image pixels, so each point costs one projection and one pixel read, with no allocation.
+ * Points behind the color camera or outside its image get transparent black.
+ */
+public class PointColorizer
+{
+    private final Matrix4f depthToColor = new Matrix4f();
+    private final Matrix4f scratch = new Matrix4f();
+    // Rows of the projection to homogeneous pixel coordinates.
+    private float p00, p01, p02, p03;
+    private float p10, p11, p12, p13;
+    private float p20, p21, p22, p23;
+
+    private ByteBuffer image;
+    private int width, height;
+
+    /**
+     * Sets the color and depth camera poses in the device frame, as given by
+     * {@code DeviceExtrinsics}.
+     */
+    public void setExtrinsics(Matrix4f deviceToColorCamera, Matrix4f deviceToDepthCamera)
+    {
+        deviceToColorCamera.invertAffine(scratch);
+        scratch.mul(deviceToDepthCamera, depthToColor);
+    }
+
+    /**
+     * Sets the color image to sample, as packed RGBA rows, top row first, and prepares the
+     * projection. The intrinsics are scaled if the image is not at their resolution.
+     */
+    public void setImage(ByteBuffer rgba, int width, int height, TangoCameraIntrinsics intrinsics)
+    {
+        this.image = rgba;
+        this.width = width;
+        this.height = height;
+        float sx = (float) width / intrinsics.width, sy = (float) height / intrinsics.height;
+        float fx = (float) intrinsics.fx * sx, cx = (float) intrinsics.cx * sx;
+        float fy = (float) intrinsics.fy * sy, cy = (float) intrinsics.cy * sy;
+        Matrix4f m = depthToColor;
+        p00 = fx * m.m00 + cx * m.m02;
+        p01 = fx * m.m10 + cx * m.m12;
+        p02 = fx * m.m20 + cx * m.m22;
+        p03 = fx * m.m30 + cx * m.m32;
+        p10 = fy * m.m01 + cy * m.m02;
+        p11 = fy * m.m11 + cy * m.m12;
+        p12 = fy * m.m21 + cy * m.m22;
+        p13 = fy * m.m31 + cy * m.m32;
+        p20 = m.m02;
+        p21 = m.m12;
+        p22 = m.m22;
+        p23 = m.m32;
+    }
+
+    /**
+     * Colors the first {@code count} points of {@code points} from their depth camera
+     * coordinates in {@code depthXyz} (read from index 0), which must be in the same order.
+     * Returns the number of points that fell inside the image.
+     * <p/>
+     * The RGBA pixels are stored repacked as opaque ARGB ints, the {@code android.graphics.Color}
+     * layout {@link PointBuffer} keeps colors in.
+     */
+    public int colorize(FloatBuffer depthXyz, int count, PointBuffer points)
+    {
+        points.enableColors();
+        int[] colors = points.getColorArray();
+        if(image == null) {
+            for(int i = 0; i < count; i++) {
+                colors[i] = 0;
+            }
+            return 0;
+        }
+        boolean littleEndian = image.order() == ByteOrder.LITTLE_ENDIAN;
+        int colored = 0;
+        for(int i = 0, k = 0; i < count; i++, k += 3) {
+            float x = depthXyz.get(k), y = depthXyz.get(k + 1), z = depthXyz.get(k + 2);
+            float w = p20 * x + p21 * y + p22 * z + p23;
+            colors[i] = 0;
+            if(w <= 0)
+                continue;
+            float u = (p00 * x + p01 * y + p02 * z + p03) / w;
+            float v = (p10 * x + p11 * y + p12 * z + p13) / w;
+            if(!(u >= 0 && u < width && v >= 0 && v < height))
+                continue;
+            // One read per pixel: RGBA bytes, as an int in the buffer's byte order.
+            int rgba = image.getInt(((int) v * width + (int) u) * 4);
+            if(littleEndian) {
+                colors[i] = 0xff000000 | (rgba & 0xff) << 16 | (rgba & 0xff00)
+                        | (rgba >> 16) & 0xff;
+            } else {
+                colors[i] = 0xff000000 | rgba >>> 8;
+            }
+            colored++;
+        }
+        return colored;
+    }
+}
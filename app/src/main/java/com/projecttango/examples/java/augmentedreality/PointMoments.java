@@ -0,0 +1,214 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Streaming first and second moments of a point set: count, mean, covariance and bounds.
+ * Points are accumulated once, and accumulators of separate sets combine in constant time with
+ * the pairwise update of Chan et al., so the extent of many keyframes can be found without
+ * revisiting their points. Co-moments are kept about the running mean, which avoids the
+ * cancellation of the naive sum-of-squares formula far from the origin.
+ */
+public class PointMoments
+{
+    private long count;
+    private double meanX, meanY, meanZ;
+    // Sums of products of deviations from the mean: xx, xy, xz, yy, yz, zz.
+    private final double[] comoments = new double[6];
+    private float minX, minY, minZ, maxX, maxY, maxZ;
+    private final double[] eigen = new double[12];
+
+    public PointMoments()
+    {
+        clear();
+    }
+
+    public void clear()
+    {
+        count = 0;
+        meanX = meanY = meanZ = 0;
+        for(int i = 0; i < 6; i++) {
+            comoments[i] = 0;
+        }
+        minX = minY = minZ = Float.MAX_VALUE;
+        maxX = maxY = maxZ = -Float.MAX_VALUE;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    /**
+     * Accumulates every point of {@code points}. The batch is reduced on its own in two passes
+     * and then merged, which is both cheaper and more accurate than adding points one by one.
+     */
+    public void add(PointBuffer points)
+    {
+        int n = points.size();
+        if(n == 0)
+            return;
+        float[] xyz = points.getXyzArray();
+        double sumX = 0, sumY = 0, sumZ = 0;
+        float loX = Float.MAX_VALUE, loY = Float.MAX_VALUE, loZ = Float.MAX_VALUE;
+        float hiX = -Float.MAX_VALUE, hiY = -Float.MAX_VALUE, hiZ = -Float.MAX_VALUE;
+        for(int k = 0; k < n * 3; k += 3) {
+            float x = xyz[k], y = xyz[k + 1], z = xyz[k + 2];
+            sumX += x;
+            sumY += y;
+            sumZ += z;
+            loX = Math.min(loX, x);
+            loY = Math.min(loY, y);
+            loZ = Math.min(loZ, z);
+            hiX = Math.max(hiX, x);
+            hiY = Math.max(hiY, y);
+            hiZ = Math.max(hiZ, z);
+        }
+        double mx = sumX / n, my = sumY / n, mz = sumZ / n;
+        double xx = 0, xy = 0, xz = 0, yy = 0, yz = 0, zz = 0;
+        for(int k = 0; k < n * 3; k += 3) {
+            double dx = xyz[k] - mx, dy = xyz[k + 1] - my, dz = xyz[k + 2] - mz;
+            xx += dx * dx;
+            xy += dx * dy;
+            xz += dx * dz;
+            yy += dy * dy;
+            yz += dy * dz;
+            zz += dz * dz;
+        }
+        merge(n, mx, my, mz, xx, xy, xz, yy, yz, zz, loX, loY, loZ, hiX, hiY, hiZ);
+    }
+
+    /**
+     * Combines the moments of {@code other} into this accumulator, in constant time.
+     */
+    public void merge(PointMoments other)
+    {
+        double[] c = other.comoments;
+        merge(other.count, other.meanX, other.meanY, other.meanZ, c[0], c[1], c[2], c[3], c[4], c[5],
+                other.minX, other.minY, other.minZ, other.maxX, other.maxY, other.maxZ);
+    }
+
+    private void merge(long n, double mx, double my, double mz,
+                       double xx, double xy, double xz, double yy, double yz, double zz,
+                       float loX, float loY, float loZ, float hiX, float hiY, float hiZ)
+    {
+        if(n == 0)
+            return;
+        long total = count + n;
+        double dx = mx - meanX, dy = my - meanY, dz = mz - meanZ;
+        double scale = (double) count * n / total;
+        comoments[0] += xx + dx * dx * scale;
+        comoments[1] += xy + dx * dy * scale;
+        comoments[2] += xz + dx * dz * scale;
+        comoments[3] += yy + dy * dy * scale;
+        comoments[4] += yz + dy * dz * scale;
+        comoments[5] += zz + dz * dz * scale;
+        double weight = (double) n / total;
+        meanX += dx * weight;
+        meanY += dy * weight;
+        meanZ += dz * weight;
+        count = total;
+
+        minX = Math.min(minX, loX);
+        minY = Math.min(minY, loY);
+        minZ = Math.min(minZ, loZ);
+        maxX = Math.max(maxX, hiX);
+        maxY = Math.max(maxY, hiY);
+        maxZ = Math.max(maxZ, hiZ);
+    }
+
+    public Vector3f getMean(Vector3f dest)
+    {
+        return dest.set((float) meanX, (float) meanY, (float) meanZ);
+    }
+
+    /**
+     * Writes the population covariance to {@code out[0..5]} as xx, xy, xz, yy, yz, zz.
+     */
+    public double[] getCovariance(double[] out)
+    {
+        for(int i = 0; i < 6; i++) {
+            out[i] = count > 0 ? comoments[i] / count : 0;
+        }
+        return out;
+    }
+
+    public Vector3f getMin(Vector3f dest)
+    {
+        return dest.set(minX, minY, minZ);
+    }
+
+    public Vector3f getMax(Vector3f dest)
+    {
+        return dest.set(maxX, maxY, maxZ);
+    }
+
+    /**
+     * Axis-aligned bounding box as its centre and half extents.
+     */
+    public void getAxisAlignedBox(Vector3f center, Vector3f halfExtents)
+    {
+        center.set((minX + maxX) / 2, (minY + maxY) / 2, (minZ + maxZ) / 2);
+        halfExtents.set((maxX - minX) / 2, (maxY - minY) / 2, (maxZ - minZ) / 2);
+    }
+
+    /**
+     * Box aligned with the principal axes of the points. {@code pose} receives a rigid transform
+     * whose rotation columns are the axes, by decreasing variance, and whose translation is the
+     * mean. Without the points themselves the extent along each axis can only be estimated: it is
+     * taken as {@code sqrt(3 * variance)}, the exact half extent of a uniformly filled box, and
+     * clamped so the box never reaches past the bounding sphere of the axis-aligned box.
+     */
+    public void getOrientedBox(Matrix4f pose, Vector3f halfExtents)
+    {
+        double[] c = getCovariance(eigen);
+        double c00 = c[0], c01 = c[1], c02 = c[2], c11 = c[3], c12 = c[4], c22 = c[5];
+        SymmetricEigen3.eigenvalues(c00, c01, c02, c11, c12, c22, eigen);
+        double smallest = eigen[0], middle = eigen[1], largest = eigen[2];
+        SymmetricEigen3.eigenvector(c00, c01, c02, c11, c12, c22, largest, eigen, 3);
+        SymmetricEigen3.eigenvector(c00, c01, c02, c11, c12, c22, middle, eigen, 6);
+        // Derive the third axis so the frame is right handed even for repeated eigenvalues.
+        double ax = eigen[3], ay = eigen[4], az = eigen[5];
+        double bx = eigen[6], by = eigen[7], bz = eigen[8];
+        double dot = ax * bx + ay * by + az * bz;
+        bx -= dot * ax;
+        by -= dot * ay;
+        bz -= dot * az;
+        double length = Math.sqrt(bx * bx + by * by + bz * bz);
+        if(length < 1e-9) {
+            // Degenerate: pick any unit vector orthogonal to the first axis.
+            if(Math.abs(ax) < 0.9) {
+                bx = 0; by = az; bz = -ay;
+            } else {
+                bx = -az; by = 0; bz = ax;
+            }
+            length = Math.sqrt(bx * bx + by * by + bz * bz);
+        }
+        bx /= length;
+        by /= length;
+        bz /= length;
+        double cx = ay * bz - az * by, cy = az * bx - ax * bz, cz = ax * by - ay * bx;
+
+        pose.identity();
+        pose.m00 = (float) ax; pose.m01 = (float) ay; pose.m02 = (float) az;
+        pose.m10 = (float) bx; pose.m11 = (float) by; pose.m12 = (float) bz;
+        pose.m20 = (float) cx; pose.m21 = (float) cy; pose.m22 = (float) cz;
+        pose.m30 = (float) meanX; pose.m31 = (float) meanY; pose.m32 = (float) meanZ;
+
+        float dx = maxX - minX, dy = maxY - minY, dz = maxZ - minZ;
+        float limit = count > 0 ? (float) Math.sqrt(dx * dx + dy * dy + dz * dz) / 2 : 0;
+        halfExtents.set(halfExtent(largest, limit), halfExtent(middle, limit),
+                halfExtent(smallest, limit));
+    }
+
+    private static float halfExtent(double variance, float limit)
+    {
+        return Math.min((float) Math.sqrt(3 * Math.max(variance, 0)), limit);
+    }
+}
@@ -0,0 +1,367 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.joml.FrustumIntersection;
+
+import java.util.Arrays;
+
+/**
+ * Incremental octree over world-space points.
+ * Nodes live in flat arrays (bounds and eight child slots per node) and only the octants that
+ * receive points get a child. Leaves store their points in a {@link PointBuffer} and split once
+ * they exceed {@code leafCapacity}, unless they have reached {@code minLeafSize}, which bounds the
+ * depth of the tree. The root grows outwards when a point falls outside of it, so the extent of the
+ * scene does not have to be known up front.
+ * <p/>
+ * Box, sphere and frustum queries copy whole leaves when a node is fully contained and only test
+ * individual points in leaves that straddle the query boundary.
+ */
+public class PointOctree
+{
+    private static final int DEFAULT_LEAF_CAPACITY = 512;
+    private static final float DEFAULT_MIN_LEAF_SIZE = 0.05f;
+    private static final float INITIAL_HALF_SIZE = 1.0f;
+    private static final int ALL_PLANES = FrustumIntersection.PLANE_MASK_NX
+            | FrustumIntersection.PLANE_MASK_PX | FrustumIntersection.PLANE_MASK_NY
+            | FrustumIntersection.PLANE_MASK_PY | FrustumIntersection.PLANE_MASK_NZ
+            | FrustumIntersection.PLANE_MASK_PZ;
+
+    private final int leafCapacity;
+    private final float minLeafSize;
+
+    // Per node: center x, y, z and half size.
+    private float[] bounds = new float[64 * 4];
+    // Per node: eight child indices, -1 where the octant is empty.
+    private int[] children = new int[64 * 8];
+    // Points of leaf nodes; null for internal nodes.
+    private PointBuffer[] leaves = new PointBuffer[64];
+    private int nodeCount;
+    private int root = -1;
+    private int size;
+
+    public PointOctree()
+    {
+        this(DEFAULT_LEAF_CAPACITY, DEFAULT_MIN_LEAF_SIZE);
+    }
+
+    public PointOctree(int leafCapacity, float minLeafSize)
+    {
+        this.leafCapacity = leafCapacity;
+        this.minLeafSize = minLeafSize;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(leaves, 0, nodeCount, null);
+        nodeCount = 0;
+        root = -1;
+        size = 0;
+    }
+
+    /**
+     * Inserts every point of {@code points} and returns how many were inserted; points with a
+     * NaN or infinite coordinate are skipped.
+     */
+    public int insert(PointBuffer points)
+    {
+        float[] xyz = points.getXyzArray();
+        int inserted = 0;
+        for(int k = 0; k < points.size() * 3; k += 3) {
+            if(insert(xyz[k], xyz[k + 1], xyz[k + 2])) {
+                inserted++;
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Inserts a point and returns true, or returns false if a coordinate is NaN or infinite:
+     * no root could ever grow to contain it.
+     */
+    public boolean insert(float x, float y, float z)
+    {
+        if(!isFinite(x) || !isFinite(y) || !isFinite(z))
+            return false;
+        if(root < 0) {
+            root = newLeaf(x, y, z, INITIAL_HALF_SIZE);
+        }
+        while(!contains(root, x, y, z)) {
+            growTowards(x, y, z);
+        }
+
+        int node = root;
+        while(leaves[node] == null) {
+            int octant = octant(node, x, y, z);
+            int child = children[node * 8 + octant];
+            if(child < 0) {
+                child = newChild(node, octant);
+            }
+            node = child;
+        }
+        leaves[node].add(x, y, z);
+        size++;
+        if(leaves[node].size() > leafCapacity && bounds[node * 4 + 3] * 2 > minLeafSize) {
+            split(node);
+        }
+        return true;
+    }
+
+    private static boolean isFinite(float value)
+    {
+        // False for NaN too, as every comparison with it is.
+        return Math.abs(value) <= Float.MAX_VALUE;
+    }
+
+    /**
+     * Appends the points inside the axis-aligned box to {@code out} and returns how many were
+     * added.
+     */
+    public int queryBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ,
+                        PointBuffer out)
+    {
+        int before = out.size();
+        if(root >= 0) {
+            queryBox(root, minX, minY, minZ, maxX, maxY, maxZ, out);
+        }
+        return out.size() - before;
+    }
+
+    /**
+     * Appends the points inside the sphere to {@code out} and returns how many were added.
+     */
+    public int querySphere(float x, float y, float z, float radius, PointBuffer out)
+    {
+        int before = out.size();
+        if(root >= 0) {
+            querySphere(root, x, y, z, radius, out);
+        }
+        return out.size() - before;
+    }
+
+    /**
+     * Appends the points inside the view frustum to {@code out} and returns how many were added.
+     */
+    public int queryFrustum(FrustumIntersection frustum, PointBuffer out)
+    {
+        int before = out.size();
+        if(root >= 0) {
+            queryFrustum(root, frustum, FrustumIntersection.PLANE_NX, out);
+        }
+        return out.size() - before;
+    }
+
+    private void queryBox(int node, float minX, float minY, float minZ, float maxX, float maxY,
+                          float maxZ, PointBuffer out)
+    {
+        int b = node * 4;
+        float h = bounds[b + 3];
+        float loX = bounds[b] - h, loY = bounds[b + 1] - h, loZ = bounds[b + 2] - h;
+        float hiX = bounds[b] + h, hiY = bounds[b + 1] + h, hiZ = bounds[b + 2] + h;
+        if(hiX < minX || loX > maxX || hiY < minY || loY > maxY || hiZ < minZ || loZ > maxZ)
+            return;
+        if(loX >= minX && hiX <= maxX && loY >= minY && hiY <= maxY && loZ >= minZ && hiZ <= maxZ) {
+            collect(node, out);
+            return;
+        }
+        PointBuffer leaf = leaves[node];
+        if(leaf != null) {
+            float[] xyz = leaf.getXyzArray();
+            for(int k = 0; k < leaf.size() * 3; k += 3) {
+                float x = xyz[k], y = xyz[k + 1], z = xyz[k + 2];
+                if(x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ) {
+                    out.add(x, y, z);
+                }
+            }
+            return;
+        }
+        for(int i = 0; i < 8; i++) {
+            int child = children[node * 8 + i];
+            if(child >= 0) {
+                queryBox(child, minX, minY, minZ, maxX, maxY, maxZ, out);
+            }
+        }
+    }
+
+    private void querySphere(int node, float x, float y, float z, float radius, PointBuffer out)
+    {
+        int b = node * 4;
+        float h = bounds[b + 3];
+        float dx = Math.abs(x - bounds[b]), dy = Math.abs(y - bounds[b + 1]);
+        float dz = Math.abs(z - bounds[b + 2]);
+        // Distance from the centre to the nearest and farthest points of the node box.
+        float nx = Math.max(dx - h, 0), ny = Math.max(dy - h, 0), nz = Math.max(dz - h, 0);
+        float r2 = radius * radius;
+        if(nx * nx + ny * ny + nz * nz > r2)
+            return;
+        float fx = dx + h, fy = dy + h, fz = dz + h;
+        if(fx * fx + fy * fy + fz * fz <= r2) {
+            collect(node, out);
+            return;
+        }
+        PointBuffer leaf = leaves[node];
+        if(leaf != null) {
+            float[] xyz = leaf.getXyzArray();
+            for(int k = 0; k < leaf.size() * 3; k += 3) {
+                float ex = xyz[k] - x, ey = xyz[k + 1] - y, ez = xyz[k + 2] - z;
+                if(ex * ex + ey * ey + ez * ez <= r2) {
+                    out.add(xyz[k], xyz[k + 1], xyz[k + 2]);
+                }
+            }
+            return;
+        }
+        for(int i = 0; i < 8; i++) {
+            int child = children[node * 8 + i];
+            if(child >= 0) {
+                querySphere(child, x, y, z, radius, out);
+            }
+        }
+    }
+
+    /**
+     * Hierarchical frustum culling, one box test per node. A node fully inside the frustum has its
+     * whole subtree copied without further tests. Neighbouring nodes tend to be culled by the
+     * same plane, so the test starts at {@code startPlane}; returns the plane the next sibling
+     * should start at.
+     */
+    private int queryFrustum(int node, FrustumIntersection frustum, int startPlane,
+                             PointBuffer out)
+    {
+        int b = node * 4;
+        float h = bounds[b + 3];
+        float minX = bounds[b] - h, minY = bounds[b + 1] - h, minZ = bounds[b + 2] - h;
+        float maxX = bounds[b] + h, maxY = bounds[b + 1] + h, maxZ = bounds[b + 2] + h;
+        int result = frustum.intersectAab(minX, minY, minZ, maxX, maxY, maxZ, ALL_PLANES,
+                startPlane);
+        if(result >= 0)
+            return result;
+        if(result == FrustumIntersection.INSIDE) {
+            collect(node, out);
+            return startPlane;
+        }
+        PointBuffer leaf = leaves[node];
+        if(leaf != null) {
+            float[] xyz = leaf.getXyzArray();
+            for(int k = 0; k < leaf.size() * 3; k += 3) {
+                if(frustum.testPoint(xyz[k], xyz[k + 1], xyz[k + 2])) {
+                    out.add(xyz[k], xyz[k + 1], xyz[k + 2]);
+                }
+            }
+            return startPlane;
+        }
+        for(int i = 0; i < 8; i++) {
+            int child = children[node * 8 + i];
+            if(child >= 0) {
+                startPlane = queryFrustum(child, frustum, startPlane, out);
+            }
+        }
+        return startPlane;
+    }
+
+    /**
+     * Copies every point of the subtree.
+     */
+    private void collect(int node, PointBuffer out)
+    {
+        PointBuffer leaf = leaves[node];
+        if(leaf != null) {
+            out.addAll(leaf);
+            return;
+        }
+        for(int i = 0; i < 8; i++) {
+            int child = children[node * 8 + i];
+            if(child >= 0) {
+                collect(child, out);
+            }
+        }
+    }
+
+    private boolean contains(int node, float x, float y, float z)
+    {
+        int b = node * 4;
+        float h = bounds[b + 3];
+        return Math.abs(x - bounds[b]) <= h && Math.abs(y - bounds[b + 1]) <= h
+                && Math.abs(z - bounds[b + 2]) <= h;
+    }
+
+    private int octant(int node, float x, float y, float z)
+    {
+        int b = node * 4;
+        return (x >= bounds[b] ? 1 : 0) | (y >= bounds[b + 1] ? 2 : 0) | (z >= bounds[b + 2] ? 4 : 0);
+    }
+
+    /**
+     * Replaces the root by one twice its size, extended towards the given point, that holds the
+     * old root as one of its octants.
+     */
+    private void growTowards(float x, float y, float z)
+    {
+        int b = root * 4;
+        float h = bounds[b + 3];
+        float cx = bounds[b] + (x >= bounds[b] ? h : -h);
+        float cy = bounds[b + 1] + (y >= bounds[b + 1] ? h : -h);
+        float cz = bounds[b + 2] + (z >= bounds[b + 2] ? h : -h);
+        int oldRoot = root;
+        root = newNode(cx, cy, cz, h * 2);
+        children[root * 8 + octant(root, bounds[b], bounds[b + 1], bounds[b + 2])] = oldRoot;
+    }
+
+    private void split(int node)
+    {
+        PointBuffer points = leaves[node];
+        leaves[node] = null;
+        float[] xyz = points.getXyzArray();
+        for(int k = 0; k < points.size() * 3; k += 3) {
+            int octant = octant(node, xyz[k], xyz[k + 1], xyz[k + 2]);
+            int child = children[node * 8 + octant];
+            if(child < 0) {
+                child = newChild(node, octant);
+            }
+            leaves[child].add(xyz[k], xyz[k + 1], xyz[k + 2]);
+        }
+    }
+
+    private int newChild(int parent, int octant)
+    {
+        int b = parent * 4;
+        float h = bounds[b + 3] * 0.5f;
+        int child = newLeaf(bounds[b] + ((octant & 1) != 0 ? h : -h),
+                bounds[b + 1] + ((octant & 2) != 0 ? h : -h),
+                bounds[b + 2] + ((octant & 4) != 0 ? h : -h), h);
+        children[parent * 8 + octant] = child;
+        return child;
+    }
+
+    private int newLeaf(float cx, float cy, float cz, float halfSize)
+    {
+        int node = newNode(cx, cy, cz, halfSize);
+        leaves[node] = new PointBuffer(64);
+        return node;
+    }
+
+    private int newNode(float cx, float cy, float cz, float halfSize)
+    {
+        if(nodeCount == leaves.length) {
+            int capacity = nodeCount * 2;
+            bounds = Arrays.copyOf(bounds, capacity * 4);
+            children = Arrays.copyOf(children, capacity * 8);
+            leaves = Arrays.copyOf(leaves, capacity);
+        }
+        int node = nodeCount++;
+        bounds[node * 4] = cx;
+        bounds[node * 4 + 1] = cy;
+        bounds[node * 4 + 2] = cz;
+        bounds[node * 4 + 3] = halfSize;
+        Arrays.fill(children, node * 8, node * 8 + 8, -1);
+        leaves[node] = null;
+        return node;
+    }
+}
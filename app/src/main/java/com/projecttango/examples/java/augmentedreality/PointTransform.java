@@ -0,0 +1,119 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.joml.Matrix4f;
+import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Applies an affine model matrix to a whole packed point buffer in one pass.
+ * The matrix is converted once per frame into a JOML {@link Matrix4f}; the per-point work is a
+ * 3x4 multiply on primitive floats, with no allocation. The output array is owned by this object
+ * and reused between calls, so keep one instance per consumer thread.
+ */
+public class PointTransform
+{
+    private final Matrix4f matrix = new Matrix4f();
+    private final float[] matrixValues = new float[16];
+    private float[] output = new float[0];
+
+    /**
+     * Uses a column-major Rajawali matrix, e.g. {@code Object3D.getModelMatrix()}.
+     */
+    public PointTransform set(Matrix4 modelMatrix)
+    {
+        modelMatrix.toFloatArray(matrixValues);
+        matrix.set(matrixValues);
+        return this;
+    }
+
+    public PointTransform set(Matrix4f modelMatrix)
+    {
+        matrix.set(modelMatrix);
+        return this;
+    }
+
+    /**
+     * Sets {@code dest} to the model matrix Rajawali draws an object with at {@code position}
+     * and {@code orientation}, the one {@code Object3D.getModelMatrix()} holds, and returns it.
+     * Rajawali quaternions are left handed, so they are conjugated for JOML; taken as they are,
+     * the rotation would come out transposed.
+     */
+    public static Matrix4f toModelMatrix(Vector3 position, Quaternion orientation, Matrix4f dest)
+    {
+        return dest.translationRotateScale((float) position.x, (float) position.y,
+                (float) position.z, (float) -orientation.x, (float) -orientation.y,
+                (float) -orientation.z, (float) orientation.w, 1, 1, 1);
+    }
+
+    public Matrix4f getMatrix()
+    {
+        return matrix;
+    }
+
+    /**
+     * Transforms the first {@code count} interleaved points of {@code src} (read from index 0,
+     * leaving its position untouched) and returns the reusable output array. Only the first
+     * {@code count * 3} entries of the returned array are valid.
+     */
+    public float[] apply(FloatBuffer src, int count)
+    {
+        if(output.length < count * 3) {
+            output = new float[count * 3];
+        }
+        int position = src.position();
+        src.position(0);
+        src.get(output, 0, count * 3);
+        src.position(position);
+        apply(output, 0, output, 0, count);
+        return output;
+    }
+
+    /**
+     * Transforms {@code count} interleaved points from {@code src} into {@code dst}.
+     * {@code src} and {@code dst} may be the same array.
+     */
+    public void apply(float[] src, int srcOffset, float[] dst, int dstOffset, int count)
+    {
+        final float m00 = matrix.m00, m01 = matrix.m01, m02 = matrix.m02;
+        final float m10 = matrix.m10, m11 = matrix.m11, m12 = matrix.m12;
+        final float m20 = matrix.m20, m21 = matrix.m21, m22 = matrix.m22;
+        final float m30 = matrix.m30, m31 = matrix.m31, m32 = matrix.m32;
+
+        int end = srcOffset + count * 3;
+        for(int i = srcOffset, o = dstOffset; i < end; i += 3, o += 3) {
+            float x = src[i];
+            float y = src[i + 1];
+            float z = src[i + 2];
+            dst[o] = m00 * x + m10 * y + m20 * z + m30;
+            dst[o + 1] = m01 * x + m11 * y + m21 * z + m31;
+            dst[o + 2] = m02 * x + m12 * y + m22 * z + m32;
+        }
+    }
+
+    /**
+     * Transforms every point of {@code points} in place, rotating their normals if they have any.
+     * The matrix must be rigid for the normals to stay unit length.
+     */
+    public void apply(PointBuffer points)
+    {
+        float[] xyz = points.getXyzArray();
+        apply(xyz, 0, xyz, 0, points.size());
+        if(!points.hasNormals())
+            return;
+        final float m00 = matrix.m00, m01 = matrix.m01, m02 = matrix.m02;
+        final float m10 = matrix.m10, m11 = matrix.m11, m12 = matrix.m12;
+        final float m20 = matrix.m20, m21 = matrix.m21, m22 = matrix.m22;
+        float[] normals = points.getNormalArray();
+        for(int i = 0, end = points.size() * 3; i < end; i += 3) {
+            float x = normals[i];
+            float y = normals[i + 1];
+            float z = normals[i + 2];
+            normals[i] = m00 * x + m10 * y + m20 * z;
+            normals[i + 1] = m01 * x + m11 * y + m21 * z;
+            normals[i + 2] = m02 * x + m12 * y + m22 * z;
+        }
+    }
+}
@@ -0,0 +1,648 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.joml.Matrix4f;
+
+import java.util.Arrays;
+
+/**
+ * Graph of camera poses linked by relative pose measurements, such as odometry between
+ * consecutive keyframes and loop closures found by registration, optimised by Levenberg-Marquardt
+ * over SE(3).
+ * <p/>
+ * Each pose is updated by a rotation increment applied on the left and a translation increment.
+ * The normal equations are block sparse: an edge only couples the 6x6 blocks of its two poses.
+ * They are stored as a block skyline, where each row of blocks starts at the first pose it is
+ * linked to, and are factored by Cholesky in place. The poses are numbered in reverse
+ * Cuthill-McKee order, which keeps linked poses close together: a trajectory that loops back on
+ * itself is numbered alternately from both ends of the loop, so the skyline stays narrow and a few
+ * hundred poses optimise in milliseconds. Fixed poses, by default the first one, remove the gauge
+ * freedom.
+ */
+public class PoseGraph
+{
+    private static final int BLOCK = 6;
+    // Pose layout: row-major rotation, then translation.
+    private static final int POSE = 12;
+
+    private int nodeCount;
+    private double[] poses = new double[16 * POSE];
+    private double[] saved = new double[0];
+    private boolean[] fixed = new boolean[16];
+
+    private int edgeCount;
+    private int[] edgeFrom = new int[16];
+    private int[] edgeTo = new int[16];
+    private double[] measurements = new double[16 * POSE];
+    private double[] weights = new double[16 * 2];
+
+    // Normal equations over the free poses, as a skyline of rows.
+    private int[] variable = new int[0];
+    private int variableCount;
+    // Links between free poses, in compressed rows, and the work arrays of the ordering.
+    private int[] adjacencyStart = new int[0];
+    private int[] adjacency = new int[0];
+    private int[] degree = new int[0];
+    private int[] order = new int[0];
+    private int[] rowFirst = new int[0];
+    private int[] rowStart = new int[0];
+    private double[] hessian = new double[0];
+    private double[] factor = new double[0];
+    private double[] gradient = new double[0];
+    private double[] step = new double[0];
+
+    // Per-edge scratch: residual, Jacobians and their weighted products.
+    private final double[] residual = new double[BLOCK];
+    private final double[] jacobianFrom = new double[BLOCK * BLOCK];
+    private final double[] jacobianTo = new double[BLOCK * BLOCK];
+    private final double[] block = new double[BLOCK * BLOCK];
+    private final double[] rotation = new double[9];
+    private final double[] product = new double[9];
+
+    private double cost;
+    private int iterations;
+
+    public PoseGraph()
+    {
+        fixed[0] = true;
+    }
+
+    public void clear()
+    {
+        nodeCount = 0;
+        edgeCount = 0;
+        Arrays.fill(fixed, false);
+        fixed[0] = true;
+    }
+
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    public int getEdgeCount()
+    {
+        return edgeCount;
+    }
+
+    /**
+     * Sum of the weighted squared residuals after the last optimisation.
+     */
+    public double getCost()
+    {
+        return cost;
+    }
+
+    public int getIterations()
+    {
+        return iterations;
+    }
+
+    /**
+     * Adds a pose with the given initial estimate and returns its index.
+     */
+    public int addNode(Matrix4f pose)
+    {
+        if(nodeCount == fixed.length) {
+            poses = Arrays.copyOf(poses, nodeCount * 2 * POSE);
+            fixed = Arrays.copyOf(fixed, nodeCount * 2);
+        }
+        setPose(nodeCount, pose);
+        return nodeCount++;
+    }
+
+    /**
+     * Removes the newest pose and every edge attached to it.
+     */
+    public void removeLastNode()
+    {
+        if(nodeCount == 0)
+            throw new IllegalStateException("No pose to remove");
+        nodeCount--;
+        fixed[nodeCount] = nodeCount == 0;
+        int kept = 0;
+        for(int e = 0; e < edgeCount; e++) {
+            if(edgeFrom[e] == nodeCount || edgeTo[e] == nodeCount)
+                continue;
+            if(kept != e) {
+                edgeFrom[kept] = edgeFrom[e];
+                edgeTo[kept] = edgeTo[e];
+                System.arraycopy(measurements, e * POSE, measurements, kept * POSE, POSE);
+                weights[kept * 2] = weights[e * 2];
+                weights[kept * 2 + 1] = weights[e * 2 + 1];
+            }
+            kept++;
+        }
+        edgeCount = kept;
+    }
+
+    /**
+     * Keeps a pose at its current estimate during optimisation.
+     */
+    public void setFixed(int node, boolean fixed)
+    {
+        this.fixed[node] = fixed;
+    }
+
+    public void setPose(int node, Matrix4f pose)
+    {
+        fromMatrix(pose, poses, node * POSE);
+    }
+
+    public Matrix4f getPose(int node, Matrix4f dest)
+    {
+        int p = node * POSE;
+        double[] q = poses;
+        dest.identity();
+        dest.m00 = (float) q[p];     dest.m10 = (float) q[p + 1]; dest.m20 = (float) q[p + 2];
+        dest.m01 = (float) q[p + 3]; dest.m11 = (float) q[p + 4]; dest.m21 = (float) q[p + 5];
+        dest.m02 = (float) q[p + 6]; dest.m12 = (float) q[p + 7]; dest.m22 = (float) q[p + 8];
+        dest.m30 = (float) q[p + 9]; dest.m31 = (float) q[p + 10]; dest.m32 = (float) q[p + 11];
+        return dest;
+    }
+
+    /**
+     * Adds a measurement of the pose of {@code to} in the frame of {@code from}, that is of
+     * {@code inverse(pose(from)) * pose(to)}. The weights are the inverse variances of the
+     * rotation (per radian) and translation (per meter) error.
+     */
+    public void addEdge(int from, int to, Matrix4f measurement, float rotationWeight,
+                        float translationWeight)
+    {
+        if(edgeCount == edgeFrom.length) {
+            edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+            edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+            measurements = Arrays.copyOf(measurements, edgeCount * 2 * POSE);
+            weights = Arrays.copyOf(weights, edgeCount * 4);
+        }
+        edgeFrom[edgeCount] = from;
+        edgeTo[edgeCount] = to;
+        fromMatrix(measurement, measurements, edgeCount * POSE);
+        weights[edgeCount * 2] = rotationWeight;
+        weights[edgeCount * 2 + 1] = translationWeight;
+        edgeCount++;
+    }
+
+    /**
+     * Runs up to {@code maxIterations} Levenberg-Marquardt iterations and returns the final cost.
+     */
+    public double optimize(int maxIterations)
+    {
+        iterations = 0;
+        cost = computeCost();
+        if(!buildStructure())
+            return cost;
+
+        double lambda = 1e-4;
+        while(iterations < maxIterations) {
+            iterations++;
+            buildNormalEquations();
+            boolean improved = false;
+            for(int attempt = 0; attempt < 10 && !improved; attempt++) {
+                if(!solve(lambda)) {
+                    lambda *= 10;
+                    continue;
+                }
+                savePoses();
+                applyStep();
+                double newCost = computeCost();
+                if(newCost < cost) {
+                    improved = true;
+                    boolean converged = cost - newCost < 1e-10 * cost + 1e-12;
+                    cost = newCost;
+                    lambda = Math.max(lambda * 0.3, 1e-9);
+                    if(converged)
+                        return cost;
+                } else {
+                    restorePoses();
+                    lambda *= 10;
+                }
+            }
+            if(!improved)
+                break;
+        }
+        return cost;
+    }
+
+    /**
+     * Numbers the free poses and lays out the skyline: each row of blocks starts at the first
+     * free pose it shares an edge with.
+     */
+    private boolean buildStructure()
+    {
+        if(variable.length < nodeCount) {
+            variable = new int[fixed.length];
+            degree = new int[fixed.length];
+            adjacencyStart = new int[fixed.length + 1];
+            order = new int[fixed.length];
+        }
+        variableCount = 0;
+        for(int i = 0; i < nodeCount; i++) {
+            if(!fixed[i]) {
+                variableCount++;
+            }
+        }
+        if(variableCount == 0)
+            return false;
+        orderNodes();
+
+        int size = variableCount * BLOCK;
+        if(rowFirst.length < size) {
+            rowFirst = new int[size];
+            rowStart = new int[size + 1];
+            gradient = new double[size];
+            step = new double[size];
+        }
+        int[] firstBlock = new int[variableCount];
+        for(int v = 0; v < variableCount; v++) {
+            firstBlock[v] = v;
+        }
+        for(int e = 0; e < edgeCount; e++) {
+            int a = variable[edgeFrom[e]], b = variable[edgeTo[e]];
+            if(a < 0 || b < 0)
+                continue;
+            int low = Math.min(a, b), high = Math.max(a, b);
+            firstBlock[high] = Math.min(firstBlock[high], low);
+        }
+        rowStart[0] = 0;
+        for(int r = 0; r < size; r++) {
+            rowFirst[r] = firstBlock[r / BLOCK] * BLOCK;
+            rowStart[r + 1] = rowStart[r] + r - rowFirst[r] + 1;
+        }
+        int entries = rowStart[size];
+        if(hessian.length < entries) {
+            hessian = new double[entries];
+            factor = new double[entries];
+        }
+        return true;
+    }
+
+    /**
+     * Numbers the free poses in reverse Cuthill-McKee order: breadth first from a pose with the
+     * fewest links, visiting neighbours by increasing number of links, then reversed.
+     */
+    private void orderNodes()
+    {
+        Arrays.fill(degree, 0, nodeCount, 0);
+        for(int e = 0; e < edgeCount; e++) {
+            int a = edgeFrom[e], b = edgeTo[e];
+            if(a != b && !fixed[a] && !fixed[b]) {
+                degree[a]++;
+                degree[b]++;
+            }
+        }
+        adjacencyStart[0] = 0;
+        for(int i = 0; i < nodeCount; i++) {
+            adjacencyStart[i + 1] = adjacencyStart[i] + degree[i];
+        }
+        if(adjacency.length < adjacencyStart[nodeCount]) {
+            adjacency = new int[adjacencyStart[nodeCount] * 2];
+        }
+        Arrays.fill(degree, 0, nodeCount, 0);
+        for(int e = 0; e < edgeCount; e++) {
+            int a = edgeFrom[e], b = edgeTo[e];
+            if(a != b && !fixed[a] && !fixed[b]) {
+                adjacency[adjacencyStart[a] + degree[a]++] = b;
+                adjacency[adjacencyStart[b] + degree[b]++] = a;
+            }
+        }
+
+        // variable[] marks visited poses while the order is built.
+        for(int i = 0; i < nodeCount; i++) {
+            variable[i] = fixed[i] ? -1 : 0;
+        }
+        int ordered = 0;
+        while(ordered < variableCount) {
+            int root = -1;
+            for(int i = 0; i < nodeCount; i++) {
+                if(variable[i] == 0 && (root == -1 || degree[i] < degree[root])) {
+                    root = i;
+                }
+            }
+            variable[root] = 1;
+            order[ordered++] = root;
+            for(int head = ordered - 1; head < ordered; head++) {
+                int node = order[head], first = ordered;
+                for(int k = adjacencyStart[node]; k < adjacencyStart[node + 1]; k++) {
+                    int next = adjacency[k];
+                    if(variable[next] != 0)
+                        continue;
+                    variable[next] = 1;
+                    // Insertion by degree; neighbour lists are short.
+                    int j = ordered++;
+                    while(j > first && degree[order[j - 1]] > degree[next]) {
+                        order[j] = order[j - 1];
+                        j--;
+                    }
+                    order[j] = next;
+                }
+            }
+        }
+        for(int k = 0; k < variableCount; k++) {
+            variable[order[k]] = variableCount - 1 - k;
+        }
+    }
+
+    private void buildNormalEquations()
+    {
+        int size = variableCount * BLOCK;
+        Arrays.fill(hessian, 0, rowStart[size], 0);
+        Arrays.fill(gradient, 0, size, 0);
+        for(int e = 0; e < edgeCount; e++) {
+            linearize(e);
+            int a = variable[edgeFrom[e]], b = variable[edgeTo[e]];
+            double wr = weights[e * 2], wt = weights[e * 2 + 1];
+            if(a >= 0) {
+                addBlock(a, a, jacobianFrom, jacobianFrom, wr, wt);
+                addGradient(a, jacobianFrom, wr, wt);
+            }
+            if(b >= 0) {
+                addBlock(b, b, jacobianTo, jacobianTo, wr, wt);
+                addGradient(b, jacobianTo, wr, wt);
+            }
+            if(a >= 0 && b >= 0) {
+                if(a > b) {
+                    addBlock(a, b, jacobianFrom, jacobianTo, wr, wt);
+                } else {
+                    addBlock(b, a, jacobianTo, jacobianFrom, wr, wt);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds {@code left^T W right} to the block at (row, column) of the lower triangle.
+     */
+    private void addBlock(int row, int column, double[] left, double[] right, double wr, double wt)
+    {
+        for(int i = 0; i < BLOCK; i++) {
+            for(int j = 0; j < BLOCK; j++) {
+                double sum = 0;
+                for(int k = 0; k < BLOCK; k++) {
+                    sum += left[k * BLOCK + i] * (k < 3 ? wr : wt) * right[k * BLOCK + j];
+                }
+                block[i * BLOCK + j] = sum;
+            }
+        }
+        int r0 = row * BLOCK, c0 = column * BLOCK;
+        for(int i = 0; i < BLOCK; i++) {
+            int r = r0 + i;
+            int last = row == column ? i : BLOCK - 1;
+            for(int j = 0; j <= last; j++) {
+                hessian[rowStart[r] + c0 + j - rowFirst[r]] += block[i * BLOCK + j];
+            }
+        }
+    }
+
+    private void addGradient(int row, double[] jacobian, double wr, double wt)
+    {
+        for(int i = 0; i < BLOCK; i++) {
+            double sum = 0;
+            for(int k = 0; k < BLOCK; k++) {
+                sum += jacobian[k * BLOCK + i] * (k < 3 ? wr : wt) * residual[k];
+            }
+            gradient[row * BLOCK + i] += sum;
+        }
+    }
+
+    /**
+     * Solves {@code (H + lambda diag(H)) step = -g} by skyline Cholesky.
+     */
+    private boolean solve(double lambda)
+    {
+        int size = variableCount * BLOCK;
+        System.arraycopy(hessian, 0, factor, 0, rowStart[size]);
+        for(int r = 0; r < size; r++) {
+            int d = rowStart[r] + r - rowFirst[r];
+            factor[d] += lambda * factor[d] + 1e-12;
+        }
+
+        for(int r = 0; r < size; r++) {
+            int first = rowFirst[r], base = rowStart[r] - first;
+            for(int c = first; c <= r; c++) {
+                int other = rowStart[c] - rowFirst[c];
+                double sum = factor[base + c];
+                for(int k = Math.max(first, rowFirst[c]); k < c; k++) {
+                    sum -= factor[base + k] * factor[other + k];
+                }
+                if(c < r) {
+                    factor[base + c] = sum / factor[other + c];
+                } else {
+                    if(sum <= 0)
+                        return false;
+                    factor[base + c] = Math.sqrt(sum);
+                }
+            }
+        }
+
+        // L y = -g, then L^T x = y.
+        for(int r = 0; r < size; r++) {
+            int base = rowStart[r] - rowFirst[r];
+            double sum = -gradient[r];
+            for(int k = rowFirst[r]; k < r; k++) {
+                sum -= factor[base + k] * step[k];
+            }
+            step[r] = sum / factor[base + r];
+        }
+        for(int r = size - 1; r >= 0; r--) {
+            int base = rowStart[r] - rowFirst[r];
+            step[r] /= factor[base + r];
+            for(int k = rowFirst[r]; k < r; k++) {
+                step[k] -= factor[base + k] * step[r];
+            }
+        }
+        return true;
+    }
+
+    private void applyStep()
+    {
+        for(int i = 0; i < nodeCount; i++) {
+            int v = variable[i];
+            if(v < 0)
+                continue;
+            int s = v * BLOCK, p = i * POSE;
+            exp(step[s], step[s + 1], step[s + 2], rotation);
+            multiply(rotation, 0, poses, p, product);
+            System.arraycopy(product, 0, poses, p, 9);
+            poses[p + 9] += step[s + 3];
+            poses[p + 10] += step[s + 4];
+            poses[p + 11] += step[s + 5];
+        }
+    }
+
+    private double computeCost()
+    {
+        double total = 0;
+        for(int e = 0; e < edgeCount; e++) {
+            computeResidual(e);
+            double wr = weights[e * 2], wt = weights[e * 2 + 1];
+            for(int k = 0; k < BLOCK; k++) {
+                total += (k < 3 ? wr : wt) * residual[k] * residual[k];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Residual of edge {@code e}: the rotation error {@code log(Z_R^T R_i^T R_j)} followed by the
+     * translation error {@code R_i^T (t_j - t_i) - Z_t}.
+     */
+    private void computeResidual(int e)
+    {
+        int i = edgeFrom[e] * POSE, j = edgeTo[e] * POSE, z = e * POSE;
+        double[] q = poses;
+        // rotation = R_i^T R_j
+        for(int r = 0; r < 3; r++) {
+            for(int c = 0; c < 3; c++) {
+                rotation[r * 3 + c] = q[i + r] * q[j + c] + q[i + 3 + r] * q[j + 3 + c]
+                        + q[i + 6 + r] * q[j + 6 + c];
+            }
+        }
+        // product = Z_R^T rotation
+        for(int r = 0; r < 3; r++) {
+            for(int c = 0; c < 3; c++) {
+                product[r * 3 + c] = measurements[z + r] * rotation[c]
+                        + measurements[z + 3 + r] * rotation[3 + c]
+                        + measurements[z + 6 + r] * rotation[6 + c];
+            }
+        }
+        log(product, residual);
+
+        double dx = q[j + 9] - q[i + 9], dy = q[j + 10] - q[i + 10], dz = q[j + 11] - q[i + 11];
+        residual[3] = q[i] * dx + q[i + 3] * dy + q[i + 6] * dz - measurements[z + 9];
+        residual[4] = q[i + 1] * dx + q[i + 4] * dy + q[i + 7] * dz - measurements[z + 10];
+        residual[5] = q[i + 2] * dx + q[i + 5] * dy + q[i + 8] * dz - measurements[z + 11];
+    }
+
+    /**
+     * Residual and Jacobians of edge {@code e} with respect to the increments
+     * (rotation, translation) of both poses. The rotation part uses the small-error
+     * approximation of the inverse right Jacobian of SO(3) as identity.
+     */
+    private void linearize(int e)
+    {
+        computeResidual(e);
+        int i = edgeFrom[e] * POSE, j = edgeTo[e] * POSE;
+        double[] q = poses;
+        Arrays.fill(jacobianFrom, 0);
+        Arrays.fill(jacobianTo, 0);
+        double dx = q[j + 9] - q[i + 9], dy = q[j + 10] - q[i + 10], dz = q[j + 11] - q[i + 11];
+        for(int r = 0; r < 3; r++) {
+            // d rotation error / d rotation: -R_j^T for i, R_j^T for j.
+            for(int c = 0; c < 3; c++) {
+                double value = q[j + c * 3 + r];
+                jacobianFrom[r * BLOCK + c] = -value;
+                jacobianTo[r * BLOCK + c] = value;
+            }
+            // d translation error: R_i^T [t_j - t_i]x for the rotation of i, -R_i^T and R_i^T for
+            // the translations.
+            double ax = q[i + r], ay = q[i + 3 + r], az = q[i + 6 + r];
+            int row = (3 + r) * BLOCK;
+            jacobianFrom[row] = ay * dz - az * dy;
+            jacobianFrom[row + 1] = az * dx - ax * dz;
+            jacobianFrom[row + 2] = ax * dy - ay * dx;
+            jacobianFrom[row + 3] = -ax;
+            jacobianFrom[row + 4] = -ay;
+            jacobianFrom[row + 5] = -az;
+            jacobianTo[row + 3] = ax;
+            jacobianTo[row + 4] = ay;
+            jacobianTo[row + 5] = az;
+        }
+    }
+
+    private void savePoses()
+    {
+        if(saved.length < nodeCount * POSE) {
+            saved = new double[poses.length];
+        }
+        System.arraycopy(poses, 0, saved, 0, nodeCount * POSE);
+    }
+
+    private void restorePoses()
+    {
+        System.arraycopy(saved, 0, poses, 0, nodeCount * POSE);
+    }
+
+    private static void fromMatrix(Matrix4f m, double[] out, int p)
+    {
+        out[p] = m.m00;     out[p + 1] = m.m10; out[p + 2] = m.m20;
+        out[p + 3] = m.m01; out[p + 4] = m.m11; out[p + 5] = m.m21;
+        out[p + 6] = m.m02; out[p + 7] = m.m12; out[p + 8] = m.m22;
+        out[p + 9] = m.m30; out[p + 10] = m.m31; out[p + 11] = m.m32;
+    }
+
+    /**
+     * out = a * b for row-major 3x3 matrices at the given offsets.
+     */
+    private static void multiply(double[] a, int pa, double[] b, int pb, double[] out)
+    {
+        for(int r = 0; r < 3; r++) {
+            for(int c = 0; c < 3; c++) {
+                out[r * 3 + c] = a[pa + r * 3] * b[pb + c] + a[pa + r * 3 + 1] * b[pb + 3 + c]
+                        + a[pa + r * 3 + 2] * b[pb + 6 + c];
+            }
+        }
+    }
+
+    /**
+     * Rodrigues' formula: the rotation of angle |w| about w, row-major.
+     */
+    private static void exp(double wx, double wy, double wz, double[] out)
+    {
+        double angle = Math.sqrt(wx * wx + wy * wy + wz * wz);
+        double a, b;
+        if(angle < 1e-8) {
+            a = 1;
+            b = 0.5;
+        } else {
+            a = Math.sin(angle) / angle;
+            b = (1 - Math.cos(angle)) / (angle * angle);
+        }
+        out[0] = 1 - b * (wy * wy + wz * wz);
+        out[1] = -a * wz + b * wx * wy;
+        out[2] = a * wy + b * wx * wz;
+        out[3] = a * wz + b * wx * wy;
+        out[4] = 1 - b * (wx * wx + wz * wz);
+        out[5] = -a * wx + b * wy * wz;
+        out[6] = -a * wy + b * wx * wz;
+        out[7] = a * wx + b * wy * wz;
+        out[8] = 1 - b * (wx * wx + wy * wy);
+    }
+
+    /**
+     * Rotation vector of a row-major rotation matrix.
+     */
+    private static void log(double[] m, double[] out)
+    {
+        double cosine = Math.max(-1, Math.min(1, (m[0] + m[4] + m[8] - 1) / 2));
+        double angle = Math.acos(cosine);
+        double sx = m[7] - m[5], sy = m[2] - m[6], sz = m[3] - m[1];
+        if(angle < 1e-6) {
+            out[0] = sx / 2;
+            out[1] = sy / 2;
+            out[2] = sz / 2;
+        } else if(Math.PI - angle < 1e-4) {
+            // Near a half turn the skew part vanishes; take the axis from the diagonal.
+            double x = Math.sqrt(Math.max(0, (m[0] + 1) / 2));
+            double y = Math.sqrt(Math.max(0, (m[4] + 1) / 2));
+            double z = Math.sqrt(Math.max(0, (m[8] + 1) / 2));
+            if(x >= y && x >= z) {
+                y = Math.copySign(y, m[1]);
+                z = Math.copySign(z, m[2]);
+            } else if(y >= z) {
+                x = Math.copySign(x, m[1]);
+                z = Math.copySign(z, m[5]);
+            } else {
+                x = Math.copySign(x, m[2]);
+                y = Math.copySign(y, m[5]);
+            }
+            out[0] = x * angle;
+            out[1] = y * angle;
+            out[2] = z * angle;
+        } else {
+            double scale = angle / (2 * Math.sin(angle));
+            out[0] = sx * scale;
+            out[1] = sy * scale;
+            out[2] = sz * scale;
+        }
+    }
+}
@@ -0,0 +1,753 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+
+import android.util.Log;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds keyframes on a background thread so captures never stall rendering. The render thread
+ * hands over snapshots: every new depth frame with its pose, and for each capture a
+ * {@link CaptureRequest} holding the selection, the color image and the extrinsics. They are
+ * processed in order on a single thread, which owns the depth filter, the solver and the keyframe
+ * data: filtering, selection, cleanup, registration, fusion, merging and loop closure all run
+ * there. Each capture then queues a {@link Result} that the render thread picks up with
+ * {@link #poll()} and only has to insert into the scene.
+ */
+public class ReconstructionWorker
+{
+    private static final String TAG = ReconstructionWorker.class.getSimpleName();
+    // Depth frame copies in flight; frames arriving while all are queued are dropped.
+    private static final int DEPTH_FRAME_SLOTS = 3;
+    // Frame copies in flight plus the point buffers of two captures waiting for the renderer.
+    private static final int POOLED_BUFFERS = DEPTH_FRAME_SLOTS + 2;
+    // Longest a capture waits for its color image before keeping its points uncolored.
+    private static final long IMAGE_TIMEOUT_MS = 1000;
+
+    /**
+     * Everything a capture needs from the render thread, copied when the capture is requested.
+     */
+    public static class CaptureRequest
+    {
+        // Reported once by the Tango service and never modified.
+        final TangoCameraIntrinsics intrinsics;
+        // Null to select the whole frame.
+        final LassoSelection lasso;
+        // Depth image pixel the object to keep is isolated under.
+        final float centerX, centerY;
+        // Color image as packed RGBA rows, top row first, possibly scaled down from the size of
+        // the intrinsics; owned by the request. It may still be filled in after the request is
+        // queued, and is only read once imageRead() was called.
+        final ByteBuffer image;
+        final int imageWidth, imageHeight;
+        final Matrix4f deviceToColor, deviceToDepth;
+        private final CountDownLatch imageLatch = new CountDownLatch(1);
+
+        public CaptureRequest(TangoCameraIntrinsics intrinsics, LassoSelection lasso,
+                              float centerX, float centerY, ByteBuffer image, int imageWidth,
+                              int imageHeight, Matrix4f deviceToColor, Matrix4f deviceToDepth)
+        {
+            this.intrinsics = intrinsics;
+            this.lasso = lasso;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.image = image;
+            this.imageWidth = imageWidth;
+            this.imageHeight = imageHeight;
+            this.deviceToColor = new Matrix4f(deviceToColor);
+            this.deviceToDepth = new Matrix4f(deviceToDepth);
+        }
+
+        /**
+         * Marks the image as completely written, letting the capture color its points.
+         */
+        public void imageRead()
+        {
+            imageLatch.countDown();
+        }
+
+        /**
+         * Waits up to {@code timeoutMillis} for {@link #imageRead()}; returns false if the image
+         * is not complete by then or the wait is interrupted.
+         */
+        boolean awaitImage(long timeoutMillis)
+        {
+            try {
+                return imageLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Display data of the merged model. The hull is already expanded into a flat shaded mesh,
+     * one vertex per triangle corner, so the render thread only uploads it.
+     */
+    public static class ModelView
+    {
+        final int version;
+        final int keyframeCount;
+        final int pointCount;
+        final Vector3f center = new Vector3f();
+        final Vector3f extents = new Vector3f();
+        final Matrix4f boxPose = new Matrix4f();
+        final Vector3f boxExtents = new Vector3f();
+        final int triangleCount;
+        final double hullVolume;
+        final float[] hullPositions;
+        final float[] hullNormals;
+        final int[] hullIndices;
+
+        ModelView(MergedModel model)
+        {
+            version = model.getVersion();
+            keyframeCount = model.getKeyframeCount();
+            pointCount = model.getPoints().size();
+            model.getMoments().getAxisAlignedBox(center, extents);
+            model.getOrientedBox(boxPose, boxExtents);
+
+            ConvexHull hull = model.getHull();
+            int count = hull.getTriangleCount();
+            triangleCount = count;
+            hullVolume = count > 0 ? hull.getVolume() : 0;
+            hullPositions = new float[count * 9];
+            hullNormals = new float[count * 9];
+            hullIndices = new int[count * 3];
+            float[] xyz = hull.getVertices().getXyzArray();
+            int[] triangles = hull.getTriangles();
+            for(int t = 0; t < count; t++) {
+                int a = triangles[t * 3] * 3, b = triangles[t * 3 + 1] * 3, c = triangles[t * 3 + 2] * 3;
+                float ux = xyz[b] - xyz[a], uy = xyz[b + 1] - xyz[a + 1], uz = xyz[b + 2] - xyz[a + 2];
+                float vx = xyz[c] - xyz[a], vy = xyz[c + 1] - xyz[a + 1], vz = xyz[c + 2] - xyz[a + 2];
+                float nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+                float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if(length > 0) {
+                    nx /= length;
+                    ny /= length;
+                    nz /= length;
+                }
+                System.arraycopy(xyz, a, hullPositions, t * 9, 3);
+                System.arraycopy(xyz, b, hullPositions, t * 9 + 3, 3);
+                System.arraycopy(xyz, c, hullPositions, t * 9 + 6, 3);
+                for(int j = 0; j < 3; j++) {
+                    hullNormals[t * 9 + j * 3] = nx;
+                    hullNormals[t * 9 + j * 3 + 1] = ny;
+                    hullNormals[t * 9 + j * 3 + 2] = nz;
+                    hullIndices[t * 3 + j] = t * 3 + j;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keyframe built by a capture. Nothing in it is touched by the worker once queued.
+     */
+    public static class Result
+    {
+        // Kept points in the depth camera frame, for the keyframe renderable; null if the
+        // capture failed. Pooled: hand the result back with recycle() once uploaded.
+        final FloatBuffer xyz;
+        final int count;
+        // Box around the kept points in the depth camera frame: min x, y, z, then max x, y, z.
+        final float[] bounds;
+        // Corrected depth camera pose, and the pose reported by motion tracking.
+        final Matrix4f pose;
+        final Matrix4f odometry;
+        // World-space keyframe points, for the render thread's point index.
+        final PointBuffer vertices;
+        final long keyframeBytes;
+        // After a loop closure: the poses of all keyframes so far and a point index rebuilt
+        // from the moved points. Null otherwise.
+        final Matrix4f[] poses;
+        final PointOctree index;
+        final ModelView model;
+        // Color image of the request, for reuse by the next one.
+        final ByteBuffer image;
+
+        Result(FloatBuffer xyz, int count, float[] bounds, Matrix4f pose, Matrix4f odometry,
+               PointBuffer vertices, long keyframeBytes, Matrix4f[] poses, PointOctree index,
+               ModelView model, ByteBuffer image)
+        {
+            this.xyz = xyz;
+            this.count = count;
+            this.bounds = bounds;
+            this.pose = pose;
+            this.odometry = odometry;
+            this.vertices = vertices;
+            this.keyframeBytes = keyframeBytes;
+            this.poses = poses;
+            this.index = index;
+            this.model = model;
+            this.image = image;
+        }
+
+        static Result failed(ByteBuffer image)
+        {
+            return new Result(null, 0, null, null, null, null, 0, null, null, null, image);
+        }
+    }
+
+    private static class KeyFrame
+    {
+        // Selected points in world coordinates.
+        final PointBuffer vertices;
+        // Moments of the vertices, so merging never revisits the points.
+        final PointMoments moments;
+        // Depth camera pose the vertices are expressed in, and the pose reported by motion
+        // tracking at capture.
+        final Matrix4f pose;
+        final Matrix4f odometry;
+
+        KeyFrame(PointBuffer vertices, PointMoments moments, Matrix4f pose, Matrix4f odometry)
+        {
+            this.vertices = vertices;
+            this.moments = moments;
+            this.pose = pose;
+            this.odometry = odometry;
+        }
+    }
+
+    private final int maxPoints;
+    private final ExecutorService executor;
+    private final FloatBufferPool bufferPool;
+    private final AtomicInteger framesInFlight = new AtomicInteger();
+    private final ArrayBlockingQueue<ByteBuffer> spareImages = new ArrayBlockingQueue<ByteBuffer>(2);
+    private final ConcurrentLinkedQueue<Result> results = new ConcurrentLinkedQueue<Result>();
+    // Render thread only.
+    private double lastTimestamp = Double.NaN;
+
+    // Everything below belongs to the worker thread, except the pixel map of the last capture,
+    // which is guarded by its own lock.
+    private final PointCloudSolver solver = new PointCloudSolver();
+    private final TemporalDepthFilter depthFilter;
+    private final FloatBuffer filteredXyz;
+    private final PointColorizer colorizer = new PointColorizer();
+    private final PixelIndexMap pixelMap = new PixelIndexMap();
+    private final Matrix4f pixelMapPose = new Matrix4f();
+    private final float[] pixels;
+    private final BitSet inLasso;
+    // Full-density selection of the current capture, reused between captures.
+    private final PointBuffer selection;
+    private final BitSet keptPoints;
+    private final PointTransform worldTransform = new PointTransform();
+    private final PointTransform correctionTransform = new PointTransform();
+    private final Matrix4f framePose = new Matrix4f();
+    private final Matrix4f correction = new Matrix4f();
+    private final Matrix4f cameraToWorld = new Matrix4f();
+    private final ArrayList<KeyFrame> keyFrames = new ArrayList<KeyFrame>();
+    // Keyframe pose graph scratch.
+    private final Matrix4f odometry = new Matrix4f();
+    private final Matrix4f optimizedPose = new Matrix4f();
+    private final Matrix4f poseDelta = new Matrix4f();
+    private final Matrix4f worldToCamera = new Matrix4f();
+
+    public ReconstructionWorker(int maxPoints)
+    {
+        this.maxPoints = maxPoints;
+        depthFilter = new TemporalDepthFilter(TemporalDepthFilter.DEFAULT_FRAMES, maxPoints);
+        filteredXyz = FloatBuffer.allocate(maxPoints * 3);
+        pixels = new float[maxPoints * 2];
+        inLasso = new BitSet(maxPoints);
+        selection = new PointBuffer(maxPoints);
+        keptPoints = new BitSet(maxPoints);
+        bufferPool = new FloatBufferPool(maxPoints * 3, POOLED_BUFFERS);
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Solver used for the captures. It must only be configured before the first frame is
+     * pushed; after that it belongs to the worker thread.
+     */
+    public PointCloudSolver getSolver()
+    {
+        return solver;
+    }
+
+    /**
+     * Pool the depth frame copies and keyframe points are borrowed from.
+     */
+    public FloatBufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+
+    /**
+     * Copies a depth frame, given in the depth camera frame with pose {@code cameraToWorld}, and
+     * queues it for the depth filter. A frame with the same timestamp as the previous one is
+     * ignored, so the latest frame can be pushed on every render pass. Returns false if the frame
+     * was not queued, including when the worker is behind and all frame copies are in use.
+     * <p/>
+     * NOTE: This must be called from the OpenGL render thread.
+     */
+    public boolean pushDepthFrame(FloatBuffer xyz, int count, Matrix4f cameraToWorld,
+                                  final double timestamp)
+    {
+        if(timestamp == lastTimestamp || framesInFlight.get() >= DEPTH_FRAME_SLOTS
+                || executor.isShutdown())
+            return false;
+        framesInFlight.incrementAndGet();
+        lastTimestamp = timestamp;
+        final int points = Math.min(count, maxPoints);
+        final FloatBuffer frame = bufferPool.acquire();
+        FloatBuffer src = xyz.duplicate();
+        src.position(0);
+        src.limit(points * 3);
+        frame.put(src);
+        final Matrix4f pose = new Matrix4f(cameraToWorld);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    depthFilter.push(frame, points, pose, timestamp);
+                } finally {
+                    bufferPool.release(frame);
+                    framesInFlight.decrementAndGet();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Queues a capture of the newest depth frame pushed so far. Its {@link Result} shows up in
+     * {@link #poll()}, also if the capture fails. Ignored once the worker is shut down.
+     */
+    public void capture(final CaptureRequest request)
+    {
+        if(executor.isShutdown())
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Result result = null;
+                FloatBuffer xyz = null;
+                try {
+                    xyz = bufferPool.acquire();
+                    long start = System.nanoTime();
+                    result = savePointCloud(request, xyz);
+                    Log.d(TAG, "Keyframe built in " + (System.nanoTime() - start) / 1000000
+                            + " ms, buffer pool " + bufferPool.getHits() + " hits, "
+                            + bufferPool.getMisses() + " misses");
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Capture failed", e);
+                } finally {
+                    // Only a successful result takes the buffer along.
+                    if(result == null || result.xyz != xyz) {
+                        bufferPool.release(xyz);
+                    }
+                    // Every request gets a result, even when an Error escapes, so the render
+                    // thread never waits for one that will not come.
+                    if(result == null) {
+                        result = Result.failed(request.image);
+                    }
+                    results.add(result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the next finished capture, or null if there is none.
+     */
+    public Result poll()
+    {
+        return results.poll();
+    }
+
+    /**
+     * Takes back the buffers of a result once the render thread is done with its points.
+     */
+    public void recycle(Result result)
+    {
+        bufferPool.release(result.xyz);
+        if(result.image != null) {
+            spareImages.offer(result.image);
+        }
+    }
+
+    /**
+     * Returns a direct buffer of at least {@code bytes} bytes for a capture's color image,
+     * reusing the image of a recycled result when it is large enough.
+     */
+    public ByteBuffer obtainImageBuffer(int bytes)
+    {
+        ByteBuffer image = spareImages.poll();
+        if(image == null || image.capacity() < bytes) {
+            image = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        image.clear();
+        return image;
+    }
+
+    /**
+     * Looks up the selected point of the last capture nearest to depth image pixel
+     * ({@code x}, {@code y}) within {@code radius} pixels, and writes it to {@code dest} in world
+     * coordinates as tracked at capture. Returns false if no point is close enough. Safe to call
+     * from any thread.
+     */
+    public boolean findCapturedPoint(int x, int y, int radius, Vector3f dest)
+    {
+        synchronized (pixelMap) {
+            int index = pixelMap.find(x, y, radius);
+            if(index == PixelIndexMap.NO_POINT)
+                return false;
+            int k = index * 3;
+            dest.set(filteredXyz.get(k), filteredXyz.get(k + 1), filteredXyz.get(k + 2));
+            pixelMapPose.transformPosition(dest);
+            return true;
+        }
+    }
+
+    /**
+     * Stops the worker thread: queued frames and captures are dropped and later ones ignored.
+     * The capture running, if any, still finishes, but its result is never polled.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Captures a keyframe from the temporally filtered newest depth frame, writing its kept
+     * points to {@code newXyz}.
+     */
+    private Result savePointCloud(CaptureRequest request, FloatBuffer newXyz)
+    {
+        TangoCameraIntrinsics intrinsics = request.intrinsics;
+        FloatBuffer xyz = filteredXyz;
+        float[] world;
+        synchronized (pixelMap) {
+            int count = depthFilter.filter(intrinsics, xyz);
+            Log.d("PointCloud", count + " points filtered over " + depthFilter.getFrameCount()
+                    + " frames");
+            Log.d("Intrinsic", intrinsics.width + ", " + intrinsics.height);
+
+            selection.clear();
+
+            pixelMap.resize(intrinsics.width, intrinsics.height);
+            depthFilter.getNewestPose(framePose);
+            pixelMapPose.set(framePose);
+            world = worldTransform.set(framePose).apply(xyz, count);
+
+            float fx = (float) intrinsics.fx;
+            float fy = (float) intrinsics.fy;
+            float cx = (float) intrinsics.cx;
+            float cy = (float) intrinsics.cy;
+            for (int i = 0, k = 0; i < count; i++, k += 3) {
+                float z = xyz.get(k + 2);
+                pixels[i * 2] = fx * (xyz.get(k) / z) + cx;
+                pixels[i * 2 + 1] = fy * (xyz.get(k + 1) / z) + cy;
+            }
+
+            if(request.lasso != null) {
+                long start = System.nanoTime();
+                int selected = request.lasso.select(pixels, count, inLasso);
+                Log.d("Lasso", selected + " of " + count + " points selected in "
+                        + (System.nanoTime() - start) / 1000 + " us");
+            } else {
+                inLasso.clear();
+                inLasso.set(0, count);
+            }
+
+            for (int i = inLasso.nextSetBit(0); i >= 0; i = inLasso.nextSetBit(i + 1)) {
+                int k = i * 3;
+                pixelMap.put((int) pixels[i * 2], (int) pixels[i * 2 + 1], i);
+
+                newXyz.put(xyz.get(k));
+                newXyz.put(xyz.get(k + 1));
+                newXyz.put(xyz.get(k + 2));
+
+                selection.add(world[k], world[k + 1], world[k + 2]);
+            }
+        }
+
+        int removed = solver.removeDominantPlane(selection, keptPoints);
+        if(removed > 0) {
+            retain(newXyz, keptPoints);
+        }
+        Log.d("Plane", removed + " points removed in "
+                + solver.getPlaneSegmentation().getIterations() + " iterations");
+        removed = solver.removeOutliers(selection, keptPoints);
+        if(removed > 0) {
+            retain(newXyz, keptPoints);
+        }
+        Log.d("Outliers", removed + " points removed");
+        removed = isolateSelectedObject(request);
+        if(removed > 0) {
+            retain(newXyz, keptPoints);
+        }
+        Log.d("Cluster", removed + " background points removed");
+
+        // The render thread reads the image back over a few frames while the steps above run.
+        boolean imageRead = request.awaitImage(IMAGE_TIMEOUT_MS);
+        if(!imageRead) {
+            Log.w("Color", "No color image after " + IMAGE_TIMEOUT_MS + " ms");
+        }
+        colorizer.setExtrinsics(request.deviceToColor, request.deviceToDepth);
+        colorizer.setImage(imageRead ? request.image : null, request.imageWidth,
+                request.imageHeight, intrinsics);
+        int colored = colorizer.colorize(newXyz, selection.size(), selection);
+        Log.d("Color", colored + " of " + selection.size() + " points colored");
+        PointBuffer vertices = solver.downsample(selection);
+
+        // Snap the keyframe onto the model fused so far to absorb pose drift.
+        long start = System.nanoTime();
+        boolean aligned = solver.register(vertices, correction);
+        Log.d("ICP", "converged " + aligned + " in " + solver.getRegistration().getIterations()
+                + " iterations, rms " + solver.getRegistration().getRmsError() + ", "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        if(!aligned) {
+            correction.identity();
+        }
+        correctionTransform.set(correction).apply(vertices);
+        correction.mul(worldTransform.getMatrix(), cameraToWorld);
+        solver.estimateNormals(vertices,
+                cameraToWorld.m30, cameraToWorld.m31, cameraToWorld.m32);
+
+        int kept = newXyz.position() / 3;
+        Log.d("Downsample", selection.size() + " -> " + vertices.size());
+
+        PointMoments moments = new PointMoments();
+        moments.add(vertices);
+        KeyFrame keyFrame = new KeyFrame(vertices, moments,
+                new Matrix4f(cameraToWorld), new Matrix4f(worldTransform.getMatrix()));
+        Matrix4f edge = null;
+        if(!keyFrames.isEmpty()) {
+            keyFrames.get(keyFrames.size() - 1).odometry.invertAffine(odometry)
+                    .mul(keyFrame.odometry);
+            edge = odometry;
+        }
+        int node = solver.addKeyframePose(keyFrame.pose, edge);
+        keyFrames.add(keyFrame);
+        boolean done = false;
+        try {
+            solver.mergeKeyframe(vertices, moments);
+
+            // Keyframes moved by a loop closure are built aside and only replace the current
+            // ones once the whole result is, so a failure up to there leaves them untouched.
+            Matrix4f[] poses = null;
+            PointOctree index = null;
+            KeyFrame[] moved = closeLoop(node) ? moveKeyframes() : null;
+            if(moved != null) {
+                poses = new Matrix4f[moved.length];
+                index = new PointOctree();
+                solver.resetMergedModel();
+                for(int i = 0; i < moved.length; i++) {
+                    poses[i] = new Matrix4f(moved[i].pose);
+                    index.insert(moved[i].vertices);
+                    solver.mergeKeyframe(moved[i].vertices, moved[i].moments);
+                }
+                keyFrame = moved[node];
+            }
+
+            Result result = new Result(newXyz, kept, bounds(newXyz, kept),
+                    new Matrix4f(keyFrame.pose), new Matrix4f(keyFrame.odometry),
+                    PointBuffer.copyOf(keyFrame.vertices), keyFrame.vertices.getMemoryUsage(),
+                    poses, index, new ModelView(solver.getMergedModel()), request.image);
+
+            // Fused last, so a capture failing before here leaves the volume as it was. After a
+            // loop closure the volume is fused again at the corrected poses, so registration
+            // stops aligning to the drifted surface.
+            if(moved != null) {
+                refuse(moved, intrinsics);
+            } else {
+                solver.integrate(newXyz, kept, cameraToWorld, intrinsics);
+            }
+            Log.d("Volume", solver.getVolume().getBlockCount() + " blocks, "
+                    + solver.getVolume().getEvictedCount() + " recycled");
+            if(moved != null) {
+                for(int i = 0; i < moved.length; i++) {
+                    keyFrames.set(i, moved[i]);
+                }
+            }
+            done = true;
+            Log.d("PointCloud", "OK");
+            return result;
+        } finally {
+            if(!done) {
+                removeLastKeyframe();
+            }
+        }
+    }
+
+    /**
+     * Drops the newest keyframe after its capture failed, so the keyframes here, the pose graph
+     * nodes and the keyframes the render thread was sent stay numbered alike. The remaining
+     * graph poses are reset to the keyframes, undoing an optimisation that was not applied, and
+     * the merged model is rebuilt without the keyframe.
+     */
+    private void removeLastKeyframe()
+    {
+        keyFrames.remove(keyFrames.size() - 1);
+        solver.removeLastKeyframePose();
+        PoseGraph graph = solver.getPoseGraph();
+        solver.resetMergedModel();
+        for(int i = 0; i < keyFrames.size(); i++) {
+            KeyFrame keyFrame = keyFrames.get(i);
+            graph.setPose(i, keyFrame.pose);
+            solver.mergeKeyframe(keyFrame.vertices, keyFrame.moments);
+        }
+    }
+
+    /**
+     * Reduces the selection to the cluster under the requested pixel.
+     * Returns the number of points removed; {@code keptPoints} holds the remaining ones.
+     */
+    private int isolateSelectedObject(CaptureRequest request)
+    {
+        TangoCameraIntrinsics intrinsics = request.intrinsics;
+        float x = (request.centerX - (float) intrinsics.cx) / (float) intrinsics.fx;
+        float y = (request.centerY - (float) intrinsics.cy) / (float) intrinsics.fy;
+
+        Matrix4f m = worldTransform.getMatrix();
+        return solver.isolateObject(selection, m.m30, m.m31, m.m32,
+                m.m00 * x + m.m10 * y + m.m20,
+                m.m01 * x + m.m11 * y + m.m21,
+                m.m02 * x + m.m12 * y + m.m22, keptPoints);
+    }
+
+    /**
+     * Looks for an earlier keyframe seeing the same surface as keyframe {@code node}. If the two
+     * register, the pose graph is re-optimised; read the corrected keyframes with
+     * {@link #moveKeyframes()}. Returns true if the graph was re-optimised.
+     */
+    private boolean closeLoop(int node)
+    {
+        int candidate = solver.findLoopCandidate(node);
+        if(candidate == -1)
+            return false;
+        long start = System.nanoTime();
+        if(!solver.closeLoop(candidate, keyFrames.get(candidate).vertices, node,
+                keyFrames.get(node).vertices)) {
+            Log.d("PoseGraph", "No loop closure between " + candidate + " and " + node);
+            return false;
+        }
+        double cost = solver.optimizePoses();
+        Log.d("PoseGraph", "Loop closed between " + candidate + " and " + node + ", cost " + cost
+                + " after " + solver.getPoseGraph().getIterations() + " iterations, "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        return true;
+    }
+
+    /**
+     * Returns the keyframes at their optimised poses, with the world-space points and their
+     * moments moved along, or null if none moved. Keyframes that moved are copies; the current
+     * ones are left as they are. The fused volume keeps the frames as they were integrated.
+     */
+    private KeyFrame[] moveKeyframes()
+    {
+        PoseGraph graph = solver.getPoseGraph();
+        KeyFrame[] moved = new KeyFrame[keyFrames.size()];
+        boolean anyMoved = false;
+        for(int i = 0; i < keyFrames.size(); i++) {
+            KeyFrame keyFrame = keyFrames.get(i);
+            moved[i] = keyFrame;
+            graph.getPose(i, optimizedPose);
+            keyFrame.pose.invertAffine(odometry);
+            optimizedPose.mul(odometry, poseDelta);
+            float shift = poseDelta.m30 * poseDelta.m30 + poseDelta.m31 * poseDelta.m31
+                    + poseDelta.m32 * poseDelta.m32;
+            float turn = 3 - poseDelta.m00 - poseDelta.m11 - poseDelta.m22;
+            // Skip keyframes that moved less than about a millimeter and a milliradian.
+            if(shift < 1e-6f && turn < 1e-6f)
+                continue;
+            PointBuffer vertices = PointBuffer.copyOf(keyFrame.vertices);
+            correctionTransform.set(poseDelta).apply(vertices);
+            PointMoments moments = new PointMoments();
+            moments.add(vertices);
+            moved[i] = new KeyFrame(vertices, moments, new Matrix4f(optimizedPose),
+                    keyFrame.odometry);
+            anyMoved = true;
+        }
+        return anyMoved ? moved : null;
+    }
+
+    /**
+     * Rebuilds the fused volume from {@code keyFrames} at their poses, taking each keyframe's
+     * world points back into its depth camera frame. These are the downsampled points, which
+     * the volume rasterises at a quarter of the depth resolution anyway.
+     */
+    private void refuse(KeyFrame[] keyFrames, TangoCameraIntrinsics intrinsics)
+    {
+        long start = System.nanoTime();
+        FloatBuffer xyz = bufferPool.acquire();
+        try {
+            solver.getVolume().clear();
+            for(KeyFrame keyFrame : keyFrames) {
+                int count = Math.min(keyFrame.vertices.size(), maxPoints);
+                xyz.clear();
+                xyz.put(keyFrame.vertices.getXyzArray(), 0, count * 3);
+                keyFrame.pose.invertAffine(worldToCamera);
+                float[] camera = correctionTransform.set(worldToCamera).apply(xyz, count);
+                xyz.clear();
+                xyz.put(camera, 0, count * 3);
+                solver.integrate(xyz, count, keyFrame.pose, intrinsics);
+            }
+        } finally {
+            bufferPool.release(xyz);
+        }
+        Log.d("Volume", keyFrames.length + " keyframes fused again in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Returns the axis-aligned box around the first {@code count} points of {@code xyz}, as
+     * min x, y, z, then max x, y, z; all zero if there are no points.
+     */
+    private static float[] bounds(FloatBuffer xyz, int count)
+    {
+        float[] box = new float[6];
+        if(count == 0)
+            return box;
+        box[0] = box[1] = box[2] = Float.MAX_VALUE;
+        box[3] = box[4] = box[5] = -Float.MAX_VALUE;
+        for(int k = 0; k < count * 3; k += 3) {
+            for(int j = 0; j < 3; j++) {
+                float v = xyz.get(k + j);
+                box[j] = Math.min(box[j], v);
+                box[j + 3] = Math.max(box[j + 3], v);
+            }
+        }
+        return box;
+    }
+
+    /**
+     * Compacts the points written to {@code xyz} down to those set in {@code keep}.
+     */
+    private static void retain(FloatBuffer xyz, BitSet keep)
+    {
+        int n = 0;
+        for(int i = keep.nextSetBit(0); i >= 0; i = keep.nextSetBit(i + 1), n += 3) {
+            int k = i * 3;
+            xyz.put(n, xyz.get(k));
+            xyz.put(n + 1, xyz.get(k + 1));
+            xyz.put(n + 2, xyz.get(k + 2));
+        }
+        xyz.position(n);
+    }
+}
@@ -0,0 +1,212 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over a packed point array, with occupied cells found through a
+ * {@link LongIntHashMap}. Points are bucketed by a counting sort, so building is linear and
+ * queries only visit the 27 cells around the query point. Queries must not reach further than one
+ * cell size. Queries keep their state in the grid, so one grid must not be queried from several
+ * threads at once.
+ */
+public class SpatialHashGrid
+{
+    private final LongIntHashMap cells = new LongIntHashMap();
+    private float cellSize;
+    private float inverseCellSize;
+
+    private float[] xyz;
+    private int size;
+    private int cellCount;
+    private int[] cellStart = new int[1];
+    private int[] order = new int[0];
+    private int[] pointCell = new int[0];
+    // Start of the points of each cell not yet consumed by grow().
+    private int[] unvisited = new int[1];
+    // Cells around the home cell of the last grow() call; queued points of one cell tend to be
+    // grown one after another.
+    private final int[] around = new int[27];
+    private long aroundKey = -1;
+
+    // Running best match of the current query.
+    private float bestDistance;
+    private int bestIndex;
+
+    /**
+     * Indexes the first {@code count} points of {@code xyz}. The array is referenced, not copied,
+     * and must not change while the grid is in use.
+     */
+    public void build(float[] xyz, int count, float cellSize)
+    {
+        this.xyz = xyz;
+        this.size = count;
+        this.cellSize = cellSize;
+        this.inverseCellSize = 1.0f / cellSize;
+
+        if(pointCell.length < count) {
+            pointCell = new int[count];
+            order = new int[count];
+        }
+        cells.clear();
+        cells.ensureCapacity(count);
+        cellCount = 0;
+        for(int i = 0, k = 0; i < count; i++, k += 3) {
+            int cell = cells.putIfAbsent(cellKey(xyz[k], xyz[k + 1], xyz[k + 2]), cellCount);
+            if(cell == LongIntHashMap.NO_VALUE) {
+                cell = cellCount++;
+            }
+            pointCell[i] = cell;
+        }
+
+        if(cellStart.length < cellCount + 1) {
+            cellStart = new int[cellCount + 1];
+        }
+        Arrays.fill(cellStart, 0, cellCount + 1, 0);
+        for(int i = 0; i < count; i++) {
+            cellStart[pointCell[i] + 1]++;
+        }
+        for(int c = 0; c < cellCount; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        // Scatter using cellStart as a cursor, then shift it back into place.
+        for(int i = 0; i < count; i++) {
+            order[cellStart[pointCell[i]]++] = i;
+        }
+        for(int c = cellCount; c > 0; c--) {
+            cellStart[c] = cellStart[c - 1];
+        }
+        cellStart[0] = 0;
+        if(unvisited.length < cellCount) {
+            unvisited = new int[cellStart.length];
+        }
+        System.arraycopy(cellStart, 0, unvisited, 0, cellCount);
+        aroundKey = -1;
+    }
+
+    public void build(PointBuffer points, float cellSize)
+    {
+        build(points.getXyzArray(), points.size(), cellSize);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public float getCellSize()
+    {
+        return cellSize;
+    }
+
+    /**
+     * Returns the index of the closest point within {@code maxDistance}, or -1.
+     * The home cell is scanned first and neighbouring cells that cannot hold anything closer
+     * than the best match so far are skipped.
+     */
+    public int nearest(float x, float y, float z, float maxDistance)
+    {
+        int ix = (int) Math.floor(x * inverseCellSize);
+        int iy = (int) Math.floor(y * inverseCellSize);
+        int iz = (int) Math.floor(z * inverseCellSize);
+        // Distances from the query to the lower and upper faces of its cell.
+        float lowX = x - ix * cellSize, highX = cellSize - lowX;
+        float lowY = y - iy * cellSize, highY = cellSize - lowY;
+        float lowZ = z - iz * cellSize, highZ = cellSize - lowZ;
+
+        bestDistance = maxDistance * maxDistance;
+        bestIndex = -1;
+        scanCell(ix, iy, iz, x, y, z);
+        for(int dx = -1; dx <= 1; dx++) {
+            float gx = dx < 0 ? lowX : dx > 0 ? highX : 0;
+            for(int dy = -1; dy <= 1; dy++) {
+                float gy = dy < 0 ? lowY : dy > 0 ? highY : 0;
+                for(int dz = -1; dz <= 1; dz++) {
+                    if(dx == 0 && dy == 0 && dz == 0)
+                        continue;
+                    float gz = dz < 0 ? lowZ : dz > 0 ? highZ : 0;
+                    if(gx * gx + gy * gy + gz * gz > bestDistance)
+                        continue;
+                    scanCell(ix + dx, iy + dy, iz + dz, x, y, z);
+                }
+            }
+        }
+        return bestIndex;
+    }
+
+    /**
+     * Region growing step: gives every unlabelled point ({@code labels[i] == -1}) within
+     * {@code radius} of the query the label {@code label} and appends it to {@code queue} at
+     * {@code tail}. Returns the new tail. Every point is appended at most once over a whole
+     * flood fill, so a queue of {@link #size()} entries is enough.
+     * <p/>
+     * Labelled points are moved out of the part of their cell that later calls scan, so a flood
+     * fill over the whole grid touches each point a bounded number of times. This consumes the
+     * grid: after one flood fill it must be built again before growing.
+     */
+    public int grow(float x, float y, float z, float radius, int[] labels, int label, int[] queue,
+                    int tail)
+    {
+        int ix = (int) Math.floor(x * inverseCellSize);
+        int iy = (int) Math.floor(y * inverseCellSize);
+        int iz = (int) Math.floor(z * inverseCellSize);
+        long key = VoxelGridFilter.key(ix, iy, iz);
+        if(key != aroundKey) {
+            int n = 0;
+            for(int dx = -1; dx <= 1; dx++) {
+                for(int dy = -1; dy <= 1; dy++) {
+                    for(int dz = -1; dz <= 1; dz++) {
+                        around[n++] = cells.get(VoxelGridFilter.key(ix + dx, iy + dy, iz + dz));
+                    }
+                }
+            }
+            aroundKey = key;
+        }
+
+        float radiusSquared = radius * radius;
+        for(int c = 0; c < around.length; c++) {
+            int cell = around[c];
+            if(cell == LongIntHashMap.NO_VALUE)
+                continue;
+            int first = unvisited[cell];
+            for(int j = first; j < cellStart[cell + 1]; j++) {
+                int i = order[j];
+                if(labels[i] == -1) {
+                    int k = i * 3;
+                    float ex = xyz[k] - x, ey = xyz[k + 1] - y, ez = xyz[k + 2] - z;
+                    if(ex * ex + ey * ey + ez * ez > radiusSquared)
+                        continue;
+                    labels[i] = label;
+                    queue[tail++] = i;
+                }
+                // Swap the labelled point to the consumed front of the cell.
+                order[j] = order[first];
+                order[first++] = i;
+            }
+            unvisited[cell] = first;
+        }
+        return tail;
+    }
+
+    private void scanCell(int ix, int iy, int iz, float x, float y, float z)
+    {
+        int cell = cells.get(VoxelGridFilter.key(ix, iy, iz));
+        if(cell == LongIntHashMap.NO_VALUE)
+            return;
+        for(int j = cellStart[cell]; j < cellStart[cell + 1]; j++) {
+            int k = order[j] * 3;
+            float ex = xyz[k] - x, ey = xyz[k + 1] - y, ez = xyz[k + 2] - z;
+            float d = ex * ex + ey * ey + ez * ez;
+            if(d <= bestDistance) {
+                bestDistance = d;
+                bestIndex = order[j];
+            }
+        }
+    }
+
+    private long cellKey(float x, float y, float z)
+    {
+        return VoxelGridFilter.key((int) Math.floor(x * inverseCellSize),
+                (int) Math.floor(y * inverseCellSize),
+                (int) Math.floor(z * inverseCellSize));
+    }
+}
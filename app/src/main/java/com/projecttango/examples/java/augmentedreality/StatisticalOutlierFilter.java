@@ -0,0 +1,118 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import java.util.BitSet;
+
+/**
+ * Statistical outlier removal. Each point's mean distance to its k nearest neighbours is compared
+ * with the distribution of that mean over the whole cloud, and points further out than a number
+ * of standard deviations are dropped. This removes the isolated "flying pixels" depth sensors
+ * produce at depth discontinuities. Neighbour searches are capped at a maximum radius, with
+ * neighbours missing within it counted at that radius, so isolated points stay cheap to search
+ * and still score as outliers. The neighbour searches run in parallel over a
+ * {@link ParallelLoop}; the k-d tree, neighbour buffers and distance array are kept between calls.
+ */
+public class StatisticalOutlierFilter
+{
+    private int meanK = 16;
+    private float stddevMultiplier = 1.0f;
+    private float maxRadius = 0.05f;
+
+    private final ParallelLoop loop;
+    private final KdTree tree = new KdTree();
+    private final KdTree.Neighbors[] scratch;
+    private float[] meanDistances = new float[0];
+
+    public StatisticalOutlierFilter(ParallelLoop loop)
+    {
+        this.loop = loop;
+        scratch = new KdTree.Neighbors[loop.getWorkers()];
+        for(int i = 0; i < scratch.length; i++) {
+            scratch[i] = new KdTree.Neighbors(meanK + 1);
+        }
+    }
+
+    /**
+     * Number of neighbours averaged for each point.
+     */
+    public void setMeanK(int meanK)
+    {
+        this.meanK = Math.max(meanK, 1);
+    }
+
+    /**
+     * Points whose mean neighbour distance exceeds the cloud mean by more than this many standard
+     * deviations are outliers.
+     */
+    public void setStddevMultiplier(float stddevMultiplier)
+    {
+        this.stddevMultiplier = stddevMultiplier;
+    }
+
+    /**
+     * Neighbours are only searched within this distance.
+     */
+    public void setMaxRadius(float maxRadius)
+    {
+        this.maxRadius = maxRadius;
+    }
+
+    /**
+     * Sets the bits of the inliers of {@code points} in {@code kept} and returns their number.
+     * Clouds too small to gather the neighbourhoods are kept whole.
+     */
+    public int filter(PointBuffer points, BitSet kept)
+    {
+        final int count = points.size();
+        kept.clear();
+        if(count <= meanK) {
+            kept.set(0, count);
+            return count;
+        }
+        if(meanDistances.length < count) {
+            meanDistances = new float[count];
+        }
+        tree.build(points);
+
+        final float[] xyz = points.getXyzArray();
+        final float[] means = meanDistances;
+        final int k = meanK + 1;
+        final float radius = maxRadius;
+        loop.run(count, new ParallelLoop.Body() {
+            @Override
+            public void run(int start, int end, int worker) {
+                KdTree.Neighbors found = scratch[worker];
+                for(int i = start; i < end; i++) {
+                    int p = i * 3;
+                    int n = tree.nearestK(xyz[p], xyz[p + 1], xyz[p + 2], k, radius, found);
+                    float sum = 0;
+                    int used = 0;
+                    for(int j = 0; j < n && used < k - 1; j++) {
+                        if(found.index(j) == i)
+                            continue;
+                        sum += (float) Math.sqrt(found.distanceSquared(j));
+                        used++;
+                    }
+                    means[i] = (sum + (k - 1 - used) * radius) / (k - 1);
+                }
+            }
+        });
+
+        double sum = 0, sumSquares = 0;
+        for(int i = 0; i < count; i++) {
+            sum += means[i];
+            sumSquares += (double) means[i] * means[i];
+        }
+        double mean = sum / count;
+        double variance = Math.max(sumSquares / count - mean * mean, 0);
+        float threshold = (float) (mean + stddevMultiplier * Math.sqrt(variance));
+
+        int inliers = 0;
+        for(int i = 0; i < count; i++) {
+            if(means[i] <= threshold) {
+                kept.set(i);
+                inliers++;
+            }
+        }
+        return inliers;
+    }
+}
@@ -0,0 +1,106 @@
+package com.projecttango.examples.java.augmentedreality;
+
+/**
+ * Closed-form eigen decomposition of symmetric 3x3 matrices, such as point covariances.
+ * Eigenvalues come from the trigonometric solution of the characteristic cubic and eigenvectors
+ * from the best conditioned cross product of two rows of {@code A - lambda I}. Matrices are passed
+ * as their six distinct entries and results are written to caller arrays, so nothing allocates.
+ */
+public final class SymmetricEigen3
+{
+    private SymmetricEigen3()
+    {
+    }
+
+    /**
+     * Writes the eigenvalues in ascending order to {@code out[0..2]}.
+     */
+    public static void eigenvalues(double a00, double a01, double a02, double a11, double a12,
+                                   double a22, double[] out)
+    {
+        double p1 = a01 * a01 + a02 * a02 + a12 * a12;
+        if(p1 == 0) {
+            double min = Math.min(a00, Math.min(a11, a22));
+            double max = Math.max(a00, Math.max(a11, a22));
+            out[0] = min;
+            out[1] = a00 + a11 + a22 - min - max;
+            out[2] = max;
+            return;
+        }
+        double q = (a00 + a11 + a22) / 3;
+        double b00 = a00 - q, b11 = a11 - q, b22 = a22 - q;
+        double p = Math.sqrt((b00 * b00 + b11 * b11 + b22 * b22 + 2 * p1) / 6);
+        // r = det((A - qI) / p) / 2
+        double det = b00 * (b11 * b22 - a12 * a12) - a01 * (a01 * b22 - a12 * a02)
+                + a02 * (a01 * a12 - b11 * a02);
+        double r = det / (2 * p * p * p);
+        double phi = r <= -1 ? Math.PI / 3 : r >= 1 ? 0 : Math.acos(r) / 3;
+        double largest = q + 2 * p * Math.cos(phi);
+        double smallest = q + 2 * p * Math.cos(phi + 2 * Math.PI / 3);
+        out[0] = smallest;
+        out[1] = 3 * q - largest - smallest;
+        out[2] = largest;
+    }
+
+    /**
+     * Writes the unit eigenvector for {@code lambda} to {@code out[offset..offset + 2]}. When the
+     * eigenvalue is repeated any unit vector of its eigenspace orthogonal to the others may come
+     * back; a fully isotropic matrix yields the z axis.
+     */
+    public static void eigenvector(double a00, double a01, double a02, double a11, double a12,
+                                   double a22, double lambda, double[] out, int offset)
+    {
+        double r00 = a00 - lambda, r11 = a11 - lambda, r22 = a22 - lambda;
+        // Cross products of the row pairs of A - lambda I.
+        double c0x = a01 * a12 - a02 * r11, c0y = a02 * a01 - r00 * a12, c0z = r00 * r11 - a01 * a01;
+        double c1x = a01 * r22 - a02 * a12, c1y = a02 * a02 - r00 * r22, c1z = r00 * a12 - a01 * a02;
+        double c2x = r11 * r22 - a12 * a12, c2y = a12 * a02 - a01 * r22, c2z = a01 * a12 - r11 * a02;
+        double d0 = c0x * c0x + c0y * c0y + c0z * c0z;
+        double d1 = c1x * c1x + c1y * c1y + c1z * c1z;
+        double d2 = c2x * c2x + c2y * c2y + c2z * c2z;
+
+        double x, y, z, d;
+        if(d0 >= d1 && d0 >= d2) {
+            x = c0x; y = c0y; z = c0z; d = d0;
+        } else if(d1 >= d2) {
+            x = c1x; y = c1y; z = c1z; d = d1;
+        } else {
+            x = c2x; y = c2y; z = c2z; d = d2;
+        }
+
+        if(d < 1e-30) {
+            // Rank <= 1: any vector orthogonal to the largest row will do.
+            double n0 = r00 * r00 + a01 * a01 + a02 * a02;
+            double n1 = a01 * a01 + r11 * r11 + a12 * a12;
+            double n2 = a02 * a02 + a12 * a12 + r22 * r22;
+            double rx, ry, rz;
+            if(n0 >= n1 && n0 >= n2) {
+                rx = r00; ry = a01; rz = a02;
+            } else if(n1 >= n2) {
+                rx = a01; ry = r11; rz = a12;
+            } else {
+                rx = a02; ry = a12; rz = r22;
+            }
+            if(rx == 0 && ry == 0 && rz == 0) {
+                out[offset] = 0;
+                out[offset + 1] = 0;
+                out[offset + 2] = 1;
+                return;
+            }
+            // Cross with the axis least aligned with the row.
+            if(Math.abs(rx) <= Math.abs(ry) && Math.abs(rx) <= Math.abs(rz)) {
+                x = 0; y = rz; z = -ry;
+            } else if(Math.abs(ry) <= Math.abs(rz)) {
+                x = -rz; y = 0; z = rx;
+            } else {
+                x = ry; y = -rx; z = 0;
+            }
+            d = x * x + y * y + z * z;
+        }
+
+        double inverse = 1 / Math.sqrt(d);
+        out[offset] = x * inverse;
+        out[offset + 1] = y * inverse;
+        out[offset + 2] = z * inverse;
+    }
+}
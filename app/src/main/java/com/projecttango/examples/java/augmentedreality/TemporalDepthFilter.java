@@ -0,0 +1,300 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+
+import org.joml.Matrix4f;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Temporal filter over the last few depth frames. Frames are kept with their depth camera pose in
+ * a ring of preallocated buffers. To filter, the newest frame is binned per pixel, keeping the
+ * nearest depth, and every older frame is reprojected into it; each reprojected point that lands
+ * on a pixel of the newest frame gives the offset between its depth and the newest depth there.
+ * The offsets are averaged per frame over cells of a coarse grid, and each point of the newest
+ * frame is moved along its viewing ray by the median (or mean) of its cell's offsets, the newest
+ * frame counting as zero. That smooths the per-frame depth noise while keeping the newest frame's
+ * sampling and the surface shape within a cell, since only depth differences are pooled. A cell
+ * seen by fewer than the required number of frames keeps its points as measured. Memory is fixed
+ * by the frame count, point capacity and image size.
+ */
+public class TemporalDepthFilter
+{
+    public static final int DEFAULT_FRAMES = 5;
+    public static final int DEFAULT_CELL_SIZE = 4;
+
+    private final int capacity;
+    private final int maxPoints;
+    private final float[][] frames;
+    private final int[] counts;
+    private final Matrix4f[] poses;
+    private final double[] timestamps;
+    private int newest = -1;
+    private int size;
+
+    private boolean median = true;
+    private int cellSize = DEFAULT_CELL_SIZE;
+    private int minFrames = 2;
+    private float maxDeviation = 0.05f;
+
+    // Per pixel: the newest frame's nearest depth. Per cell and frame slot: the sum and number
+    // of that frame's depth offsets. Both carry the pass that wrote them.
+    private int imageWidth, imageHeight, gridWidth, gridHeight;
+    private float[] pixelDepth = new float[0];
+    private int[] pixelStamp = new int[0];
+    private float[] cellOffset = new float[0];
+    private int[] cellCount = new int[0];
+    private int[] cellStamp = new int[0];
+    private int stamp;
+    private final float[] samples;
+    private final Matrix4f inverse = new Matrix4f();
+    private final Matrix4f relative = new Matrix4f();
+
+    public TemporalDepthFilter(int frames, int maxPoints)
+    {
+        if(frames < 1)
+            throw new IllegalArgumentException("Need at least one frame: " + frames);
+        this.capacity = frames;
+        this.maxPoints = maxPoints;
+        this.frames = new float[frames][maxPoints * 3];
+        this.counts = new int[frames];
+        this.poses = new Matrix4f[frames];
+        this.timestamps = new double[frames];
+        for(int i = 0; i < frames; i++) {
+            poses[i] = new Matrix4f();
+        }
+        samples = new float[frames];
+    }
+
+    /**
+     * Uses the median of the depths in a cell if true, their mean otherwise.
+     */
+    public void setMedian(boolean median)
+    {
+        this.median = median;
+    }
+
+    /**
+     * Side in pixels of the grid cells depths are binned into.
+     */
+    public void setCellSize(int pixels)
+    {
+        this.cellSize = Math.max(pixels, 1);
+    }
+
+    /**
+     * Number of frames that must have seen a cell for its points to be filtered.
+     */
+    public void setMinFrames(int minFrames)
+    {
+        this.minFrames = Math.max(minFrames, 1);
+    }
+
+    /**
+     * Depths further than this, in meters, from the newest frame's depth are left out of a cell,
+     * so surfaces crossing behind one another are not blended.
+     */
+    public void setMaxDeviation(float meters)
+    {
+        this.maxDeviation = meters;
+    }
+
+    public int getFrameCount()
+    {
+        return size;
+    }
+
+    /**
+     * Copies the depth camera pose of the newest frame to {@code dest}, or identity if there is
+     * none, and returns {@code dest}.
+     */
+    public Matrix4f getNewestPose(Matrix4f dest)
+    {
+        return newest >= 0 ? dest.set(poses[newest]) : dest.identity();
+    }
+
+    public void clear()
+    {
+        size = 0;
+        newest = -1;
+    }
+
+    /**
+     * Stores a depth frame of {@code count} points, given in the depth camera frame with pose
+     * {@code cameraToWorld}. A frame with the same timestamp as the newest one is ignored, so the
+     * latest frame can be pushed on every render pass. Returns true if the frame was stored.
+     */
+    public boolean push(FloatBuffer xyz, int count, Matrix4f cameraToWorld, double timestamp)
+    {
+        if(newest >= 0 && timestamps[newest] == timestamp)
+            return false;
+        newest = (newest + 1) % capacity;
+        size = Math.min(size + 1, capacity);
+        count = Math.min(count, maxPoints);
+        int position = xyz.position();
+        xyz.position(0);
+        xyz.get(frames[newest], 0, count * 3);
+        xyz.position(position);
+        counts[newest] = count;
+        poses[newest].set(cameraToWorld);
+        timestamps[newest] = timestamp;
+        return true;
+    }
+
+    /**
+     * Writes the filtered newest frame to {@code out}, in its depth camera frame, starting at
+     * index 0 and leaving the position after the last point. Returns the number of points.
+     */
+    public int filter(TangoCameraIntrinsics intrinsics, FloatBuffer out)
+    {
+        out.clear();
+        if(size == 0)
+            return 0;
+        float fx = (float) intrinsics.fx, fy = (float) intrinsics.fy;
+        float cx = (float) intrinsics.cx, cy = (float) intrinsics.cy;
+        ensureGrid(intrinsics.width, intrinsics.height);
+        stamp++;
+
+        // The newest frame's depth per pixel.
+        float[] xyz = frames[newest];
+        int count = counts[newest];
+        for(int k = 0; k < count * 3; k += 3) {
+            float z = xyz[k + 2];
+            int pixel = z > 0 ? pixelOf(fx * (xyz[k] / z) + cx, fy * (xyz[k + 1] / z) + cy) : -1;
+            if(pixel >= 0 && (pixelStamp[pixel] != stamp || z < pixelDepth[pixel])) {
+                pixelStamp[pixel] = stamp;
+                pixelDepth[pixel] = z;
+            }
+        }
+
+        // Reproject the older frames and sum their offsets from the newest depth per cell.
+        poses[newest].invertAffine(inverse);
+        for(int f = 0; f < size; f++) {
+            if(f == newest)
+                continue;
+            inverse.mul(poses[f], relative);
+            Matrix4f m = relative;
+            float[] older = frames[f];
+            for(int k = 0, end = counts[f] * 3; k < end; k += 3) {
+                float x = older[k], y = older[k + 1], z = older[k + 2];
+                float px = m.m00 * x + m.m10 * y + m.m20 * z + m.m30;
+                float py = m.m01 * x + m.m11 * y + m.m21 * z + m.m31;
+                float pz = m.m02 * x + m.m12 * y + m.m22 * z + m.m32;
+                if(pz <= 0)
+                    continue;
+                int pixel = pixelOf(fx * (px / pz) + cx, fy * (py / pz) + cy);
+                if(pixel < 0 || pixelStamp[pixel] != stamp)
+                    continue;
+                float offset = pz - pixelDepth[pixel];
+                if(Math.abs(offset) > maxDeviation)
+                    continue;
+                int slot = cellOfPixel(pixel) * capacity + f;
+                if(cellStamp[slot] != stamp) {
+                    cellStamp[slot] = stamp;
+                    cellOffset[slot] = 0;
+                    cellCount[slot] = 0;
+                }
+                cellOffset[slot] += offset;
+                cellCount[slot]++;
+            }
+        }
+
+        // Move each point of the newest frame along its ray by its cell's filtered offset.
+        for(int k = 0; k < count * 3; k += 3) {
+            float x = xyz[k], y = xyz[k + 1], z = xyz[k + 2];
+            int pixel = z > 0 ? pixelOf(fx * (x / z) + cx, fy * (y / z) + cy) : -1;
+            if(pixel >= 0) {
+                int cell = cellOfPixel(pixel);
+                samples[0] = 0;
+                int n = 1;
+                for(int f = 0; f < size; f++) {
+                    int slot = cell * capacity + f;
+                    if(f != newest && cellStamp[slot] == stamp) {
+                        samples[n++] = cellOffset[slot] / cellCount[slot];
+                    }
+                }
+                if(n >= minFrames) {
+                    float offset = median ? median(samples, n) : mean(samples, n);
+                    float scale = (z + offset) / z;
+                    x *= scale;
+                    y *= scale;
+                    z *= scale;
+                }
+            }
+            out.put(x);
+            out.put(y);
+            out.put(z);
+        }
+        return count;
+    }
+
+    private int pixelOf(float u, float v)
+    {
+        if(!(u >= 0 && v >= 0))
+            return -1;
+        int column = (int) u, row = (int) v;
+        if(column >= imageWidth || row >= imageHeight)
+            return -1;
+        return row * imageWidth + column;
+    }
+
+    private int cellOfPixel(int pixel)
+    {
+        int row = pixel / imageWidth, column = pixel - row * imageWidth;
+        return (row / cellSize) * gridWidth + column / cellSize;
+    }
+
+    private void ensureGrid(int width, int height)
+    {
+        int columns = (width + cellSize - 1) / cellSize, rows = (height + cellSize - 1) / cellSize;
+        if(width == imageWidth && height == imageHeight && columns == gridWidth
+                && rows == gridHeight)
+            return;
+        imageWidth = width;
+        imageHeight = height;
+        gridWidth = columns;
+        gridHeight = rows;
+        if(pixelDepth.length < width * height) {
+            pixelDepth = new float[width * height];
+            pixelStamp = new int[width * height];
+        } else {
+            Arrays.fill(pixelStamp, 0);
+        }
+        int slots = columns * rows * capacity;
+        if(cellOffset.length < slots) {
+            cellOffset = new float[slots];
+            cellCount = new int[slots];
+            cellStamp = new int[slots];
+        } else {
+            Arrays.fill(cellStamp, 0);
+        }
+        stamp = 0;
+    }
+
+    private static float mean(float[] values, int n)
+    {
+        float sum = 0;
+        for(int i = 0; i < n; i++) {
+            sum += values[i];
+        }
+        return sum / n;
+    }
+
+    /**
+     * Median by insertion sort; there is one value per stored frame at most.
+     */
+    private static float median(float[] values, int n)
+    {
+        for(int i = 1; i < n; i++) {
+            float value = values[i];
+            int j = i;
+            while(j > 0 && values[j - 1] > value) {
+                values[j] = values[j - 1];
+                j--;
+            }
+            values[j] = value;
+        }
+        return (n & 1) == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+    }
+}
@@ -0,0 +1,348 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+
+import android.util.Log;
+
+import org.joml.Matrix4f;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Sparse truncated signed distance field built from Tango depth frames.
+ * Space is divided into blocks of {@code BLOCK_SIZE}^3 voxels which are only allocated where a
+ * depth sample falls, and looked up through a {@link LongIntHashMap} keyed on the packed block
+ * coordinates. Memory therefore follows the observed surface instead of the bounding volume, and
+ * is capped by {@code maxBlocks}: once that many blocks exist, the block observed longest ago is
+ * recycled for each new one, so the volume keeps the most recently seen surroundings.
+ * <p/>
+ * Each frame is first rasterised into a small depth image using the camera intrinsics, then every
+ * voxel of the blocks touched by the frame is projected into that image and its distance to the
+ * observed depth is folded into a running weighted average.
+ */
+public class TsdfVolume
+{
+    private static final String TAG = TsdfVolume.class.getSimpleName();
+
+    private static final int BLOCK_SHIFT = 3;
+    public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_VOXELS = BLOCK_SIZE * BLOCK_SIZE * BLOCK_SIZE;
+    // Depth image resolution relative to the intrinsics; Tango depth is far sparser than RGB.
+    private static final float DEPTH_IMAGE_SCALE = 0.25f;
+    private static final float MAX_WEIGHT = 64.0f;
+
+    private final float voxelSize;
+    private final float truncation;
+    private final int maxBlocks;
+
+    private final LongIntHashMap blockIndex = new LongIntHashMap();
+    private int blockCount;
+    private int[] blockCoords = new int[0];
+    private float[] tsdf = new float[0];
+    private float[] weights = new float[0];
+
+    // Per-frame scratch.
+    private final Matrix4f worldToCamera = new Matrix4f();
+    private float[] depthImage = new float[0];
+    private int depthWidth, depthHeight;
+    private int[] visibleBlocks = new int[0];
+    private int visibleCount;
+    private int[] blockFrame = new int[0];
+    private int frame;
+    private int evictedCount;
+    private int warnedFrame;
+
+    public TsdfVolume(float voxelSize, float truncation, int maxBlocks)
+    {
+        if(!(voxelSize > 0) || !(truncation > 0) || maxBlocks <= 0)
+            throw new IllegalArgumentException("Invalid TSDF parameters");
+        this.voxelSize = voxelSize;
+        this.truncation = truncation;
+        this.maxBlocks = maxBlocks;
+    }
+
+    public float getVoxelSize()
+    {
+        return voxelSize;
+    }
+
+    public int getBlockCount()
+    {
+        return blockCount;
+    }
+
+    /**
+     * Number of blocks recycled for new ones since the last {@link #clear()}.
+     */
+    public int getEvictedCount()
+    {
+        return evictedCount;
+    }
+
+    /**
+     * Approximate heap used by the voxel data, in bytes.
+     */
+    public long getMemoryUsage()
+    {
+        return (long) tsdf.length * 8 + blockCoords.length * 4;
+    }
+
+    public void clear()
+    {
+        blockIndex.clear();
+        blockCount = 0;
+        evictedCount = 0;
+    }
+
+    /**
+     * Fuses one depth frame.
+     *
+     * @param xyz interleaved points in the depth camera frame, read from index 0
+     * @param count number of points in {@code xyz}
+     * @param cameraToWorld affine pose of the depth camera, e.g. the point cloud model matrix
+     * @param intrinsics intrinsics used to rasterise the points into a depth image
+     */
+    public void integrate(FloatBuffer xyz, int count, Matrix4f cameraToWorld,
+                          TangoCameraIntrinsics intrinsics)
+    {
+        frame++;
+        float fx = (float) intrinsics.fx * DEPTH_IMAGE_SCALE;
+        float fy = (float) intrinsics.fy * DEPTH_IMAGE_SCALE;
+        float cx = (float) intrinsics.cx * DEPTH_IMAGE_SCALE;
+        float cy = (float) intrinsics.cy * DEPTH_IMAGE_SCALE;
+        prepareDepthImage((int) Math.ceil(intrinsics.width * DEPTH_IMAGE_SCALE),
+                (int) Math.ceil(intrinsics.height * DEPTH_IMAGE_SCALE));
+
+        final float m00 = cameraToWorld.m00, m01 = cameraToWorld.m01, m02 = cameraToWorld.m02;
+        final float m10 = cameraToWorld.m10, m11 = cameraToWorld.m11, m12 = cameraToWorld.m12;
+        final float m20 = cameraToWorld.m20, m21 = cameraToWorld.m21, m22 = cameraToWorld.m22;
+        final float m30 = cameraToWorld.m30, m31 = cameraToWorld.m31, m32 = cameraToWorld.m32;
+        float blockWorldSize = voxelSize * BLOCK_SIZE;
+        visibleCount = 0;
+
+        for(int k = 0; k < count * 3; k += 3) {
+            float x = xyz.get(k);
+            float y = xyz.get(k + 1);
+            float z = xyz.get(k + 2);
+            if(!(z > 0))
+                continue;
+            int u = (int) (fx * (x / z) + cx);
+            int v = (int) (fy * (y / z) + cy);
+            if(u < 0 || u >= depthWidth || v < 0 || v >= depthHeight)
+                continue;
+            int pixel = v * depthWidth + u;
+            if(depthImage[pixel] == 0 || z < depthImage[pixel]) {
+                depthImage[pixel] = z;
+            }
+
+            // Allocate the blocks covering the truncation band along the viewing ray.
+            for(int s = -1; s <= 1; s++) {
+                float scale = 1.0f + s * truncation / z;
+                float px = x * scale, py = y * scale, pz = z * scale;
+                float wx = m00 * px + m10 * py + m20 * pz + m30;
+                float wy = m01 * px + m11 * py + m21 * pz + m31;
+                float wz = m02 * px + m12 * py + m22 * pz + m32;
+                markVisible((int) Math.floor(wx / blockWorldSize),
+                        (int) Math.floor(wy / blockWorldSize),
+                        (int) Math.floor(wz / blockWorldSize));
+            }
+        }
+
+        cameraToWorld.invertAffine(worldToCamera);
+        for(int i = 0; i < visibleCount; i++) {
+            updateBlock(visibleBlocks[i], fx, fy, cx, cy);
+        }
+    }
+
+    /**
+     * Appends the centres of voxels lying on the fused surface (|tsdf| below half a voxel and
+     * observed at least {@code minWeight} times) to {@code out}. If {@code withNormals} is set,
+     * each point also gets the normalised TSDF gradient, which points away from the surface
+     * towards the side it was observed from.
+     */
+    public void extractSurface(PointBuffer out, float minWeight, boolean withNormals)
+    {
+        if(withNormals) {
+            out.enableNormals();
+        }
+        float threshold = 0.5f * voxelSize / truncation;
+        for(int block = 0; block < blockCount; block++) {
+            int base = block * BLOCK_VOXELS;
+            int gx = blockCoords[block * 3] * BLOCK_SIZE;
+            int gy = blockCoords[block * 3 + 1] * BLOCK_SIZE;
+            int gz = blockCoords[block * 3 + 2] * BLOCK_SIZE;
+            for(int i = 0; i < BLOCK_VOXELS; i++) {
+                if(weights[base + i] < minWeight || Math.abs(tsdf[base + i]) > threshold)
+                    continue;
+                int vx = gx + i % BLOCK_SIZE;
+                int vy = gy + (i / BLOCK_SIZE) % BLOCK_SIZE;
+                int vz = gz + i / (BLOCK_SIZE * BLOCK_SIZE);
+                int index = out.add((vx + 0.5f) * voxelSize, (vy + 0.5f) * voxelSize,
+                        (vz + 0.5f) * voxelSize);
+                if(!withNormals)
+                    continue;
+                float center = tsdf[base + i];
+                float nx = gradient(sample(vx - 1, vy, vz), center, sample(vx + 1, vy, vz));
+                float ny = gradient(sample(vx, vy - 1, vz), center, sample(vx, vy + 1, vz));
+                float nz = gradient(sample(vx, vy, vz - 1), center, sample(vx, vy, vz + 1));
+                float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if(length > 0) {
+                    out.setNormal(index, nx / length, ny / length, nz / length);
+                }
+            }
+        }
+    }
+
+    public void extractSurface(PointBuffer out, float minWeight)
+    {
+        extractSurface(out, minWeight, false);
+    }
+
+    /**
+     * TSDF value of the voxel at global voxel coordinates, or NaN if it was never observed.
+     */
+    public float sample(int vx, int vy, int vz)
+    {
+        int bx = vx >> BLOCK_SHIFT;
+        int by = vy >> BLOCK_SHIFT;
+        int bz = vz >> BLOCK_SHIFT;
+        int block = blockIndex.get(VoxelGridFilter.key(bx, by, bz));
+        if(block == LongIntHashMap.NO_VALUE)
+            return Float.NaN;
+        int index = block * BLOCK_VOXELS + (vz - bz * BLOCK_SIZE) * BLOCK_SIZE * BLOCK_SIZE
+                + (vy - by * BLOCK_SIZE) * BLOCK_SIZE + (vx - bx * BLOCK_SIZE);
+        return weights[index] > 0 ? tsdf[index] : Float.NaN;
+    }
+
+    /**
+     * Central difference, falling back to a one-sided difference next to unobserved voxels.
+     */
+    private static float gradient(float before, float center, float after)
+    {
+        boolean hasBefore = !Float.isNaN(before);
+        boolean hasAfter = !Float.isNaN(after);
+        if(hasBefore && hasAfter)
+            return (after - before) * 0.5f;
+        if(hasAfter)
+            return after - center;
+        if(hasBefore)
+            return center - before;
+        return 0;
+    }
+
+    private void prepareDepthImage(int width, int height)
+    {
+        depthWidth = width;
+        depthHeight = height;
+        if(depthImage.length < width * height) {
+            depthImage = new float[width * height];
+        } else {
+            Arrays.fill(depthImage, 0, width * height, 0);
+        }
+    }
+
+    private void markVisible(int bx, int by, int bz)
+    {
+        long key = VoxelGridFilter.key(bx, by, bz);
+        int block = blockIndex.get(key);
+        if(block == LongIntHashMap.NO_VALUE) {
+            block = blockCount < maxBlocks ? blockCount++ : evictOldestBlock();
+            if(block == LongIntHashMap.NO_VALUE)
+                return;
+            initBlock(block, bx, by, bz);
+            blockIndex.put(key, block);
+        }
+        if(blockFrame[block] == frame)
+            return;
+        blockFrame[block] = frame;
+        if(visibleCount == visibleBlocks.length) {
+            visibleBlocks = Arrays.copyOf(visibleBlocks, Math.max(64, visibleCount * 2));
+        }
+        visibleBlocks[visibleCount++] = block;
+    }
+
+    /**
+     * Frees the block observed in the oldest frame and returns it, or
+     * {@link LongIntHashMap#NO_VALUE} if the current frame alone sees every block.
+     */
+    private int evictOldestBlock()
+    {
+        int oldest = LongIntHashMap.NO_VALUE;
+        for(int block = 0; block < blockCount; block++) {
+            if(blockFrame[block] == frame)
+                continue;
+            if(oldest == LongIntHashMap.NO_VALUE || blockFrame[block] < blockFrame[oldest]) {
+                oldest = block;
+            }
+        }
+        if(oldest == LongIntHashMap.NO_VALUE) {
+            if(warnedFrame != frame) {
+                warnedFrame = frame;
+                Log.w(TAG, "Frame spans more than the block budget of " + maxBlocks);
+            }
+            return oldest;
+        }
+        blockIndex.remove(VoxelGridFilter.key(blockCoords[oldest * 3],
+                blockCoords[oldest * 3 + 1], blockCoords[oldest * 3 + 2]));
+        evictedCount++;
+        return oldest;
+    }
+
+    private void initBlock(int block, int bx, int by, int bz)
+    {
+        if(block * 3 + 3 > blockCoords.length) {
+            int capacity = Math.min(maxBlocks, Math.max(64, block * 2));
+            blockCoords = Arrays.copyOf(blockCoords, capacity * 3);
+            blockFrame = Arrays.copyOf(blockFrame, capacity);
+            tsdf = Arrays.copyOf(tsdf, capacity * BLOCK_VOXELS);
+            weights = Arrays.copyOf(weights, capacity * BLOCK_VOXELS);
+        }
+        blockCoords[block * 3] = bx;
+        blockCoords[block * 3 + 1] = by;
+        blockCoords[block * 3 + 2] = bz;
+        blockFrame[block] = 0;
+        Arrays.fill(tsdf, block * BLOCK_VOXELS, (block + 1) * BLOCK_VOXELS, 1.0f);
+        Arrays.fill(weights, block * BLOCK_VOXELS, (block + 1) * BLOCK_VOXELS, 0);
+    }
+
+    private void updateBlock(int block, float fx, float fy, float cx, float cy)
+    {
+        final Matrix4f m = worldToCamera;
+        int base = block * BLOCK_VOXELS;
+        float ox = blockCoords[block * 3] * BLOCK_SIZE * voxelSize;
+        float oy = blockCoords[block * 3 + 1] * BLOCK_SIZE * voxelSize;
+        float oz = blockCoords[block * 3 + 2] * BLOCK_SIZE * voxelSize;
+        float inverseTruncation = 1.0f / truncation;
+
+        for(int vz = 0, i = 0; vz < BLOCK_SIZE; vz++) {
+            float wz = oz + (vz + 0.5f) * voxelSize;
+            for(int vy = 0; vy < BLOCK_SIZE; vy++) {
+                float wy = oy + (vy + 0.5f) * voxelSize;
+                for(int vx = 0; vx < BLOCK_SIZE; vx++, i++) {
+                    float wx = ox + (vx + 0.5f) * voxelSize;
+                    float z = m.m02 * wx + m.m12 * wy + m.m22 * wz + m.m32;
+                    if(!(z > 0))
+                        continue;
+                    float x = m.m00 * wx + m.m10 * wy + m.m20 * wz + m.m30;
+                    float y = m.m01 * wx + m.m11 * wy + m.m21 * wz + m.m31;
+                    int u = (int) (fx * (x / z) + cx);
+                    int v = (int) (fy * (y / z) + cy);
+                    if(u < 0 || u >= depthWidth || v < 0 || v >= depthHeight)
+                        continue;
+                    float depth = depthImage[v * depthWidth + u];
+                    if(depth == 0)
+                        continue;
+                    float sdf = depth - z;
+                    if(sdf < -truncation)
+                        continue;
+                    float value = Math.min(1.0f, sdf * inverseTruncation);
+                    int index = base + i;
+                    float weight = weights[index];
+                    tsdf[index] = (tsdf[index] * weight + value) / (weight + 1);
+                    weights[index] = Math.min(weight + 1, MAX_WEIGHT);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.projecttango.examples.java.augmentedreality;
+
+/**
+ * Voxel-grid downsampler.
+ * Points are bucketed into cubic voxels of side {@code leafSize}, keyed by their packed integer
+ * voxel coordinates in a {@link LongIntHashMap}. Each occupied voxel produces one output point:
+ * either the centroid of its points or the first point that fell into it. Runs in linear time and
+ * reuses its scratch arrays between calls.
+ */
+public class VoxelGridFilter
+{
+    private static final int KEY_BITS = 21;
+    private static final int KEY_OFFSET = 1 << (KEY_BITS - 1);
+    private static final long KEY_MASK = (1L << KEY_BITS) - 1;
+
+    private float leafSize;
+    private boolean averaging = true;
+
+    private final LongIntHashMap voxels = new LongIntHashMap();
+    // Per-voxel accumulators, indexed by the voxel's order of first occupancy.
+    private float[] sums = new float[0];
+    private float[] normalSums = new float[0];
+    private int[] counts = new int[0];
+    private int[] firstPoint = new int[0];
+
+    public VoxelGridFilter(float leafSize)
+    {
+        setLeafSize(leafSize);
+    }
+
+    public float getLeafSize()
+    {
+        return leafSize;
+    }
+
+    public void setLeafSize(float leafSize)
+    {
+        if(!(leafSize > 0))
+            throw new IllegalArgumentException("Leaf size must be positive: " + leafSize);
+        this.leafSize = leafSize;
+    }
+
+    public boolean isAveraging()
+    {
+        return averaging;
+    }
+
+    /**
+     * If true, each voxel yields the centroid of its points; otherwise it yields the first point
+     * that fell into it, which keeps original samples and their attributes untouched.
+     */
+    public void setAveraging(boolean averaging)
+    {
+        this.averaging = averaging;
+    }
+
+    /**
+     * Packs signed integer voxel coordinates into a non-negative key, 21 bits per axis.
+     */
+    public static long key(int ix, int iy, int iz)
+    {
+        return (((long) ix + KEY_OFFSET) & KEY_MASK) << (2 * KEY_BITS)
+                | (((long) iy + KEY_OFFSET) & KEY_MASK) << KEY_BITS
+                | (((long) iz + KEY_OFFSET) & KEY_MASK);
+    }
+
+    /**
+     * Replaces the contents of {@code out} with the downsampled {@code in}. Normals are averaged
+     * and renormalised; colors are taken from the first point of each voxel. Points with a NaN or
+     * infinite coordinate are skipped: they have no voxel, and would turn the centroid of
+     * whichever voxel their key fell into to NaN.
+     */
+    public void filter(PointBuffer in, PointBuffer out)
+    {
+        if(in == out)
+            throw new IllegalArgumentException("Cannot filter a buffer in place");
+
+        int n = in.size();
+        float[] xyz = in.getXyzArray();
+        float[] normals = in.getNormalArray();
+        float inverseLeaf = 1.0f / leafSize;
+
+        voxels.clear();
+        voxels.ensureCapacity(n);
+        ensureScratch(n, normals != null);
+
+        int voxelCount = 0;
+        for(int i = 0, k = 0; i < n; i++, k += 3) {
+            if(!isFinite(xyz[k]) || !isFinite(xyz[k + 1]) || !isFinite(xyz[k + 2]))
+                continue;
+            long key = key((int) Math.floor(xyz[k] * inverseLeaf),
+                    (int) Math.floor(xyz[k + 1] * inverseLeaf),
+                    (int) Math.floor(xyz[k + 2] * inverseLeaf));
+            int voxel = voxels.putIfAbsent(key, voxelCount);
+            if(voxel == LongIntHashMap.NO_VALUE) {
+                voxel = voxelCount++;
+                firstPoint[voxel] = i;
+                counts[voxel] = 0;
+                int v = voxel * 3;
+                sums[v] = sums[v + 1] = sums[v + 2] = 0;
+                if(normals != null) {
+                    normalSums[v] = normalSums[v + 1] = normalSums[v + 2] = 0;
+                }
+            }
+            if(!averaging)
+                continue;
+            int v = voxel * 3;
+            counts[voxel]++;
+            sums[v] += xyz[k];
+            sums[v + 1] += xyz[k + 1];
+            sums[v + 2] += xyz[k + 2];
+            if(normals != null) {
+                normalSums[v] += normals[k];
+                normalSums[v + 1] += normals[k + 1];
+                normalSums[v + 2] += normals[k + 2];
+            }
+        }
+
+        out.clear();
+        if(normals != null) {
+            out.enableNormals();
+        }
+        if(in.hasColors()) {
+            out.enableColors();
+        }
+        out.ensureCapacity(voxelCount);
+        for(int voxel = 0; voxel < voxelCount; voxel++) {
+            int first = firstPoint[voxel];
+            int index;
+            if(averaging) {
+                int v = voxel * 3;
+                float inverseCount = 1.0f / counts[voxel];
+                index = out.add(sums[v] * inverseCount, sums[v + 1] * inverseCount,
+                        sums[v + 2] * inverseCount);
+                if(normals != null) {
+                    float nx = normalSums[v], ny = normalSums[v + 1], nz = normalSums[v + 2];
+                    float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                    if(length > 0) {
+                        out.setNormal(index, nx / length, ny / length, nz / length);
+                    }
+                }
+            } else {
+                int f = first * 3;
+                index = out.add(xyz[f], xyz[f + 1], xyz[f + 2]);
+                if(normals != null) {
+                    out.setNormal(index, normals[f], normals[f + 1], normals[f + 2]);
+                }
+            }
+            if(in.hasColors()) {
+                out.setColor(index, in.getColor(first));
+            }
+        }
+    }
+
+    private static boolean isFinite(float value)
+    {
+        // False for NaN too, as every comparison with it is.
+        return Math.abs(value) <= Float.MAX_VALUE;
+    }
+
+    private void ensureScratch(int n, boolean withNormals)
+    {
+        if(counts.length < n) {
+            int capacity = Math.max(n, counts.length + (counts.length >> 1));
+            sums = new float[capacity * 3];
+            counts = new int[capacity];
+            firstPoint = new int[capacity];
+            if(normalSums.length > 0) {
+                normalSums = new float[capacity * 3];
+            }
+        }
+        if(withNormals && normalSums.length < counts.length * 3) {
+            normalSums = new float[counts.length * 3];
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ConvexHull} containment, volume and the 200k point time budget. Every input point must
+ * be inside the hull or within the tolerance of it; an inverted face shows as points far outside.
+ */
+public class ConvexHullTest
+{
+    private static final float TOLERANCE = 0.001f;
+    private static final int LARGE_CLOUD = 200000;
+    private static final long TIME_BUDGET_NANOS = 1000000000L;
+
+    private static PointBuffer randomCube(Random random, int count)
+    {
+        PointBuffer points = new PointBuffer(count);
+        for(int i = 0; i < count; i++) {
+            points.add(random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1,
+                    random.nextFloat() * 2 - 1);
+        }
+        return points;
+    }
+
+    private static PointBuffer randomSphere(Random random, int count)
+    {
+        PointBuffer points = new PointBuffer(count);
+        while(points.size() < count) {
+            double x = random.nextGaussian(), y = random.nextGaussian(), z = random.nextGaussian();
+            double length = Math.sqrt(x * x + y * y + z * z);
+            if(length > 0) {
+                points.add((float) (x / length), (float) (y / length), (float) (z / length));
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Asserts that every {@code stride}-th point of {@code points} is at most {@code slack}
+     * outside each face plane of {@code hull}.
+     */
+    private static void assertContains(ConvexHull hull, PointBuffer points, int stride,
+                                       float slack)
+    {
+        float[] v = hull.getVertices().getXyzArray();
+        int[] triangles = hull.getTriangles();
+        int count = hull.getTriangleCount();
+        double[] planes = new double[count * 4];
+        for(int t = 0; t < count; t++) {
+            int a = triangles[t * 3] * 3, b = triangles[t * 3 + 1] * 3;
+            int c = triangles[t * 3 + 2] * 3;
+            double ux = v[b] - v[a], uy = v[b + 1] - v[a + 1], uz = v[b + 2] - v[a + 2];
+            double wx = v[c] - v[a], wy = v[c + 1] - v[a + 1], wz = v[c + 2] - v[a + 2];
+            double nx = uy * wz - uz * wy, ny = uz * wx - ux * wz, nz = ux * wy - uy * wx;
+            double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if(length == 0)
+                continue;
+            planes[t * 4] = nx / length;
+            planes[t * 4 + 1] = ny / length;
+            planes[t * 4 + 2] = nz / length;
+            planes[t * 4 + 3] = -(planes[t * 4] * v[a] + planes[t * 4 + 1] * v[a + 1]
+                    + planes[t * 4 + 2] * v[a + 2]);
+        }
+        float[] xyz = points.getXyzArray();
+        for(int i = 0; i < points.size(); i += stride) {
+            double x = xyz[i * 3], y = xyz[i * 3 + 1], z = xyz[i * 3 + 2];
+            for(int t = 0; t < count * 4; t += 4) {
+                double distance = planes[t] * x + planes[t + 1] * y + planes[t + 2] * z
+                        + planes[t + 3];
+                if(distance > slack)
+                    throw new AssertionError("Point " + i + " is " + distance
+                            + " outside triangle " + t / 4);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroToleranceIsRejected()
+    {
+        new ConvexHull().setTolerance(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeToleranceIsRejected()
+    {
+        new ConvexHull().setTolerance(-0.001f);
+    }
+
+    @Test
+    public void cubeCornersGiveTheCube()
+    {
+        PointBuffer points = randomCube(new Random(1), 5000);
+        for(int corner = 0; corner < 8; corner++) {
+            points.add((corner & 1) * 2 - 1, (corner >> 1 & 1) * 2 - 1, (corner >> 2 & 1) * 2 - 1);
+        }
+        ConvexHull hull = new ConvexHull();
+        assertTrue(hull.compute(points));
+        assertEquals(8, hull.getVolume(), 1e-4);
+        assertEquals(24, hull.getArea(), 1e-4);
+        assertContains(hull, points, 1, TOLERANCE);
+    }
+
+    @Test
+    public void flatPointsHaveNoHull()
+    {
+        PointBuffer points = new PointBuffer();
+        Random random = new Random(2);
+        for(int i = 0; i < 100; i++) {
+            points.add(random.nextFloat(), random.nextFloat(), 0.5f);
+        }
+        ConvexHull hull = new ConvexHull();
+        assertTrue(!hull.compute(points));
+        assertTrue(hull.isEmpty());
+        assertEquals(0, hull.getVolume(), 0);
+    }
+
+    @Test
+    public void randomCloudIsContained()
+    {
+        PointBuffer points = randomCube(new Random(3), LARGE_CLOUD);
+        ConvexHull hull = new ConvexHull();
+        long start = System.nanoTime();
+        assertTrue(hull.compute(points));
+        long elapsed = System.nanoTime() - start;
+        assertTrue("Hull of " + LARGE_CLOUD + " points took " + elapsed / 1000000 + " ms",
+                elapsed < TIME_BUDGET_NANOS);
+        assertContains(hull, points, 1, TOLERANCE);
+        // Dropping points within the tolerance only shaves a sliver off the cube.
+        assertTrue(hull.getVolume() <= 8);
+        assertEquals(8, hull.getVolume(), 0.05);
+    }
+
+    /**
+     * Points on a sphere are all extreme, the worst case for the hull size and for rounding.
+     */
+    @Test
+    public void sphereIsContained()
+    {
+        PointBuffer points = randomSphere(new Random(4), LARGE_CLOUD);
+        ConvexHull hull = new ConvexHull();
+        long start = System.nanoTime();
+        assertTrue(hull.compute(points));
+        long elapsed = System.nanoTime() - start;
+        assertTrue("Hull of " + LARGE_CLOUD + " points took " + elapsed / 1000000 + " ms",
+                elapsed < TIME_BUDGET_NANOS);
+        assertContains(hull, points, 7, TOLERANCE);
+        double sphere = 4 * Math.PI / 3;
+        assertTrue(hull.getVolume() <= sphere);
+        assertEquals(sphere, hull.getVolume(), sphere * 0.01);
+    }
+}
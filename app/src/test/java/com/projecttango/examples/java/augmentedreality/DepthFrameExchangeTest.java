@@ -0,0 +1,159 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress tests for {@link DepthFrameExchange}: one producer publishing as fast as it can against
+ * one consumer acquiring as fast as it can, the way the Tango callback and the render thread use
+ * it. Every value of frame {@code i} is {@code i}, so a frame mixing two publishes shows up as
+ * torn.
+ */
+public class DepthFrameExchangeTest
+{
+    private static final int MAX_POINTS = 512;
+    private static final int FRAMES = 200000;
+    // Far above a handoff, which takes microseconds; only a stuck or lost frame gets there.
+    private static final long MAX_LATENCY_NANOS = 250000000L;
+
+    private static int pointCount(int frame)
+    {
+        return 1 + frame % MAX_POINTS;
+    }
+
+    @Test
+    public void acquireBeforePublishReturnsNull()
+    {
+        DepthFrameExchange exchange = new DepthFrameExchange(MAX_POINTS);
+        assertNull(exchange.acquire());
+        assertEquals(0, exchange.getPublishedCount());
+    }
+
+    @Test
+    public void acquireReturnsLatestFrameUntilANewerOne()
+    {
+        DepthFrameExchange exchange = new DepthFrameExchange(MAX_POINTS);
+        FloatBuffer xyz = FloatBuffer.allocate(MAX_POINTS * 3);
+        for(int frame = 1; frame <= 3; frame++) {
+            fill(xyz, frame);
+            exchange.publish(xyz, pointCount(frame), frame);
+        }
+        DepthFrameExchange.Frame frame = exchange.acquire();
+        assertNotNull(frame);
+        assertEquals(3.0, frame.getTimestamp(), 0);
+        assertEquals(pointCount(3), frame.getCount());
+        assertEquals(2, exchange.getDroppedCount());
+        assertTrue(frame == exchange.acquire());
+        assertEquals(3.0, exchange.acquire().getTimestamp(), 0);
+    }
+
+    @Test
+    public void pointsPastCapacityAreIgnored()
+    {
+        DepthFrameExchange exchange = new DepthFrameExchange(MAX_POINTS);
+        FloatBuffer xyz = FloatBuffer.allocate(MAX_POINTS * 2 * 3);
+        exchange.publish(xyz, MAX_POINTS * 2, 1);
+        assertEquals(MAX_POINTS, exchange.acquire().getCount());
+    }
+
+    @Test
+    public void latencyIsBoundedByTheHandoff()
+    {
+        DepthFrameExchange exchange = new DepthFrameExchange(MAX_POINTS);
+        FloatBuffer xyz = FloatBuffer.allocate(MAX_POINTS * 3);
+        for(int frame = 1; frame <= 1000; frame++) {
+            long before = System.nanoTime();
+            exchange.publish(xyz, pointCount(frame), frame);
+            exchange.acquire();
+            long elapsed = System.nanoTime() - before;
+            long latency = exchange.getLatencyNanos();
+            assertTrue("Negative latency: " + latency, latency >= 0);
+            assertTrue("Latency " + latency + " above " + elapsed, latency <= elapsed);
+        }
+    }
+
+    @Test
+    public void concurrentHandoffNeverTearsFrames() throws InterruptedException
+    {
+        final DepthFrameExchange exchange = new DepthFrameExchange(MAX_POINTS);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                FloatBuffer xyz = FloatBuffer.allocate(MAX_POINTS * 3);
+                for(int frame = 1; frame <= FRAMES; frame++) {
+                    fill(xyz, frame);
+                    exchange.publish(xyz, pointCount(frame), frame);
+                }
+            }
+        }, "producer");
+
+        final long[] taken = new long[1];
+        final long[] maxLatency = new long[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    double last = 0;
+                    while(last < FRAMES) {
+                        DepthFrameExchange.Frame frame = exchange.acquire();
+                        if(frame == null || frame.getTimestamp() == last)
+                            continue;
+                        assertTrue("Timestamp went from " + last + " to " + frame.getTimestamp(),
+                                frame.getTimestamp() > last);
+                        last = frame.getTimestamp();
+                        check(frame);
+                        taken[0]++;
+                        long latency = exchange.getLatencyNanos();
+                        assertTrue("Negative latency: " + latency, latency >= 0);
+                        maxLatency[0] = Math.max(maxLatency[0], latency);
+                    }
+                } catch(Throwable t) {
+                    failure.set(t);
+                }
+            }
+        }, "consumer");
+
+        consumer.start();
+        producer.start();
+        producer.join(60000);
+        consumer.join(60000);
+        if(failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertTrue("Consumer did not see the last frame", !consumer.isAlive());
+
+        // Each frame is either taken once or overwritten once, and the last one is taken.
+        assertEquals(FRAMES, exchange.getPublishedCount());
+        assertEquals(FRAMES, taken[0] + exchange.getDroppedCount());
+        assertTrue(taken[0] > 0);
+        assertTrue("Max latency " + maxLatency[0] / 1000 + " us",
+                maxLatency[0] < MAX_LATENCY_NANOS);
+    }
+
+    private static void fill(FloatBuffer xyz, int frame)
+    {
+        xyz.clear();
+        for(int i = 0; i < pointCount(frame) * 3; i++) {
+            xyz.put(i, frame);
+        }
+    }
+
+    private static void check(DepthFrameExchange.Frame frame)
+    {
+        int stamp = (int) frame.getTimestamp();
+        assertEquals("Count of frame " + stamp, pointCount(stamp), frame.getCount());
+        FloatBuffer xyz = frame.getBuffer();
+        for(int i = 0; i < frame.getCount() * 3; i++) {
+            if(xyz.get(i) != stamp)
+                throw new AssertionError("Frame " + stamp + " torn at " + i + ": " + xyz.get(i));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reuse accounting of {@link FloatBufferPool} and the buffers its release ignores.
+ */
+public class FloatBufferPoolTest
+{
+    private static final int CAPACITY = 12;
+
+    @Test
+    public void hitsAndMissesCountReuse()
+    {
+        FloatBufferPool pool = new FloatBufferPool(CAPACITY, 2);
+        FloatBuffer first = pool.acquire();
+        FloatBuffer second = pool.acquire();
+        assertNotSame(first, second);
+        assertEquals(0, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertTrue(first.isDirect());
+        assertEquals(CAPACITY, first.capacity());
+
+        first.put(1).put(2);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(2, pool.getFreeCount());
+
+        FloatBuffer reused = pool.acquire();
+        assertSame(first, reused);
+        assertEquals("A reused buffer is cleared", 0, reused.position());
+        assertEquals(CAPACITY, reused.limit());
+        assertSame(second, pool.acquire());
+        pool.acquire();
+        assertEquals(2, pool.getHits());
+        assertEquals(3, pool.getMisses());
+        assertEquals(0, pool.getFreeCount());
+    }
+
+    @Test
+    public void buffersBeyondTheLimitAreDropped()
+    {
+        FloatBufferPool pool = new FloatBufferPool(CAPACITY, 1);
+        FloatBuffer first = pool.acquire();
+        FloatBuffer second = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+        assertEquals(1, pool.getFreeCount());
+        assertSame(first, pool.acquire());
+        assertNotSame(second, pool.acquire());
+        assertEquals(1, pool.getHits());
+        assertEquals(3, pool.getMisses());
+    }
+
+    @Test
+    public void releaseIgnoresUnsuitableAndRepeatedBuffers()
+    {
+        FloatBufferPool pool = new FloatBufferPool(CAPACITY, 4);
+        pool.release(null);
+        pool.release(FloatBuffer.allocate(CAPACITY));
+        pool.release(new FloatBufferPool(CAPACITY + 3, 1).acquire());
+        assertEquals(0, pool.getFreeCount());
+
+        // Equal contents must not hide a different buffer, nor the same one twice.
+        FloatBuffer first = pool.acquire();
+        FloatBuffer second = pool.acquire();
+        pool.release(first);
+        pool.release(first);
+        assertEquals(1, pool.getFreeCount());
+        pool.release(second);
+        assertEquals(2, pool.getFreeCount());
+        assertSame(first, pool.acquire());
+        assertSame(second, pool.acquire());
+        assertEquals(0, pool.getFreeCount());
+    }
+}
@@ -0,0 +1,226 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link KdTree} queries against brute force over seeded random clouds. Coordinates are quantised
+ * to 1 cm and every tenth point is repeated, so the trees are full of equal keys and exact ties.
+ */
+public class KdTreeTest
+{
+    private static final int COUNT = 3000;
+    private static final int QUERIES = 200;
+
+    private static float[] cloud(Random random, int count)
+    {
+        float[] xyz = new float[count * 3];
+        for(int i = 0; i < count; i++) {
+            int k = i * 3;
+            if(i % 10 == 9) {
+                // A duplicate of an earlier point.
+                int j = random.nextInt(i) * 3;
+                System.arraycopy(xyz, j, xyz, k, 3);
+            } else {
+                xyz[k] = random.nextInt(100) / 100f;
+                xyz[k + 1] = random.nextInt(100) / 100f;
+                xyz[k + 2] = random.nextInt(20) / 100f;
+            }
+        }
+        return xyz;
+    }
+
+    private static float distanceSquared(float[] xyz, int i, float x, float y, float z)
+    {
+        int k = i * 3;
+        float dx = xyz[k] - x, dy = xyz[k + 1] - y, dz = xyz[k + 2] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Squared distances of all points within {@code maxDistance}, ascending.
+     */
+    private static float[] bruteForce(float[] xyz, int count, float x, float y, float z,
+                                      float maxDistance)
+    {
+        float limit = maxDistance * maxDistance;
+        float[] found = new float[count];
+        int n = 0;
+        for(int i = 0; i < count; i++) {
+            float d = distanceSquared(xyz, i, x, y, z);
+            if(d <= limit) {
+                found[n++] = d;
+            }
+        }
+        found = Arrays.copyOf(found, n);
+        Arrays.sort(found);
+        return found;
+    }
+
+    /**
+     * A query point: half the time on a point of the cloud, otherwise anywhere around it.
+     */
+    private static float[] query(Random random, float[] xyz, int count)
+    {
+        if(random.nextBoolean()) {
+            int k = random.nextInt(count) * 3;
+            return new float[] {xyz[k], xyz[k + 1], xyz[k + 2]};
+        }
+        return new float[] {
+                random.nextFloat() * 1.2f - 0.1f,
+                random.nextFloat() * 1.2f - 0.1f,
+                random.nextFloat() * 0.4f - 0.1f
+        };
+    }
+
+    @Test
+    public void nearestMatchesBruteForce()
+    {
+        Random random = new Random(6);
+        float[] xyz = cloud(random, COUNT);
+        KdTree tree = new KdTree();
+        tree.build(xyz, COUNT);
+        for(int q = 0; q < QUERIES; q++) {
+            float[] p = query(random, xyz, COUNT);
+            float[] all = bruteForce(xyz, COUNT, p[0], p[1], p[2], Float.POSITIVE_INFINITY);
+            int nearest = tree.nearest(p[0], p[1], p[2], Float.POSITIVE_INFINITY);
+            assertEquals(all[0], distanceSquared(xyz, nearest, p[0], p[1], p[2]), 0);
+
+            // Only a point within the limit may be returned.
+            float maxDistance = 0.03f;
+            nearest = tree.nearest(p[0], p[1], p[2], maxDistance);
+            if(all[0] <= maxDistance * maxDistance) {
+                assertEquals(all[0], distanceSquared(xyz, nearest, p[0], p[1], p[2]), 0);
+            } else {
+                assertEquals(-1, nearest);
+            }
+        }
+    }
+
+    @Test
+    public void nearestKMatchesBruteForce()
+    {
+        Random random = new Random(7);
+        float[] xyz = cloud(random, COUNT);
+        KdTree tree = new KdTree();
+        tree.build(xyz, COUNT);
+        KdTree.Neighbors neighbors = new KdTree.Neighbors(4);
+        int[] ks = {1, 5, 16, 40};
+        for(int q = 0; q < QUERIES; q++) {
+            float[] p = query(random, xyz, COUNT);
+            int k = ks[q % ks.length];
+            float maxDistance = q % 2 == 0 ? Float.POSITIVE_INFINITY : 0.05f;
+            float[] all = bruteForce(xyz, COUNT, p[0], p[1], p[2], maxDistance);
+            int n = tree.nearestK(p[0], p[1], p[2], k, maxDistance, neighbors);
+            assertEquals(Math.min(k, all.length), n);
+            assertEquals(n, neighbors.size());
+            for(int i = 0; i < n; i++) {
+                assertEquals(all[i], neighbors.distanceSquared(i), 0);
+                assertEquals(all[i], distanceSquared(xyz, neighbors.index(i), p[0], p[1], p[2]), 0);
+            }
+        }
+    }
+
+    @Test
+    public void nearestKWithKAboveSizeReturnsEveryPoint()
+    {
+        Random random = new Random(8);
+        int count = 50;
+        float[] xyz = cloud(random, count);
+        KdTree tree = new KdTree();
+        tree.build(xyz, count);
+        KdTree.Neighbors neighbors = new KdTree.Neighbors();
+        assertEquals(count, tree.nearestK(0.5f, 0.5f, 0.1f, 200, Float.POSITIVE_INFINITY,
+                neighbors));
+        assertArrayEquals(bruteForce(xyz, count, 0.5f, 0.5f, 0.1f, Float.POSITIVE_INFINITY),
+                distances(neighbors), 0);
+        int[] indices = new int[count];
+        for(int i = 0; i < count; i++) {
+            indices[i] = neighbors.index(i);
+        }
+        Arrays.sort(indices);
+        for(int i = 0; i < count; i++) {
+            assertEquals("Every point exactly once", i, indices[i]);
+        }
+        assertEquals(0, tree.nearestK(0.5f, 0.5f, 0.1f, 0, Float.POSITIVE_INFINITY, neighbors));
+    }
+
+    @Test
+    public void radiusMatchesBruteForce()
+    {
+        Random random = new Random(9);
+        float[] xyz = cloud(random, COUNT);
+        KdTree tree = new KdTree();
+        tree.build(xyz, COUNT);
+        KdTree.Neighbors neighbors = new KdTree.Neighbors();
+        float[] radii = {0.02f, 0.05f, 0.1f};
+        for(int q = 0; q < QUERIES; q++) {
+            float[] p = query(random, xyz, COUNT);
+            float radius = radii[q % radii.length];
+            float[] expected = bruteForce(xyz, COUNT, p[0], p[1], p[2], radius);
+            assertEquals(expected.length, tree.radius(p[0], p[1], p[2], radius, neighbors));
+            assertArrayEquals(expected, distances(neighbors), 0);
+            assertEquals(expected.length,
+                    tree.radiusUnsorted(p[0], p[1], p[2], radius, neighbors));
+        }
+    }
+
+    @Test
+    public void zeroRadiusFindsExactlyTheCoincidentPoints()
+    {
+        Random random = new Random(10);
+        float[] xyz = cloud(random, COUNT);
+        KdTree tree = new KdTree();
+        tree.build(xyz, COUNT);
+        KdTree.Neighbors neighbors = new KdTree.Neighbors();
+        for(int i = 0; i < COUNT; i += 7) {
+            float x = xyz[i * 3], y = xyz[i * 3 + 1], z = xyz[i * 3 + 2];
+            int coincident = 0;
+            for(int j = 0; j < COUNT; j++) {
+                if(xyz[j * 3] == x && xyz[j * 3 + 1] == y && xyz[j * 3 + 2] == z) {
+                    coincident++;
+                }
+            }
+            assertEquals(coincident, tree.radius(x, y, z, 0, neighbors));
+            for(int n = 0; n < coincident; n++) {
+                int j = neighbors.index(n);
+                assertEquals(0, neighbors.distanceSquared(n), 0);
+                assertTrue(xyz[j * 3] == x && xyz[j * 3 + 1] == y && xyz[j * 3 + 2] == z);
+            }
+        }
+        assertEquals(0, tree.radius(0.005f, 0.005f, 0.005f, 0, neighbors));
+    }
+
+    /**
+     * Building over identical points took close to a minute for 200k points when quickselect put
+     * every key equal to the pivot on one side; it now takes well under a second.
+     */
+    @Test(timeout = 5000)
+    public void buildingOverIdenticalPointsStaysFast()
+    {
+        int count = 200000;
+        float[] xyz = new float[count * 3];
+        Arrays.fill(xyz, 0.5f);
+        KdTree tree = new KdTree();
+        tree.build(xyz, count);
+        KdTree.Neighbors neighbors = new KdTree.Neighbors();
+        assertEquals(10, tree.nearestK(0.5f, 0.5f, 0.5f, 10, 0.01f, neighbors));
+        assertEquals(0, neighbors.maxDistanceSquared(), 0);
+        assertTrue(tree.nearest(0.5f, 0.5f, 0.6f, Float.POSITIVE_INFINITY) >= 0);
+    }
+
+    private static float[] distances(KdTree.Neighbors neighbors)
+    {
+        float[] distances = new float[neighbors.size()];
+        for(int i = 0; i < distances.length; i++) {
+            distances[i] = neighbors.distanceSquared(i);
+        }
+        return distances;
+    }
+}
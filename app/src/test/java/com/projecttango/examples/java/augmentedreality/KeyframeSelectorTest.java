@@ -0,0 +1,174 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+
+import org.joml.Matrix4f;
+import org.junit.Test;
+import org.rajawali3d.Object3D;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link KeyframeSelector} against each of its capture conditions, with the last keyframe at a
+ * pose away from identity.
+ */
+public class KeyframeSelectorTest
+{
+    private static final Vector3 POSITION = new Vector3(0.3, -1.2, 2.5);
+    private static final Quaternion ORIENTATION = new Quaternion(new Vector3(0.2, 1, -0.4), 35);
+    // Four points well inside the image at 1 to 2 m.
+    private static final float[] IN_VIEW = {0, 0, 1, 0.1f, 0.1f, 1.5f, -0.2f, 0.1f, 2, 0, -0.1f, 1};
+
+    private static TangoCameraIntrinsics intrinsics()
+    {
+        TangoCameraIntrinsics intrinsics = new TangoCameraIntrinsics();
+        intrinsics.width = 160;
+        intrinsics.height = 90;
+        intrinsics.fx = intrinsics.fy = 120;
+        intrinsics.cx = 80;
+        intrinsics.cy = 45;
+        return intrinsics;
+    }
+
+    private static Matrix4f rajawaliModelMatrix(Vector3 position, Quaternion orientation)
+    {
+        Object3D object = new Object3D();
+        object.setPosition(position);
+        object.setOrientation(orientation);
+        object.onRecalculateModelMatrix(null);
+        float[] values = new float[16];
+        object.getModelMatrix().toFloatArray(values);
+        return new Matrix4f().set(values);
+    }
+
+    private static Matrix4f pose()
+    {
+        return PointTransform.toModelMatrix(POSITION, ORIENTATION, new Matrix4f());
+    }
+
+    /**
+     * The last keyframe's pose moved by {@code meters} along its own x axis.
+     */
+    private static Matrix4f moved(float meters)
+    {
+        return pose().translate(meters, 0, 0);
+    }
+
+    /**
+     * The last keyframe's pose turned by {@code degrees} about its own y axis.
+     */
+    private static Matrix4f turned(float degrees)
+    {
+        return pose().rotateY((float) Math.toRadians(degrees));
+    }
+
+    private static boolean shouldCapture(KeyframeSelector selector, float[] xyz, Matrix4f pose)
+    {
+        return selector.shouldCapture(FloatBuffer.wrap(xyz), xyz.length / 3, pose, intrinsics(),
+                0);
+    }
+
+    @Test
+    public void firstFrameAndFrameAfterResetAreCaptured()
+    {
+        KeyframeSelector selector = new KeyframeSelector();
+        assertTrue(shouldCapture(selector, IN_VIEW, pose()));
+        selector.accept(pose());
+        assertFalse(shouldCapture(selector, IN_VIEW, pose()));
+        assertEquals(1, selector.getOverlap(), 0);
+
+        selector.reset();
+        assertTrue(shouldCapture(selector, IN_VIEW, pose()));
+    }
+
+    @Test
+    public void translationThreshold()
+    {
+        KeyframeSelector selector = new KeyframeSelector();
+        selector.accept(pose());
+        assertFalse(shouldCapture(selector, IN_VIEW, moved(0.1f)));
+        assertEquals(0.1f, selector.getTranslation(), 1e-5f);
+
+        assertTrue(shouldCapture(selector, IN_VIEW, moved(0.2f)));
+        assertEquals(0.2f, selector.getTranslation(), 1e-5f);
+        assertEquals(0, selector.getRotation(), 1e-3f);
+        assertTrue(Float.isNaN(selector.getOverlap()));
+
+        selector.setTranslationThreshold(0.05f);
+        assertTrue(shouldCapture(selector, IN_VIEW, moved(0.1f)));
+    }
+
+    @Test
+    public void rotationThreshold()
+    {
+        KeyframeSelector selector = new KeyframeSelector();
+        selector.accept(pose());
+        assertFalse(shouldCapture(selector, IN_VIEW, turned(15)));
+        assertEquals(15, Math.toDegrees(selector.getRotation()), 0.01);
+
+        assertTrue(shouldCapture(selector, IN_VIEW, turned(25)));
+        assertEquals(25, Math.toDegrees(selector.getRotation()), 0.01);
+        assertEquals(0, selector.getTranslation(), 1e-5f);
+        assertTrue(Float.isNaN(selector.getOverlap()));
+
+        selector.setRotationThreshold(10);
+        assertTrue(shouldCapture(selector, IN_VIEW, turned(15)));
+    }
+
+    @Test
+    public void rotationIsMeasuredBetweenRajawaliAndJomlPoses()
+    {
+        Quaternion turned = new Quaternion(ORIENTATION)
+                .multiply(new Quaternion(new Vector3(1, 0.5, 0.2), 30));
+        KeyframeSelector selector = new KeyframeSelector();
+        selector.accept(rajawaliModelMatrix(POSITION, ORIENTATION));
+        FloatBuffer xyz = FloatBuffer.wrap(new float[] {0, 0, 1});
+        assertTrue(selector.shouldCapture(xyz, 1,
+                PointTransform.toModelMatrix(POSITION, turned, new Matrix4f()), null, 0));
+        assertEquals(0, selector.getTranslation(), 1e-6f);
+        assertEquals(30, Math.toDegrees(selector.getRotation()), 0.01);
+    }
+
+    @Test
+    public void overlapThreshold()
+    {
+        // One point in view and three far off to the side, without moving the camera.
+        float[] xyz = {0, 0, 1, 5, 0, 1, -5, 0, 1, 0, 5, 1};
+        KeyframeSelector selector = new KeyframeSelector();
+        selector.accept(pose());
+        assertTrue(shouldCapture(selector, xyz, pose()));
+        assertEquals(0.25f, selector.getOverlap(), 0);
+
+        selector.setOverlapThreshold(0.2f);
+        assertFalse(shouldCapture(selector, xyz, pose()));
+        assertEquals(0.25f, selector.getOverlap(), 0);
+
+        // Turning the camera away takes the points out of the last keyframe's view.
+        selector.setOverlapThreshold(0.6f);
+        selector.setRotationThreshold(90);
+        assertTrue(shouldCapture(selector, IN_VIEW, turned(60)));
+        assertEquals(0, selector.getOverlap(), 0);
+    }
+
+    @Test
+    public void nothingIsCapturedOverTheMemoryBudget()
+    {
+        KeyframeSelector selector = new KeyframeSelector();
+        selector.setMemoryBudget(1000);
+        FloatBuffer xyz = FloatBuffer.wrap(IN_VIEW);
+        assertTrue(selector.shouldCapture(xyz, 4, moved(1), intrinsics(), 999));
+        assertFalse(selector.shouldCapture(xyz, 4, moved(1), intrinsics(), 1000));
+
+        selector.accept(pose());
+        assertFalse(selector.shouldCapture(xyz, 4, moved(1), intrinsics(), 1000));
+        assertTrue(selector.shouldCapture(xyz, 4, moved(1), intrinsics(), 999));
+        assertFalse("An empty frame is never captured",
+                selector.shouldCapture(xyz, 0, moved(1), intrinsics(), 0));
+    }
+}
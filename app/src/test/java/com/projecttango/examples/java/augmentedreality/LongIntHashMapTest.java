@@ -0,0 +1,56 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link LongIntHashMap} against {@link HashMap} under random puts and removes over a small key
+ * range, so probe runs collide, wrap around the table and get holes punched into them.
+ */
+public class LongIntHashMapTest
+{
+    @Test
+    public void matchesHashMapUnderRandomPutsAndRemoves()
+    {
+        Random random = new Random(1);
+        LongIntHashMap map = new LongIntHashMap(16);
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        for(int step = 0; step < 200000; step++) {
+            long key = random.nextInt(2000);
+            if(random.nextInt(3) == 0) {
+                Integer previous = expected.remove(key);
+                assertEquals("Remove " + key, previous == null ? LongIntHashMap.NO_VALUE
+                        : previous.intValue(), map.remove(key));
+            } else {
+                int value = random.nextInt(1 << 20);
+                Integer previous = expected.put(key, value);
+                assertEquals("Put " + key, previous == null ? LongIntHashMap.NO_VALUE
+                        : previous.intValue(), map.put(key, value));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for(long key = 0; key < 2000; key++) {
+            Integer value = expected.get(key);
+            assertEquals("Key " + key, value == null ? LongIntHashMap.NO_VALUE : value.intValue(),
+                    map.get(key));
+        }
+    }
+
+    @Test
+    public void removeOfAbsentKeyChangesNothing()
+    {
+        LongIntHashMap map = new LongIntHashMap();
+        map.put(5, 50);
+        assertEquals(LongIntHashMap.NO_VALUE, map.remove(6));
+        assertEquals(LongIntHashMap.NO_VALUE, map.remove(-3));
+        assertEquals(1, map.size());
+        assertEquals(50, map.remove(5));
+        assertEquals(0, map.size());
+        assertEquals(LongIntHashMap.NO_VALUE, map.get(5));
+    }
+}
@@ -0,0 +1,149 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Insertion edge cases of {@link PointOctree}, and frustum queries against brute force. Points
+ * outside the root make it grow towards them, which never ends for a point that no finite box
+ * contains, hence the timeouts.
+ */
+public class PointOctreeTest
+{
+    private static final float[] NON_FINITE = {
+            Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY
+    };
+
+    @Test(timeout = 5000)
+    public void nonFinitePointsAreSkipped()
+    {
+        PointOctree octree = new PointOctree();
+        for(float value : NON_FINITE) {
+            assertFalse(octree.insert(value, 0, 0));
+            assertFalse(octree.insert(0, value, 0));
+            assertFalse(octree.insert(0, 0, value));
+        }
+        assertEquals(0, octree.size());
+        assertEquals(0, octree.getNodeCount());
+
+        assertTrue(octree.insert(0.5f, -0.25f, 1.5f));
+        for(float value : NON_FINITE) {
+            assertFalse(octree.insert(value, value, value));
+        }
+        assertEquals(1, octree.size());
+        PointBuffer found = new PointBuffer();
+        assertEquals(1, octree.queryBox(-1, -1, 0, 1, 1, 2, found));
+    }
+
+    @Test(timeout = 5000)
+    public void bufferInsertSkipsOnlyNonFinitePoints()
+    {
+        PointBuffer points = new PointBuffer();
+        points.add(0, 0, 1);
+        points.add(Float.NaN, 0, 1);
+        points.add(10, -20, 30);
+        points.add(0, Float.POSITIVE_INFINITY, 1);
+        points.add(-5, 5, 0.5f);
+
+        PointOctree octree = new PointOctree();
+        assertEquals(3, octree.insert(points));
+        assertEquals(3, octree.size());
+        PointBuffer found = new PointBuffer();
+        assertEquals(3, octree.queryBox(-100, -100, -100, 100, 100, 100, found));
+    }
+
+    /**
+     * The points of {@code points} as sorted "x y z" strings, to compare results as multisets.
+     */
+    private static String[] sorted(PointBuffer points)
+    {
+        float[] xyz = points.getXyzArray();
+        String[] result = new String[points.size()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = xyz[i * 3] + " " + xyz[i * 3 + 1] + " " + xyz[i * 3 + 2];
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static void assertFrustumMatchesBruteForce(PointBuffer points, PointOctree octree,
+                                                       Matrix4f viewProjection)
+    {
+        FrustumIntersection frustum = new FrustumIntersection(viewProjection);
+        PointBuffer expected = new PointBuffer();
+        float[] xyz = points.getXyzArray();
+        for(int k = 0; k < points.size() * 3; k += 3) {
+            if(frustum.testPoint(xyz[k], xyz[k + 1], xyz[k + 2])) {
+                expected.add(xyz[k], xyz[k + 1], xyz[k + 2]);
+            }
+        }
+        assertTrue("The frustum sees no point", expected.size() > 0);
+        PointBuffer found = new PointBuffer();
+        assertEquals(expected.size(), octree.queryFrustum(frustum, found));
+        assertArrayEquals(sorted(expected), sorted(found));
+    }
+
+    @Test
+    public void frustumQueryMatchesBruteForce()
+    {
+        Random random = new Random(7);
+        PointBuffer points = new PointBuffer();
+        for(int i = 0; i < 20000; i++) {
+            points.add(random.nextFloat() * 8 - 4, random.nextFloat() * 3 - 1,
+                    random.nextFloat() * 8 - 4);
+        }
+        PointOctree octree = new PointOctree(32, 0.05f);
+        assertEquals(points.size(), octree.insert(points));
+        assertTrue(octree.getNodeCount() > 100);
+
+        for(int view = 0; view < 20; view++) {
+            Matrix4f viewProjection = new Matrix4f()
+                    .perspective((float) Math.toRadians(30 + random.nextInt(60)), 16f / 9,
+                            0.1f + random.nextFloat(), 2 + random.nextFloat() * 6)
+                    .lookAt(random.nextFloat() * 6 - 3, random.nextFloat() * 2,
+                            random.nextFloat() * 6 - 3,
+                            random.nextFloat() * 2 - 1, 0, random.nextFloat() * 2 - 1, 0, 1, 0);
+            assertFrustumMatchesBruteForce(points, octree, viewProjection);
+        }
+    }
+
+    /**
+     * An orthographic frustum whose planes lie exactly on node faces, over points on a grid that
+     * puts many of them exactly on those faces: nodes that only touch the frustum and points on
+     * its planes must come out as a point test says.
+     */
+    @Test
+    public void frustumQueryOnNodeBoundaries()
+    {
+        PointBuffer points = new PointBuffer();
+        points.add(0, 0, 0);
+        for(int i = -16; i <= 16; i++) {
+            for(int j = -16; j <= 16; j++) {
+                for(int k = -16; k <= 16; k++) {
+                    points.add(i / 8f, j / 8f, k / 8f);
+                }
+            }
+        }
+        PointOctree octree = new PointOctree(8, 0.1f);
+        assertEquals(points.size(), octree.insert(points));
+
+        // Faces at x = +-1, y = +-0.5 and z = 0, -1.5 in world space, all node boundaries.
+        assertFrustumMatchesBruteForce(points, octree,
+                new Matrix4f().setOrtho(-1, 1, -0.5f, 0.5f, 0, 1.5f));
+        // The same box moved to the corner of the grid, x in [-2, 0] and y in [-2, -1].
+        assertFrustumMatchesBruteForce(points, octree,
+                new Matrix4f().setOrtho(-1, 1, -0.5f, 0.5f, 0, 1.5f).translate(1, 1.5f, 0));
+        // A frustum that only touches the grid along its face at x = 2.
+        assertFrustumMatchesBruteForce(points, octree,
+                new Matrix4f().setOrtho(2, 3, -1, 1, -2, 2));
+    }
+}
@@ -0,0 +1,127 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.junit.Test;
+import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The batch {@link PointTransform} against the per-point Rajawali path it replaced in
+ * {@code savePointCloud}, on a full 60k point depth frame. The test checks that both agree; run
+ * {@link #main} for the points per second of each. Run on a desktop JVM, the numbers compare the
+ * two paths rather than predict device throughput.
+ */
+public class PointTransformBenchmark
+{
+    private static final int POINTS = AugmentedRealityRenderer.MAX_NUMBER_OF_POINTS;
+    private static final long WARMUP_NANOS = 1000000000L;
+    private static final long MEASURE_NANOS = 2000000000L;
+
+    private final FloatBuffer xyz = FloatBuffer.allocate(POINTS * 3);
+    private final Matrix4 modelMatrix = new Matrix4();
+    private final float[] legacyOutput = new float[POINTS * 3];
+    private float checksum;
+
+    public PointTransformBenchmark()
+    {
+        Random random = new Random(1);
+        for(int i = 0; i < POINTS * 3; i++) {
+            xyz.put(i, random.nextFloat() * 4 - 2);
+        }
+        modelMatrix.setAll(new Vector3(0.3, -1.2, 2.5), new Vector3(1.0, 1.0, 1.0),
+                new Quaternion(new Vector3(0.2, 1, -0.4), 35));
+    }
+
+    /**
+     * The transform removed from the renderer: a model matrix, a quaternion and two vectors per
+     * point, then a full 4x4 multiply.
+     */
+    private static Vector3 toWorld(Matrix4 transformMat4, float x, float y, float z)
+    {
+        Matrix4 modelMat4 = new Matrix4();
+        modelMat4.setAll(
+                new Vector3(x, y, z),
+                new Vector3(1.0, 1.0, 1.0),
+                new Quaternion(new Vector3(0, 1, 0), 0));
+        modelMat4.leftMultiply(transformMat4);
+        return modelMat4.getTranslation();
+    }
+
+    private void transformLegacy()
+    {
+        for(int k = 0; k < POINTS * 3; k += 3) {
+            Vector3 world = toWorld(modelMatrix, xyz.get(k), xyz.get(k + 1), xyz.get(k + 2));
+            legacyOutput[k] = (float) world.x;
+            legacyOutput[k + 1] = (float) world.y;
+            legacyOutput[k + 2] = (float) world.z;
+        }
+        checksum += legacyOutput[0];
+    }
+
+    private void transformBatch(PointTransform transform)
+    {
+        float[] world = transform.set(modelMatrix).apply(xyz, POINTS);
+        checksum += world[0];
+    }
+
+    @Test
+    public void batchMatchesPerPointTransform()
+    {
+        transformLegacy();
+        float[] world = new PointTransform().set(modelMatrix).apply(xyz, POINTS);
+        for(int i = 0; i < POINTS * 3; i++) {
+            assertEquals("Coordinate " + i, legacyOutput[i], world[i], 1e-4f);
+        }
+    }
+
+    /**
+     * Prints the throughput of both paths. Not part of the test suite: it busy-loops for several
+     * seconds and its numbers depend on the machine.
+     */
+    public static void main(String[] args)
+    {
+        final PointTransformBenchmark benchmark = new PointTransformBenchmark();
+        final PointTransform transform = new PointTransform();
+        double legacy = pointsPerSecond(new Runnable() {
+            @Override
+            public void run() {
+                benchmark.transformLegacy();
+            }
+        });
+        double batch = pointsPerSecond(new Runnable() {
+            @Override
+            public void run() {
+                benchmark.transformBatch(transform);
+            }
+        });
+        System.out.println(String.format("PointTransform: per-point %.1f Mpts/s, batch %.1f Mpts/s,"
+                + " %.0fx (checksum %f)", legacy / 1e6, batch / 1e6, batch / legacy,
+                benchmark.checksum));
+    }
+
+    /**
+     * Runs {@code pass}, which transforms the whole frame, for a warm-up period and then a
+     * measured one.
+     */
+    private static double pointsPerSecond(Runnable pass)
+    {
+        long start = System.nanoTime();
+        while(System.nanoTime() - start < WARMUP_NANOS) {
+            pass.run();
+        }
+        int passes = 0;
+        start = System.nanoTime();
+        long elapsed;
+        do {
+            pass.run();
+            passes++;
+            elapsed = System.nanoTime() - start;
+        } while(elapsed < MEASURE_NANOS);
+        return (double) passes * POINTS / (elapsed / 1e9);
+    }
+}
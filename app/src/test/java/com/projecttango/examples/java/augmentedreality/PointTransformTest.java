@@ -0,0 +1,70 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.joml.Matrix4f;
+import org.junit.Test;
+import org.rajawali3d.Object3D;
+import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link PointTransform#toModelMatrix} against the model matrix Rajawali draws the point cloud
+ * with, for poses away from identity, where a rotation taken the wrong way round shows.
+ */
+public class PointTransformTest
+{
+    private static final Vector3 POSITION = new Vector3(0.3, -1.2, 2.5);
+    private static final Quaternion ORIENTATION = new Quaternion(new Vector3(0.2, 1, -0.4), 35);
+
+    private static Matrix4f rajawaliModelMatrix(Vector3 position, Quaternion orientation)
+    {
+        Object3D object = new Object3D();
+        object.setPosition(position);
+        object.setOrientation(orientation);
+        object.onRecalculateModelMatrix(null);
+        return toJoml(object.getModelMatrix());
+    }
+
+    private static Matrix4f toJoml(Matrix4 matrix)
+    {
+        float[] values = new float[16];
+        matrix.toFloatArray(values);
+        return new Matrix4f().set(values);
+    }
+
+    private static void assertMatrixEquals(Matrix4f expected, Matrix4f actual)
+    {
+        float[] e = expected.get(new float[16]), a = actual.get(new float[16]);
+        for(int i = 0; i < 16; i++) {
+            assertEquals("Expected\n" + expected + "but was\n" + actual, e[i], a[i], 1e-6f);
+        }
+    }
+
+    @Test
+    public void modelMatrixMatchesRajawali()
+    {
+        Matrix4f expected = rajawaliModelMatrix(POSITION, ORIENTATION);
+        Matrix4f actual = PointTransform.toModelMatrix(POSITION, ORIENTATION, new Matrix4f());
+        assertMatrixEquals(expected, actual);
+    }
+
+    @Test
+    public void pointsMatchBothPaths()
+    {
+        FloatBuffer xyz = FloatBuffer.wrap(new float[] {
+                0, 0, 1, 0.5f, -0.25f, 1.5f, -1, 2, 3
+        });
+        float[] expected = new PointTransform()
+                .set(rajawaliModelMatrix(POSITION, ORIENTATION)).apply(xyz, 3).clone();
+        float[] actual = new PointTransform()
+                .set(PointTransform.toModelMatrix(POSITION, ORIENTATION, new Matrix4f()))
+                .apply(xyz, 3);
+        for(int i = 0; i < 9; i++) {
+            assertEquals("Coordinate " + i, expected[i], actual[i], 1e-5f);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PoseGraph} on trajectories with a known answer: exact relative measurements and
+ * initial poses that drifted away from them, so the optimum is the ground truth at zero cost.
+ */
+public class PoseGraphTest
+{
+    private static final float WEIGHT = 100;
+
+    /**
+     * Keyframe {@code i} of {@code count} on a circle of 2 m around the origin, looking inwards
+     * and slightly down, a full turn over the whole loop.
+     */
+    private static Matrix4f loopPose(int i, int count)
+    {
+        float angle = (float) (2 * Math.PI * i / count);
+        return new Matrix4f()
+                .translation((float) Math.sin(angle) * 2, 0.1f * (i % 3),
+                        (float) Math.cos(angle) * 2)
+                .rotateY(angle)
+                .rotateX(-0.2f);
+    }
+
+    private static Matrix4f relative(Matrix4f from, Matrix4f to)
+    {
+        return new Matrix4f(from).invertAffine().mul(to);
+    }
+
+    /**
+     * A loop of {@code count} keyframes linked by exact odometry and one exact loop closure
+     * from the last keyframe back to the first. The odometry of the initial poses drifts as
+     * motion tracking would: 24 degrees too far round and 24 cm too high over the whole loop.
+     */
+    private static PoseGraph driftedLoop(int count)
+    {
+        PoseGraph graph = new PoseGraph();
+        Matrix4f drift = new Matrix4f().translation(0, 0.24f / count, 0)
+                .rotateY((float) Math.toRadians(24.0 / count));
+        Matrix4f estimate = loopPose(0, count);
+        graph.addNode(estimate);
+        for(int i = 1; i < count; i++) {
+            Matrix4f odometry = relative(loopPose(i - 1, count), loopPose(i, count));
+            estimate = new Matrix4f(estimate).mul(odometry).mul(drift);
+            graph.addNode(estimate);
+            graph.addEdge(i - 1, i, odometry, WEIGHT, WEIGHT);
+        }
+        graph.addEdge(count - 1, 0, relative(loopPose(count - 1, count), loopPose(0, count)),
+                WEIGHT, WEIGHT);
+        return graph;
+    }
+
+    private static void assertPoseEquals(String message, Matrix4f expected, Matrix4f actual,
+                                         float delta)
+    {
+        float[] e = expected.get(new float[16]), a = actual.get(new float[16]);
+        for(int i = 0; i < 16; i++) {
+            assertEquals(message + "\nExpected\n" + expected + "but was\n" + actual,
+                    e[i], a[i], delta);
+        }
+    }
+
+    @Test
+    public void driftedLoopConvergesToGroundTruth()
+    {
+        int count = 24;
+        PoseGraph graph = driftedLoop(count);
+        Matrix4f pose = new Matrix4f();
+        graph.getPose(count - 1, pose);
+        float error = pose.getTranslation(new Vector3f())
+                .distance(loopPose(count - 1, count).getTranslation(new Vector3f()));
+        assertTrue("Drift too small to test: " + error, error > 0.5f);
+
+        double cost = graph.optimize(50);
+        assertEquals(0, cost, 1e-8);
+        for(int i = 0; i < count; i++) {
+            assertPoseEquals("Pose " + i, loopPose(i, count), graph.getPose(i, pose), 1e-4f);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void longLoopConverges()
+    {
+        int count = 300;
+        PoseGraph graph = driftedLoop(count);
+        assertEquals(0, graph.optimize(50), 1e-6);
+        Matrix4f pose = new Matrix4f();
+        for(int i = 0; i < count; i += 25) {
+            assertPoseEquals("Pose " + i, loopPose(i, count), graph.getPose(i, pose), 1e-3f);
+        }
+    }
+
+    @Test
+    public void fixedPosesDoNotMove()
+    {
+        int count = 12;
+        PoseGraph graph = driftedLoop(count);
+        Matrix4f first = graph.getPose(0, new Matrix4f());
+        Matrix4f middle = graph.getPose(count / 2, new Matrix4f());
+        graph.setFixed(count / 2, true);
+        graph.optimize(50);
+        Matrix4f pose = new Matrix4f();
+        assertPoseEquals("Gauge pose", first, graph.getPose(0, pose), 0);
+        assertPoseEquals("Fixed pose", middle, graph.getPose(count / 2, pose), 0);
+        assertTrue(graph.getCost() > 0);
+    }
+
+    @Test
+    public void rotationErrorNearHalfTurnConverges()
+    {
+        Matrix4f truth = new Matrix4f().translation(0.5f, 0, -1).rotateY(0.3f);
+        PoseGraph graph = new PoseGraph();
+        graph.addNode(new Matrix4f());
+        // Start almost half a turn away from the measurement, where log() takes the axis from
+        // the diagonal.
+        graph.addNode(new Matrix4f(truth).rotateX((float) Math.toRadians(179.998)));
+        graph.addEdge(0, 1, truth, WEIGHT, WEIGHT);
+        assertEquals(0, graph.optimize(100), 1e-8);
+        assertPoseEquals("Pose 1", truth, graph.getPose(1, new Matrix4f()), 1e-4f);
+    }
+
+    @Test
+    public void removeLastNodeDropsItsEdges()
+    {
+        int count = 6;
+        PoseGraph graph = driftedLoop(count);
+        assertEquals(count, graph.getEdgeCount());
+        // An extra link from the last keyframe into the middle of the loop.
+        graph.addEdge(2, count - 1, relative(loopPose(2, count), loopPose(count - 1, count)),
+                WEIGHT, WEIGHT);
+
+        graph.removeLastNode();
+        assertEquals(count - 1, graph.getNodeCount());
+        // Its odometry edge, the loop closure and the extra link are gone.
+        assertEquals(count - 2, graph.getEdgeCount());
+        // What is left is the exact odometry chain, which the optimum follows from the first pose.
+        assertEquals(0, graph.optimize(50), 1e-8);
+        Matrix4f pose = new Matrix4f();
+        for(int i = 0; i < count - 1; i++) {
+            assertPoseEquals("Pose " + i, loopPose(i, count), graph.getPose(i, pose), 1e-4f);
+        }
+
+        // A node added in its place is linked only by the edges added with it.
+        graph.addNode(loopPose(count - 1, count));
+        graph.addEdge(count - 2, count - 1,
+                relative(loopPose(count - 2, count), loopPose(count - 1, count)), WEIGHT, WEIGHT);
+        assertEquals(count - 1, graph.getEdgeCount());
+        assertEquals(0, graph.optimize(50), 1e-8);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void removeLastNodeOfEmptyGraphThrows()
+    {
+        new PoseGraph().removeLastNode();
+    }
+}
@@ -0,0 +1,127 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.After;
+import org.junit.Test;
+import org.rajawali3d.Object3D;
+import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Poses and world points coming out of a {@link ReconstructionWorker} capture against the
+ * path it replaced, which took the model matrix Rajawali drew the depth frame with.
+ */
+public class ReconstructionWorkerTest
+{
+    private static final int WIDTH = 160, HEIGHT = 90;
+    private static final Vector3 POSITION = new Vector3(0.3, -1.2, 2.5);
+    private static final Quaternion ORIENTATION = new Quaternion(new Vector3(0.2, 1, -0.4), 35);
+
+    private final ReconstructionWorker worker = new ReconstructionWorker(WIDTH * HEIGHT);
+
+    @After
+    public void shutdown()
+    {
+        worker.shutdown();
+    }
+
+    private static TangoCameraIntrinsics intrinsics()
+    {
+        TangoCameraIntrinsics intrinsics = new TangoCameraIntrinsics();
+        intrinsics.width = WIDTH;
+        intrinsics.height = HEIGHT;
+        intrinsics.fx = intrinsics.fy = 120;
+        intrinsics.cx = WIDTH / 2;
+        intrinsics.cy = HEIGHT / 2;
+        return intrinsics;
+    }
+
+    /**
+     * One point every other pixel on a bumpy surface about a meter in front of the camera.
+     */
+    private static FloatBuffer depthFrame(TangoCameraIntrinsics intrinsics)
+    {
+        FloatBuffer xyz = FloatBuffer.allocate(WIDTH * HEIGHT * 3);
+        for(int v = 1; v < HEIGHT; v += 2) {
+            for(int u = 1; u < WIDTH; u += 2) {
+                float z = 1.0f + 0.1f * (float) Math.sin(u * 0.1) * (float) Math.cos(v * 0.1);
+                xyz.put((float) ((u - intrinsics.cx) / intrinsics.fx) * z);
+                xyz.put((float) ((v - intrinsics.cy) / intrinsics.fy) * z);
+                xyz.put(z);
+            }
+        }
+        return xyz;
+    }
+
+    private static Matrix4 rajawaliModelMatrix()
+    {
+        Object3D object = new Object3D();
+        object.setPosition(POSITION);
+        object.setOrientation(ORIENTATION);
+        object.onRecalculateModelMatrix(null);
+        return object.getModelMatrix();
+    }
+
+    private static Matrix4f toJoml(Matrix4 matrix)
+    {
+        float[] values = new float[16];
+        matrix.toFloatArray(values);
+        return new Matrix4f().set(values);
+    }
+
+    private static void assertMatrixEquals(Matrix4f expected, Matrix4f actual)
+    {
+        float[] e = expected.get(new float[16]), a = actual.get(new float[16]);
+        for(int i = 0; i < 16; i++) {
+            assertEquals("Expected\n" + expected + "but was\n" + actual, e[i], a[i], 1e-5f);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void captureMatchesRajawaliModelMatrix() throws InterruptedException
+    {
+        TangoCameraIntrinsics intrinsics = intrinsics();
+        FloatBuffer xyz = depthFrame(intrinsics);
+        int count = xyz.position() / 3;
+        Matrix4f framePose = PointTransform.toModelMatrix(POSITION, ORIENTATION, new Matrix4f());
+        assertTrue(worker.pushDepthFrame(xyz, count, framePose, 1));
+        Matrix4f identity = new Matrix4f();
+        ReconstructionWorker.CaptureRequest request = new ReconstructionWorker.CaptureRequest(
+                intrinsics, null, (float) intrinsics.cx, (float) intrinsics.cy,
+                ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4), WIDTH, HEIGHT, identity, identity);
+        request.imageRead();
+        worker.capture(request);
+        ReconstructionWorker.Result result;
+        while((result = worker.poll()) == null) {
+            Thread.sleep(10);
+        }
+        assertNotNull("Capture failed", result.xyz);
+
+        Matrix4 modelMatrix = rajawaliModelMatrix();
+        assertMatrixEquals(toJoml(modelMatrix), result.odometry);
+        // The first keyframe has no model to register against, so it keeps its pose.
+        assertMatrixEquals(toJoml(modelMatrix), result.pose);
+
+        // The point at pixel (41, 21), back in world space, as the legacy per-point path put it.
+        int k = (10 * (WIDTH / 2) + 20) * 3;
+        Vector3 expected = new Vector3(xyz.get(k), xyz.get(k + 1), xyz.get(k + 2));
+        expected.multiply(modelMatrix);
+        Vector3f actual = new Vector3f();
+        assertTrue(worker.findCapturedPoint(41, 21, 0, actual));
+        assertEquals(expected.x, actual.x, 1e-4);
+        assertEquals(expected.y, actual.y, 1e-4);
+        assertEquals(expected.z, actual.z, 1e-4);
+        worker.recycle(result);
+    }
+}
@@ -0,0 +1,161 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.junit.Test;
+import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two frames of a static wall, the older one taken from a camera turned 10 degrees away. The
+ * frames are generated with the model matrices Rajawali draws them with, and the filter is given
+ * the poses the renderer builds from the same Rajawali quaternions. The older frame must
+ * reproject onto the same pixels of the newest one, so each depth is averaged with it.
+ */
+public class TemporalDepthFilterTest
+{
+    private static final int WIDTH = 160, HEIGHT = 90;
+    // The wall is 1 m in front of the newest camera; each frame measures it 1 cm off.
+    private static final float WALL = 1.0f, ERROR = 0.01f;
+
+    private static TangoCameraIntrinsics intrinsics()
+    {
+        TangoCameraIntrinsics intrinsics = new TangoCameraIntrinsics();
+        intrinsics.width = WIDTH;
+        intrinsics.height = HEIGHT;
+        intrinsics.fx = intrinsics.fy = 120;
+        intrinsics.cx = WIDTH / 2;
+        intrinsics.cy = HEIGHT / 2;
+        return intrinsics;
+    }
+
+    private static Matrix4f rajawaliModelMatrix(Vector3 position, Quaternion orientation)
+    {
+        float[] values = new float[16];
+        new Matrix4().setAll(position, new Vector3(1, 1, 1), orientation).toFloatArray(values);
+        return new Matrix4f().set(values);
+    }
+
+    /**
+     * The wall as seen from a camera with pose {@code pose}, one point per pixel that sees it,
+     * with every depth off by {@code error} along its ray. The wall goes through the point
+     * (0, 0, WALL) of the newest camera, with normal {@code wallNormal} in that camera's frame.
+     */
+    private static int view(Matrix4f pose, Matrix4f newestPose, Vector3f wallNormal,
+                            TangoCameraIntrinsics intrinsics, float error, FloatBuffer out)
+    {
+        Vector3f origin = newestPose.transformPosition(new Vector3f(0, 0, WALL));
+        Vector3f normal = newestPose.transformDirection(new Vector3f(wallNormal));
+        Vector3f eye = pose.transformPosition(new Vector3f());
+        out.clear();
+        for(int v = 0; v < HEIGHT; v++) {
+            for(int u = 0; u < WIDTH; u++) {
+                Vector3f ray = pose.transformDirection(new Vector3f(
+                        (float) ((u + 0.5 - intrinsics.cx) / intrinsics.fx),
+                        (float) ((v + 0.5 - intrinsics.cy) / intrinsics.fy), 1));
+                float t = new Vector3f(origin).sub(eye).dot(normal) / ray.dot(normal);
+                if(t <= 0)
+                    continue;
+                // t is the depth along the camera axis, since the ray has z = 1 in camera space.
+                float scale = (t + error) / t;
+                out.put((float) ((u + 0.5 - intrinsics.cx) / intrinsics.fx) * t * scale);
+                out.put((float) ((v + 0.5 - intrinsics.cy) / intrinsics.fy) * t * scale);
+                out.put(t * scale);
+            }
+        }
+        return out.position() / 3;
+    }
+
+    /**
+     * Filters two frames of the wall with normal {@code wallNormal}: the older one from a camera
+     * turned 10 degrees away and measuring every depth {@code ERROR} too far, the newest one
+     * measuring {@code ERROR} too near. Writes the exact depths of the newest frame to
+     * {@code truth} and returns the filtered newest frame.
+     */
+    private static FloatBuffer filterWall(Vector3f wallNormal, FloatBuffer truth)
+    {
+        TangoCameraIntrinsics intrinsics = intrinsics();
+        Vector3 newestPosition = new Vector3(0.3, -1.2, 2.5);
+        Quaternion newestOrientation = new Quaternion(new Vector3(0.2, 1, -0.4), 35);
+        Vector3 olderPosition = new Vector3(0.35, -1.2, 2.48);
+        Quaternion olderOrientation = new Quaternion(newestOrientation)
+                .multiply(new Quaternion(new Vector3(0, 1, 0), 10));
+        Matrix4f newestView = rajawaliModelMatrix(newestPosition, newestOrientation);
+        Matrix4f olderView = rajawaliModelMatrix(olderPosition, olderOrientation);
+        Matrix4f newestPose = PointTransform.toModelMatrix(newestPosition, newestOrientation,
+                new Matrix4f());
+        Matrix4f olderPose = PointTransform.toModelMatrix(olderPosition, olderOrientation,
+                new Matrix4f());
+
+        TemporalDepthFilter filter = new TemporalDepthFilter(2, WIDTH * HEIGHT);
+        FloatBuffer xyz = FloatBuffer.allocate(WIDTH * HEIGHT * 3);
+        int olderCount = view(olderView, newestView, wallNormal, intrinsics, ERROR, xyz);
+        assertTrue(olderCount > 0);
+        filter.push(xyz, olderCount, olderPose, 1);
+        int count = view(newestView, newestView, wallNormal, intrinsics, -ERROR, xyz);
+        assertEquals(WIDTH * HEIGHT, count);
+        filter.push(xyz, count, newestPose, 2);
+        view(newestView, newestView, wallNormal, intrinsics, 0, truth);
+
+        FloatBuffer out = FloatBuffer.allocate(WIDTH * HEIGHT * 3);
+        assertEquals(count, filter.filter(intrinsics, out));
+        return out;
+    }
+
+    /**
+     * Checks that every point of the filtered frame is either left as measured or averaged, that
+     * at least 70% are averaged (the older camera sees about 86% of the wall in the newest
+     * frame), and that the averaged depths are off their exact values by at most
+     * {@code meanError} on average and {@code maxError} at worst.
+     */
+    private static void assertAveraged(FloatBuffer out, FloatBuffer truth, float meanError,
+                                       float maxError)
+    {
+        int count = WIDTH * HEIGHT;
+        int averaged = 0;
+        double sum = 0;
+        for(int k = 0; k < count * 3; k += 3) {
+            float z = out.get(k + 2), exact = truth.get(k + 2);
+            if(Math.abs(z - (exact - ERROR)) <= 1e-5f)
+                continue;
+            float error = Math.abs(z - exact);
+            assertTrue("Point " + k / 3 + " is off by " + error, error <= maxError);
+            sum += error;
+            averaged++;
+        }
+        assertTrue("Only " + averaged + " of " + count + " points averaged",
+                averaged > count * 7 / 10);
+        assertTrue("Mean error " + sum / averaged, sum / averaged <= meanError);
+    }
+
+    @Test
+    public void rotatedFramesOfAStaticSceneAreAveraged()
+    {
+        FloatBuffer truth = FloatBuffer.allocate(WIDTH * HEIGHT * 3);
+        FloatBuffer out = filterWall(new Vector3f(0, 0, 1), truth);
+        assertAveraged(out, truth, 0.001f, 0.002f);
+    }
+
+    /**
+     * A wall at 45 degrees changes depth by a centimeter or more from one pixel to the next, so
+     * each 4 pixel cell spans several centimeters of depth. The points must keep that slope
+     * rather than collapse onto one depth per cell; what is left is the rounding of reprojected
+     * points to whole pixels.
+     */
+    @Test
+    public void slantedWallKeepsItsSlope()
+    {
+        FloatBuffer truth = FloatBuffer.allocate(WIDTH * HEIGHT * 3);
+        float half = (float) Math.sqrt(0.5);
+        FloatBuffer out = filterWall(new Vector3f(half, 0, half), truth);
+        assertAveraged(out, truth, 0.003f, 0.015f);
+    }
+}
@@ -0,0 +1,92 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import com.google.atap.tangoservice.TangoCameraIntrinsics;
+
+import org.joml.Matrix4f;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The block budget of {@link TsdfVolume}: walking past walls in separate places must keep the
+ * block count at the cap, recycling the blocks seen longest ago, and keep fusing new places.
+ */
+public class TsdfVolumeTest
+{
+    private static final int WIDTH = 160, HEIGHT = 90;
+    private static final int MAX_BLOCKS = 1024;
+
+    private static TangoCameraIntrinsics intrinsics()
+    {
+        TangoCameraIntrinsics intrinsics = new TangoCameraIntrinsics();
+        intrinsics.width = WIDTH;
+        intrinsics.height = HEIGHT;
+        intrinsics.fx = intrinsics.fy = 120;
+        intrinsics.cx = WIDTH / 2;
+        intrinsics.cy = HEIGHT / 2;
+        return intrinsics;
+    }
+
+    /**
+     * A wall 1 m in front of the camera, one point per pixel.
+     */
+    private static FloatBuffer wall(TangoCameraIntrinsics intrinsics)
+    {
+        FloatBuffer xyz = FloatBuffer.allocate(WIDTH * HEIGHT * 3);
+        for(int v = 0; v < HEIGHT; v++) {
+            for(int u = 0; u < WIDTH; u++) {
+                xyz.put((float) ((u + 0.5 - intrinsics.cx) / intrinsics.fx));
+                xyz.put((float) ((v + 0.5 - intrinsics.cy) / intrinsics.fy));
+                xyz.put(1);
+            }
+        }
+        return xyz;
+    }
+
+    private static int surfacePoints(TsdfVolume volume, float minX, float maxX)
+    {
+        PointBuffer surface = new PointBuffer();
+        volume.extractSurface(surface, 1);
+        int count = 0;
+        float[] xyz = surface.getXyzArray();
+        for(int i = 0; i < surface.size(); i++) {
+            if(xyz[i * 3] >= minX && xyz[i * 3] <= maxX) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void blockBudgetRecyclesTheOldestBlocks()
+    {
+        TangoCameraIntrinsics intrinsics = intrinsics();
+        FloatBuffer xyz = wall(intrinsics);
+        TsdfVolume volume = new TsdfVolume(0.01f, 0.04f, MAX_BLOCKS);
+
+        volume.integrate(xyz, WIDTH * HEIGHT, new Matrix4f(), intrinsics);
+        int blocksPerWall = volume.getBlockCount();
+        assertTrue(blocksPerWall < MAX_BLOCKS / 2);
+        assertTrue(surfacePoints(volume, -1, 1) > 0);
+
+        // Walls 3 m apart never share a block; the budget runs out after a few of them.
+        int walls = MAX_BLOCKS / blocksPerWall + 3;
+        for(int i = 1; i < walls; i++) {
+            volume.integrate(xyz, WIDTH * HEIGHT, new Matrix4f().translation(3 * i, 0, 0),
+                    intrinsics);
+            assertTrue(volume.getBlockCount() <= MAX_BLOCKS);
+        }
+        assertEquals(MAX_BLOCKS, volume.getBlockCount());
+        assertTrue(volume.getEvictedCount() > 0);
+        float last = 3 * (walls - 1);
+        assertEquals("First wall kept", 0, surfacePoints(volume, -1, 1));
+        assertTrue("Last wall dropped", surfacePoints(volume, last - 1, last + 1) > 0);
+
+        volume.clear();
+        assertEquals(0, volume.getBlockCount());
+        assertEquals(0, volume.getEvictedCount());
+    }
+}
@@ -0,0 +1,80 @@
+package com.projecttango.examples.java.augmentedreality;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link VoxelGridFilter} with points that have no voxel. A NaN coordinate used to get voxel
+ * coordinate 0 and an infinite one wrapped to -1 or 0 in the key, so the voxels next to the
+ * origin came out as NaN or infinite.
+ */
+public class VoxelGridFilterTest
+{
+    private static final float[] NON_FINITE = {
+            Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY
+    };
+
+    /**
+     * Two points in voxel (0, 0, 0) and one in voxel (1, 0, 0) of a 10 cm grid, with every kind
+     * of non-finite point before, between and after them.
+     */
+    private static PointBuffer pointsWithNonFinite()
+    {
+        PointBuffer points = new PointBuffer();
+        points.enableColors();
+        for(float value : NON_FINITE) {
+            points.setColor(points.add(value, 0, 0), 0xffff0000);
+        }
+        points.setColor(points.add(0.02f, 0.04f, 0.06f), 0xff00ff00);
+        for(float value : NON_FINITE) {
+            points.setColor(points.add(0.01f, value, 0.01f), 0xffff0000);
+            points.setColor(points.add(0.01f, 0.01f, value), 0xffff0000);
+        }
+        points.setColor(points.add(0.04f, 0.02f, 0.02f), 0xff0000ff);
+        points.setColor(points.add(0.15f, 0.05f, 0.05f), 0xff00ffff);
+        return points;
+    }
+
+    @Test
+    public void centroidsSkipNonFinitePoints()
+    {
+        PointBuffer out = new PointBuffer();
+        new VoxelGridFilter(0.1f).filter(pointsWithNonFinite(), out);
+        assertEquals(2, out.size());
+        assertEquals(0.03f, out.getX(0), 1e-6f);
+        assertEquals(0.03f, out.getY(0), 1e-6f);
+        assertEquals(0.04f, out.getZ(0), 1e-6f);
+        assertEquals(0xff00ff00, out.getColor(0));
+        assertEquals(0.15f, out.getX(1), 1e-6f);
+        assertEquals(0xff00ffff, out.getColor(1));
+    }
+
+    @Test
+    public void firstPointsSkipNonFinitePoints()
+    {
+        VoxelGridFilter filter = new VoxelGridFilter(0.1f);
+        filter.setAveraging(false);
+        PointBuffer out = new PointBuffer();
+        filter.filter(pointsWithNonFinite(), out);
+        assertEquals(2, out.size());
+        assertEquals(0.02f, out.getX(0), 0);
+        assertEquals(0.04f, out.getY(0), 0);
+        assertEquals(0.06f, out.getZ(0), 0);
+        assertEquals(0xff00ff00, out.getColor(0));
+        assertEquals(0.15f, out.getX(1), 0);
+    }
+
+    @Test
+    public void onlyNonFinitePointsGiveNothing()
+    {
+        PointBuffer points = new PointBuffer();
+        for(float value : NON_FINITE) {
+            points.add(value, value, value);
+        }
+        PointBuffer out = new PointBuffer();
+        out.add(1, 2, 3);
+        new VoxelGridFilter(0.1f).filter(points, out);
+        assertEquals(0, out.size());
+    }
+}